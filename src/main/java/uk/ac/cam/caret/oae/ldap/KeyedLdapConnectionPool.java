@@ -0,0 +1,362 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pools connections bound as particular DNs, one small {@link LdapConnectionPool} per
+ * DN. A caller asking again for the same DN and password is given a connection that is
+ * already bound, rather than connecting and binding afresh.
+ * <p>
+ * The password is never kept. Each DN remembers a salted SHA-256 digest of the password
+ * its connections were bound with, and pooled connections are only handed to callers
+ * presenting a password with the same digest. A different password is always checked
+ * by the directory with a fresh bind; if that bind succeeds the DN's old connections are
+ * discarded, if it fails they are kept. The same password is not checked again, so a
+ * change or lock-out in the directory is only noticed once the DN's connections are
+ * retired; this pool is meant for service accounts, and is off by default.
+ * <p>
+ * At most <code>bound.pool.max.keys</code> DNs are kept; when another is added the least
+ * recently used DN is dropped along with all of its connections.
+ */
+public class KeyedLdapConnectionPool {
+
+  private static final Logger log = LoggerFactory.getLogger(KeyedLdapConnectionPool.class);
+
+  /**
+   * Connects and binds new connections for the pool.
+   */
+  public interface Binder {
+
+    /**
+     * @return a new connection bound as <code>dn</code>.
+     * @throws LDAPException
+     *           if the connection could not be made or the bind failed.
+     */
+    LDAPConnection bind(String dn, String password) throws LDAPException;
+  }
+
+  /**
+   * The pool for one DN.
+   */
+  private static class Key {
+    private final String dn;
+    private final byte[] digest;
+    private final LdapConnectionPool pool;
+    /** Threads between choosing this key and borrowing from its pool. */
+    private int users;
+
+    Key(String dn, byte[] digest, LdapConnectionPool pool) {
+      this.dn = dn;
+      this.digest = digest;
+      this.pool = pool;
+    }
+  }
+
+  private final LdapConnectionFactory factory;
+
+  private final Binder binder;
+
+  private final LdapConnectionManagerConfig keyConfig;
+
+  private final int maxKeys;
+
+  private final byte[] salt = new byte[16];
+
+  /** Pools by DN, least recently used first. */
+  private final LinkedHashMap<String, Key> keys = new LinkedHashMap<String, Key>(16, 0.75f,
+      true);
+
+  /** The key each borrowed connection belongs to. */
+  private final Map<LDAPConnection, Key> borrowed = new IdentityHashMap<LDAPConnection, Key>();
+
+  private boolean closed;
+
+  private long keysEvicted;
+
+  private long rebinds;
+
+  /**
+   * @param factory
+   *          validates, keeps alive and destroys connections; never asked to make them.
+   * @param binder
+   *          makes new bound connections.
+   * @param config
+   *          the pool configuration, of which <code>boundPoolMaxKeys</code> and
+   *          <code>boundPoolMaxConnsPerKey</code> size this pool.
+   */
+  public KeyedLdapConnectionPool(final LdapConnectionFactory factory, Binder binder,
+      LdapConnectionManagerConfig config) {
+    // the factory used by each DN's pool refuses to make connections of its own, so a
+    // connection bound as anyone else can never end up pooled under a DN.
+    this.factory = new LdapConnectionFactory() {
+      public LDAPConnection makeConnection() throws LDAPException {
+        throw new LDAPException("Bound connections need credentials to be made",
+            LDAPException.OTHER, null);
+      }
+
+      public boolean validateConnection(LDAPConnection conn) {
+        return factory.validateConnection(conn);
+      }
+
+      public boolean keepAlive(LDAPConnection conn) {
+        return factory.keepAlive(conn);
+      }
+
+      public void destroyConnection(LDAPConnection conn) {
+        factory.destroyConnection(conn);
+      }
+    };
+    this.binder = binder;
+    this.maxKeys = Math.max(1, config.getBoundPoolMaxKeys());
+    this.keyConfig = config.copy();
+    int perKey = Math.max(1, config.getBoundPoolMaxConnsPerKey());
+    this.keyConfig.setPoolMaxConns(perKey);
+    this.keyConfig.setPoolMaxIdle(perKey);
+    this.keyConfig.setPoolMinIdle(0);
+    new SecureRandom().nextBytes(salt);
+  }
+
+  /**
+   * Takes a connection bound as <code>dn</code>, binding a new one if none is idle.
+   *
+   * @return a bound connection that must be given back with
+   *         {@link #returnConnection(LDAPConnection)}.
+   * @throws LDAPException
+   *           if the bind fails, or no connection for the DN became available within the
+   *           maximum wait.
+   */
+  public LDAPConnection borrowConnection(String dn, String password) throws LDAPException {
+    byte[] digest = digest(password);
+    Key key;
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("LDAP connection pool has been closed.");
+      }
+      key = keys.get(dn);
+      if (key != null && MessageDigest.isEqual(key.digest, digest)) {
+        key.users++;
+      } else {
+        key = null;
+      }
+    }
+
+    if (key != null) {
+      try {
+        LDAPConnection conn = key.pool.borrowConnection(creator(dn, password, null));
+        track(conn, key);
+        return conn;
+      } finally {
+        release(key);
+      }
+    }
+
+    // a DN we have not seen, or a different password: let the directory decide.
+    LDAPConnection fresh = binder.bind(dn, password);
+    List<Key> discard = new ArrayList<Key>();
+    synchronized (this) {
+      if (closed) {
+        factory.destroyConnection(fresh);
+        throw new IllegalStateException("LDAP connection pool has been closed.");
+      }
+      key = keys.get(dn);
+      if (key == null || !MessageDigest.isEqual(key.digest, digest)) {
+        if (key != null) {
+          log.debug("borrowConnection(): password changed, discarding connections [dn = {}]",
+              dn);
+          rebinds++;
+          discard.add(key);
+        }
+        key = new Key(dn, digest, new LdapConnectionPool(factory, keyConfig));
+        keys.put(dn, key);
+        evictKeys(discard);
+      }
+      key.users++;
+    }
+    for (Key old : discard) {
+      old.pool.close();
+    }
+
+    try {
+      LDAPConnection conn = key.pool.borrowConnection(creator(dn, password, fresh));
+      if (conn != fresh) {
+        // another caller filled the key first, the fresh connection is surplus.
+        factory.destroyConnection(fresh);
+      }
+      track(conn, key);
+      return conn;
+    } catch (LDAPException e) {
+      factory.destroyConnection(fresh);
+      throw e;
+    } catch (RuntimeException e) {
+      factory.destroyConnection(fresh);
+      throw e;
+    } finally {
+      release(key);
+    }
+  }
+
+  /**
+   * Gives a connection back to the pool of the DN it is bound as.
+   *
+   * @return <code>false</code> if the connection did not come from this pool.
+   */
+  public boolean returnConnection(LDAPConnection conn) {
+    Key key;
+    synchronized (this) {
+      key = borrowed.remove(conn);
+    }
+    if (key == null) {
+      return false;
+    }
+    if (!key.pool.returnConnection(conn)) {
+      factory.destroyConnection(conn);
+    }
+    return true;
+  }
+
+  /**
+   * Runs maintenance on every DN's pool and forgets DNs that no longer have any
+   * connections.
+   */
+  public void maintain() {
+    List<Key> current;
+    synchronized (this) {
+      current = new ArrayList<Key>(keys.values());
+    }
+    for (Key key : current) {
+      key.pool.maintain();
+    }
+    List<Key> empty = new ArrayList<Key>();
+    synchronized (this) {
+      for (Iterator<Key> i = keys.values().iterator(); i.hasNext();) {
+        Key key = i.next();
+        if (key.users == 0 && key.pool.getNumActive() == 0 && key.pool.getNumIdle() == 0) {
+          i.remove();
+          empty.add(key);
+        }
+      }
+    }
+    for (Key key : empty) {
+      key.pool.close();
+    }
+  }
+
+  /**
+   * Closes every DN's pool. Connections that are still borrowed are destroyed as they
+   * are returned.
+   */
+  public void close() {
+    List<Key> current;
+    synchronized (this) {
+      closed = true;
+      current = new ArrayList<Key>(keys.values());
+      keys.clear();
+    }
+    for (Key key : current) {
+      key.pool.close();
+    }
+  }
+
+  /**
+   * @return the number of DNs pooled, the connections held for them, and how often
+   *         whole DNs have been evicted or rebound with a new password.
+   */
+  public Map<String, Object> getStatistics() {
+    List<Key> current;
+    Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+    synchronized (this) {
+      current = new ArrayList<Key>(keys.values());
+      statistics.put("keys", current.size());
+      statistics.put("maxKeys", maxKeys);
+      statistics.put("keysEvicted", keysEvicted);
+      statistics.put("rebinds", rebinds);
+    }
+    int active = 0;
+    int idle = 0;
+    for (Key key : current) {
+      active += key.pool.getNumActive();
+      idle += key.pool.getNumIdle();
+    }
+    statistics.put("active", active);
+    statistics.put("idle", idle);
+    return statistics;
+  }
+
+  /**
+   * @return a factory for a DN's pool to make a connection with if it needs one: the
+   *         given fresh connection, or otherwise a new bind.
+   */
+  private LdapConnectionFactory creator(final String dn, final String password,
+      final LDAPConnection fresh) {
+    return new LdapConnectionFactory() {
+      public LDAPConnection makeConnection() throws LDAPException {
+        return fresh != null ? fresh : binder.bind(dn, password);
+      }
+
+      public boolean validateConnection(LDAPConnection conn) {
+        return factory.validateConnection(conn);
+      }
+
+      public boolean keepAlive(LDAPConnection conn) {
+        return factory.keepAlive(conn);
+      }
+
+      public void destroyConnection(LDAPConnection conn) {
+        factory.destroyConnection(conn);
+      }
+    };
+  }
+
+  private synchronized void track(LDAPConnection conn, Key key) {
+    borrowed.put(conn, key);
+  }
+
+  private synchronized void release(Key key) {
+    key.users--;
+  }
+
+  /**
+   * Drops least recently used DNs until no more than the maximum remain. Must be called
+   * holding the lock; the pools of the dropped DNs are added to <code>discard</code> to
+   * be closed outside it.
+   */
+  private void evictKeys(List<Key> discard) {
+    for (Iterator<Key> i = keys.values().iterator(); keys.size() > maxKeys && i.hasNext();) {
+      Key eldest = i.next();
+      if (eldest.users > 0) {
+        continue;
+      }
+      log.debug("evictKeys(): dropping connections bound as {}", eldest.dn);
+      i.remove();
+      discard.add(eldest);
+      keysEvicted++;
+    }
+  }
+
+  private byte[] digest(String password) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(salt);
+      return md.digest(password.getBytes("UTF8"));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Failed to encode user password", e);
+    }
+  }
+}
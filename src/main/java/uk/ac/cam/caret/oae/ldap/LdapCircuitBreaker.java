@@ -0,0 +1,206 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A circuit breaker for directory operations. While <em>closed</em> the outcome of the
+ * last <code>windowSize</code> operations is kept; once at least
+ * <code>minimumCalls</code> have been recorded and the share of failed or slow calls
+ * reaches its threshold the breaker <em>opens</em> and callers are refused without
+ * touching the network. After <code>openDuration</code> the breaker goes
+ * <em>half-open</em> and lets a few probe calls through: if they all succeed quickly
+ * it closes again, otherwise it re-opens.
+ */
+public class LdapCircuitBreaker {
+
+  private static final Logger log = LoggerFactory.getLogger(LdapCircuitBreaker.class);
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final int failureRateThreshold;
+
+  private final int slowCallRateThreshold;
+
+  private final long slowCallDurationNanos;
+
+  private final int minimumCalls;
+
+  private final long openDuration;
+
+  private final int halfOpenCalls;
+
+  /** Outcomes of the most recent calls while closed, used as a ring. */
+  private final boolean[] failed;
+
+  private final boolean[] slow;
+
+  private int next;
+
+  private int recorded;
+
+  private int failures;
+
+  private int slowCalls;
+
+  private volatile State state = State.CLOSED;
+
+  private long openedAt;
+
+  /** Probe calls handed out and completed successfully while half-open. */
+  private int halfOpenPermits;
+
+  private int halfOpenSuccesses;
+
+  public LdapCircuitBreaker(LdapConnectionManagerConfig config) {
+    this.failureRateThreshold = config.getBreakerFailureRateThreshold();
+    this.slowCallRateThreshold = config.getBreakerSlowCallRateThreshold();
+    this.slowCallDurationNanos = config.getBreakerSlowCallDuration() * 1000000L;
+    int windowSize = Math.max(1, config.getBreakerWindowSize());
+    this.minimumCalls = Math.max(1, Math.min(config.getBreakerMinimumCalls(), windowSize));
+    this.openDuration = config.getBreakerOpenDuration();
+    this.halfOpenCalls = Math.max(1, config.getBreakerHalfOpenCalls());
+    this.failed = new boolean[windowSize];
+    this.slow = new boolean[windowSize];
+  }
+
+  /**
+   * @return <code>true</code> if the breaker is open and calls are being refused. Does
+   *         not move the breaker to half-open.
+   */
+  public boolean isOpen() {
+    return state == State.OPEN && System.currentTimeMillis() - openedAt < openDuration;
+  }
+
+  /**
+   * @return the current state.
+   */
+  public State getState() {
+    return state;
+  }
+
+  /**
+   * Asks to make a call. Every call that is permitted must be followed by a call to
+   * {@link #record(long, boolean)}, or to {@link #release()} if it never reached the
+   * directory.
+   *
+   * @return <code>true</code> if the call may go ahead.
+   */
+  public boolean acquirePermission() {
+    if (state == State.CLOSED) {
+      return true;
+    }
+    synchronized (this) {
+      if (state == State.OPEN) {
+        if (System.currentTimeMillis() - openedAt < openDuration) {
+          return false;
+        }
+        log.info("LDAP circuit breaker half-open, probing the directory");
+        state = State.HALF_OPEN;
+        halfOpenPermits = 0;
+        halfOpenSuccesses = 0;
+      }
+      if (state == State.HALF_OPEN) {
+        if (halfOpenPermits >= halfOpenCalls) {
+          return false;
+        }
+        halfOpenPermits++;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Records the outcome of a permitted call.
+   *
+   * @param durationNanos
+   *          how long the call took.
+   * @param failure
+   *          <code>true</code> if the call failed in a way that implicates the directory.
+   */
+  public synchronized void record(long durationNanos, boolean failure) {
+    boolean slowCall = durationNanos >= slowCallDurationNanos;
+    if (state == State.HALF_OPEN) {
+      if (failure || slowCall) {
+        open();
+      } else if (++halfOpenSuccesses >= halfOpenCalls) {
+        log.info("LDAP circuit breaker closed");
+        reset();
+      }
+      return;
+    }
+    if (state == State.OPEN) {
+      // a call that started before the breaker opened.
+      return;
+    }
+
+    if (recorded == failed.length) {
+      if (failed[next]) {
+        failures--;
+      }
+      if (slow[next]) {
+        slowCalls--;
+      }
+    } else {
+      recorded++;
+    }
+    failed[next] = failure;
+    slow[next] = slowCall;
+    if (failure) {
+      failures++;
+    }
+    if (slowCall) {
+      slowCalls++;
+    }
+    next = (next + 1) % failed.length;
+
+    if (recorded >= minimumCalls
+        && (failures * 100 >= failureRateThreshold * recorded
+            || slowCalls * 100 >= slowCallRateThreshold * recorded)) {
+      log.warn("LDAP circuit breaker opened: {} failed and {} slow of the last {} calls",
+          new Object[] { failures, slowCalls, recorded });
+      open();
+    }
+  }
+
+  /**
+   * Gives back the permit of a call that was abandoned before anything was sent to the
+   * directory, eg because the caller ran out of time waiting for a connection. Records
+   * nothing, so that a half-open breaker's trial call can be made by someone else.
+   */
+  public synchronized void release() {
+    if (state == State.HALF_OPEN && halfOpenPermits > 0) {
+      halfOpenPermits--;
+    }
+  }
+
+  /**
+   * @param e
+   *          an exception thrown by a directory operation.
+   * @return <code>true</code> if the exception counts against the directory. A missing
+   *         entry is a normal answer, not a failure, nor is the caller running out of
+   *         time.
+   */
+  public static boolean isFailure(LDAPException e) {
+    return e.getResultCode() != LDAPException.NO_SUCH_OBJECT
+        && !(e instanceof LdapDeadlineExceededException);
+  }
+
+  private void open() {
+    // before the volatile write, so that isOpen() never sees OPEN with an old time.
+    openedAt = System.currentTimeMillis();
+    state = State.OPEN;
+  }
+
+  private void reset() {
+    state = State.CLOSED;
+    next = 0;
+    recorded = 0;
+    failures = 0;
+    slowCalls = 0;
+  }
+}
@@ -0,0 +1,20 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPException;
+
+/**
+ * Thrown instead of contacting the directory while the {@link LdapCircuitBreaker} is
+ * open.
+ */
+public class LdapCircuitOpenException extends LDAPException {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = 2795413861095562711L;
+
+  public LdapCircuitOpenException(String message) {
+    super(message, LDAPException.UNAVAILABLE, null);
+  }
+
+}
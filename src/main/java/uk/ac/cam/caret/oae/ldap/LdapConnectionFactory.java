@@ -0,0 +1,44 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPException;
+
+/**
+ * Creates, checks and disposes of the physical connections held by a
+ * {@link LdapConnectionPool}.
+ */
+public interface LdapConnectionFactory {
+
+  /**
+   * @return a new connected, constrained and (if so configured) bound connection.
+   * @throws LDAPException
+   *           if the connection could not be established.
+   */
+  LDAPConnection makeConnection() throws LDAPException;
+
+  /**
+   * @param conn
+   *          a connection previously created by this factory.
+   * @return <code>true</code> if the connection can still be used.
+   */
+  boolean validateConnection(LDAPConnection conn);
+
+  /**
+   * Sends a cheap request down an idle connection, both to stop firewalls dropping it
+   * and to prove the directory still answers on it.
+   *
+   * @param conn
+   *          a connection previously created by this factory.
+   * @return <code>true</code> if the directory answered.
+   */
+  boolean keepAlive(LDAPConnection conn);
+
+  /**
+   * Disconnects the connection, ignoring any failure to do so.
+   *
+   * @param conn
+   *          a connection previously created by this factory.
+   */
+  void destroyConnection(LDAPConnection conn);
+
+}
@@ -38,9 +38,21 @@ public class LdapConnectionManagerConfig {
   /** Timeout (in milliseconds) for an operation. */
   private int operationTimeout = 5000;
 
-  /** The host to which to connect. */
+  /**
+   * The host to which to connect, or a list of replicas as understood by
+   * {@link LdapServerSet}.
+   */
   private String ldapHost;
 
+  /** How new connections are spread across replicas. */
+  private String loadBalancing = LdapServerSet.STRATEGY_ROUND_ROBIN;
+
+  /** Time (in milliseconds) a failed replica is left alone before it is probed. */
+  private long hostRetryInterval = 1000;
+
+  /** Maximum time (in milliseconds) a repeatedly failing replica is left alone. */
+  private long hostRetryMaxInterval = 60000;
+
   /** The port on which to connect. */
   private int ldapPort = LDAPConnection.DEFAULT_PORT;
 
@@ -62,6 +74,106 @@ public class LdapConnectionManagerConfig {
   /** Maximum number of connections to allow, if pooling is used. */
   private int poolMaxConns = 10;
 
+  /**
+   * Maximum time (in milliseconds) to wait for a pooled connection. Negative waits
+   * forever.
+   */
+  private long poolMaxWait = 5000;
+
+  /** Minimum number of idle connections the pool tries to keep ready. */
+  private int poolMinIdle = 0;
+
+  /** Maximum number of idle connections kept in the pool. */
+  private int poolMaxIdle = 10;
+
+  /** Whether pooled connections are validated before they are handed out. */
+  private boolean poolTestOnBorrow = true;
+
+  /** Whether pooled connections are validated when they are given back. */
+  private boolean poolTestOnReturn = false;
+
+  /**
+   * Time (in milliseconds) between connection maintenance runs, 0 or less disables
+   * them.
+   */
+  private long poolEvictionInterval = 60000;
+
+  /** Time (in milliseconds) a connection may sit idle before it may be evicted. */
+  private long poolMinEvictableIdleTime = 300000;
+
+  /** Time (in milliseconds) an idle connection may go unchecked before a keep-alive is sent. */
+  private long poolKeepAliveInterval = 60000;
+
+  /** Time (in milliseconds) after which a connection is retired. */
+  private long poolMaxAge = 1800000;
+
+  /** Whether directory operations are guarded by a circuit breaker. */
+  private boolean breakerEnabled = true;
+
+  /** Percentage of failed calls at which the circuit breaker opens. */
+  private int breakerFailureRateThreshold = 50;
+
+  /** Percentage of slow calls at which the circuit breaker opens. */
+  private int breakerSlowCallRateThreshold = 100;
+
+  /** Time (in milliseconds) after which a call counts as slow. */
+  private long breakerSlowCallDuration = 5000;
+
+  /** Number of recent calls the circuit breaker looks at. */
+  private int breakerWindowSize = 20;
+
+  /** Number of calls recorded before the circuit breaker may open. */
+  private int breakerMinimumCalls = 10;
+
+  /** Time (in milliseconds) the circuit breaker stays open before probing. */
+  private long breakerOpenDuration = 30000;
+
+  /** Number of probe calls that must succeed to close the circuit breaker. */
+  private int breakerHalfOpenCalls = 3;
+
+  /** Number of connections shared by asynchronous operations. */
+  private int asyncConnections = 2;
+
+  /** Maximum number of asynchronous operations in flight. */
+  private int asyncMaxOutstanding = 1000;
+
+  /** Time (in milliseconds) after which an asynchronous operation is abandoned. */
+  private long asyncTimeout = 30000;
+
+  /**
+   * Maximum number of bound DNs with pooled connections. Off by default: pooled binds
+   * are meant for service accounts, as the password is not checked again by the
+   * directory.
+   */
+  private int boundPoolMaxKeys = 0;
+
+  /** Maximum number of pooled connections per bound DN. */
+  private int boundPoolMaxConnsPerKey = 2;
+
+  /** Number of connections opened when the manager is activated. */
+  private int warmUpConnections = 2;
+
+  /** DN of an entry read to prime the lookup path once warmed up. */
+  private String warmUpDn = null;
+
+  /** Timeout (in milliseconds) for connecting to a replica, 0 for none. */
+  private int connectTimeout = 5000;
+
+  /** Whether slow reads are sent to a second replica as well. */
+  private boolean hedgingEnabled = false;
+
+  /** Percentile of recent read times after which a read is hedged. */
+  private int hedgePercentile = 95;
+
+  /** Time (in milliseconds) a read is always given before it is hedged. */
+  private long hedgeMinDelay = 5;
+
+  /** Most hedged reads, as a percentage of reads. */
+  private int hedgeBudget = 5;
+
+  /** Number of reads the hedging percentile is taken over. */
+  private int hedgeWindowSize = 1000;
+
   public LdapConnectionManagerConfig() {
   }
 
@@ -88,6 +200,39 @@ public class LdapConnectionManagerConfig {
     LdapConnectionManagerConfig config = new LdapConnectionManagerConfig(secureConnection, tls,
         keystoreLocation, keystorePassword, operationTimeout, ldapHost, ldapPort, loginUser,
         loginPassword, followReferrals, autoBind, pooling, poolMaxConns);
+    config.setLoadBalancing(loadBalancing);
+    config.setHostRetryInterval(hostRetryInterval);
+    config.setHostRetryMaxInterval(hostRetryMaxInterval);
+    config.setPoolMaxWait(poolMaxWait);
+    config.setPoolMinIdle(poolMinIdle);
+    config.setPoolMaxIdle(poolMaxIdle);
+    config.setPoolTestOnBorrow(poolTestOnBorrow);
+    config.setPoolTestOnReturn(poolTestOnReturn);
+    config.setPoolEvictionInterval(poolEvictionInterval);
+    config.setPoolMinEvictableIdleTime(poolMinEvictableIdleTime);
+    config.setPoolKeepAliveInterval(poolKeepAliveInterval);
+    config.setPoolMaxAge(poolMaxAge);
+    config.setBreakerEnabled(breakerEnabled);
+    config.setBreakerFailureRateThreshold(breakerFailureRateThreshold);
+    config.setBreakerSlowCallRateThreshold(breakerSlowCallRateThreshold);
+    config.setBreakerSlowCallDuration(breakerSlowCallDuration);
+    config.setBreakerWindowSize(breakerWindowSize);
+    config.setBreakerMinimumCalls(breakerMinimumCalls);
+    config.setBreakerOpenDuration(breakerOpenDuration);
+    config.setBreakerHalfOpenCalls(breakerHalfOpenCalls);
+    config.setAsyncConnections(asyncConnections);
+    config.setAsyncMaxOutstanding(asyncMaxOutstanding);
+    config.setAsyncTimeout(asyncTimeout);
+    config.setBoundPoolMaxKeys(boundPoolMaxKeys);
+    config.setBoundPoolMaxConnsPerKey(boundPoolMaxConnsPerKey);
+    config.setWarmUpConnections(warmUpConnections);
+    config.setWarmUpDn(warmUpDn);
+    config.setConnectTimeout(connectTimeout);
+    config.setHedgingEnabled(hedgingEnabled);
+    config.setHedgePercentile(hedgePercentile);
+    config.setHedgeMinDelay(hedgeMinDelay);
+    config.setHedgeBudget(hedgeBudget);
+    config.setHedgeWindowSize(hedgeWindowSize);
     return config;
   }
 
@@ -145,7 +290,7 @@ public class LdapConnectionManagerConfig {
   }
 
   /**
-   * @return the directory operation timeout
+   * @return the directory operation timeout (in milliseconds)
    */
   public int getOperationTimeout() {
     return operationTimeout;
@@ -153,7 +298,7 @@ public class LdapConnectionManagerConfig {
 
   /**
    * @param operationTimeout
-   *          the directory operation timeout to set.
+   *          the directory operation timeout (in milliseconds) to set.
    */
   public void setOperationTimeout(int operationTimeout) {
     this.operationTimeout = operationTimeout;
@@ -174,6 +319,57 @@ public class LdapConnectionManagerConfig {
     this.ldapHost = ldapHost;
   }
 
+  /**
+   * @return how new connections are spread across replicas, one of the
+   *         <code>STRATEGY_</code> constants of {@link LdapServerSet}.
+   */
+  public String getLoadBalancing() {
+    return loadBalancing;
+  }
+
+  /**
+   * @param loadBalancing
+   *          how new connections are spread across replicas, one of the
+   *          <code>STRATEGY_</code> constants of {@link LdapServerSet}.
+   */
+  public void setLoadBalancing(String loadBalancing) {
+    this.loadBalancing = loadBalancing;
+  }
+
+  /**
+   * @return the time (in milliseconds) a failed replica is left alone before it is
+   *         probed.
+   */
+  public long getHostRetryInterval() {
+    return hostRetryInterval;
+  }
+
+  /**
+   * @param hostRetryInterval
+   *          the time (in milliseconds) a failed replica is left alone before it is
+   *          probed. Doubles with each consecutive failure.
+   */
+  public void setHostRetryInterval(long hostRetryInterval) {
+    this.hostRetryInterval = hostRetryInterval;
+  }
+
+  /**
+   * @return the maximum time (in milliseconds) a repeatedly failing replica is left
+   *         alone.
+   */
+  public long getHostRetryMaxInterval() {
+    return hostRetryMaxInterval;
+  }
+
+  /**
+   * @param hostRetryMaxInterval
+   *          the maximum time (in milliseconds) a repeatedly failing replica is left
+   *          alone.
+   */
+  public void setHostRetryMaxInterval(long hostRetryMaxInterval) {
+    this.hostRetryMaxInterval = hostRetryMaxInterval;
+  }
+
   /**
    * @return the LDAP connection port.
    */
@@ -305,4 +501,463 @@ public class LdapConnectionManagerConfig {
   public void setPoolMaxConns(int maxConns) {
     this.poolMaxConns = maxConns;
   }
+
+  /**
+   * @return the maximum time (in milliseconds) to wait for a pooled connection,
+   *         negative to wait forever.
+   */
+  public long getPoolMaxWait() {
+    return poolMaxWait;
+  }
+
+  /**
+   * @param poolMaxWait
+   *          the maximum time (in milliseconds) to wait for a pooled connection,
+   *          negative to wait forever.
+   */
+  public void setPoolMaxWait(long poolMaxWait) {
+    this.poolMaxWait = poolMaxWait;
+  }
+
+  /**
+   * @return the minimum number of idle connections the pool tries to keep ready.
+   */
+  public int getPoolMinIdle() {
+    return poolMinIdle;
+  }
+
+  /**
+   * @param poolMinIdle
+   *          the minimum number of idle connections the pool tries to keep ready.
+   */
+  public void setPoolMinIdle(int poolMinIdle) {
+    this.poolMinIdle = poolMinIdle;
+  }
+
+  /**
+   * @return the maximum number of idle connections kept in the pool.
+   */
+  public int getPoolMaxIdle() {
+    return poolMaxIdle;
+  }
+
+  /**
+   * @param poolMaxIdle
+   *          the maximum number of idle connections kept in the pool.
+   */
+  public void setPoolMaxIdle(int poolMaxIdle) {
+    this.poolMaxIdle = poolMaxIdle;
+  }
+
+  /**
+   * @return if <code>true</code> pooled connections are validated before they are
+   *         handed out.
+   */
+  public boolean isPoolTestOnBorrow() {
+    return poolTestOnBorrow;
+  }
+
+  /**
+   * @param poolTestOnBorrow
+   *          if <code>true</code> pooled connections are validated before they are
+   *          handed out.
+   */
+  public void setPoolTestOnBorrow(boolean poolTestOnBorrow) {
+    this.poolTestOnBorrow = poolTestOnBorrow;
+  }
+
+  /**
+   * @return if <code>true</code> pooled connections are validated when they are
+   *         given back.
+   */
+  public boolean isPoolTestOnReturn() {
+    return poolTestOnReturn;
+  }
+
+  /**
+   * @param poolTestOnReturn
+   *          if <code>true</code> pooled connections are validated when they are
+   *          given back.
+   */
+  public void setPoolTestOnReturn(boolean poolTestOnReturn) {
+    this.poolTestOnReturn = poolTestOnReturn;
+  }
+
+  /**
+   * @return the time (in milliseconds) between connection maintenance runs.
+   */
+  public long getPoolEvictionInterval() {
+    return poolEvictionInterval;
+  }
+
+  /**
+   * @param poolEvictionInterval
+   *          the time (in milliseconds) between connection maintenance runs, 0 or
+   *          less disables maintenance.
+   */
+  public void setPoolEvictionInterval(long poolEvictionInterval) {
+    this.poolEvictionInterval = poolEvictionInterval;
+  }
+
+  /**
+   * @return the time (in milliseconds) a connection may sit idle before it may be
+   *         evicted.
+   */
+  public long getPoolMinEvictableIdleTime() {
+    return poolMinEvictableIdleTime;
+  }
+
+  /**
+   * @param poolMinEvictableIdleTime
+   *          the time (in milliseconds) a connection may sit idle before it may be
+   *          evicted.
+   */
+  public void setPoolMinEvictableIdleTime(long poolMinEvictableIdleTime) {
+    this.poolMinEvictableIdleTime = poolMinEvictableIdleTime;
+  }
+
+  /**
+   * @return if <code>true</code> directory operations are guarded by a {@link LdapCircuitBreaker}.
+   */
+  public boolean isBreakerEnabled() {
+    return breakerEnabled;
+  }
+
+  /**
+   * @param breakerEnabled
+   *          if <code>true</code> directory operations are guarded by a {@link LdapCircuitBreaker}.
+   */
+  public void setBreakerEnabled(boolean breakerEnabled) {
+    this.breakerEnabled = breakerEnabled;
+  }
+
+  /**
+   * @return the percentage of failed calls at which the circuit breaker opens.
+   */
+  public int getBreakerFailureRateThreshold() {
+    return breakerFailureRateThreshold;
+  }
+
+  /**
+   * @param breakerFailureRateThreshold
+   *          the percentage of failed calls at which the circuit breaker opens.
+   */
+  public void setBreakerFailureRateThreshold(int breakerFailureRateThreshold) {
+    this.breakerFailureRateThreshold = breakerFailureRateThreshold;
+  }
+
+  /**
+   * @return the percentage of slow calls at which the circuit breaker opens, more than 100 never opens on slow calls.
+   */
+  public int getBreakerSlowCallRateThreshold() {
+    return breakerSlowCallRateThreshold;
+  }
+
+  /**
+   * @param breakerSlowCallRateThreshold
+   *          the percentage of slow calls at which the circuit breaker opens, more than 100 never opens on slow calls.
+   */
+  public void setBreakerSlowCallRateThreshold(int breakerSlowCallRateThreshold) {
+    this.breakerSlowCallRateThreshold = breakerSlowCallRateThreshold;
+  }
+
+  /**
+   * @return the time (in milliseconds) after which a call counts as slow.
+   */
+  public long getBreakerSlowCallDuration() {
+    return breakerSlowCallDuration;
+  }
+
+  /**
+   * @param breakerSlowCallDuration
+   *          the time (in milliseconds) after which a call counts as slow.
+   */
+  public void setBreakerSlowCallDuration(long breakerSlowCallDuration) {
+    this.breakerSlowCallDuration = breakerSlowCallDuration;
+  }
+
+  /**
+   * @return the number of recent calls the circuit breaker looks at.
+   */
+  public int getBreakerWindowSize() {
+    return breakerWindowSize;
+  }
+
+  /**
+   * @param breakerWindowSize
+   *          the number of recent calls the circuit breaker looks at.
+   */
+  public void setBreakerWindowSize(int breakerWindowSize) {
+    this.breakerWindowSize = breakerWindowSize;
+  }
+
+  /**
+   * @return the number of calls recorded before the circuit breaker may open.
+   */
+  public int getBreakerMinimumCalls() {
+    return breakerMinimumCalls;
+  }
+
+  /**
+   * @param breakerMinimumCalls
+   *          the number of calls recorded before the circuit breaker may open.
+   */
+  public void setBreakerMinimumCalls(int breakerMinimumCalls) {
+    this.breakerMinimumCalls = breakerMinimumCalls;
+  }
+
+  /**
+   * @return the time (in milliseconds) the circuit breaker stays open before probing.
+   */
+  public long getBreakerOpenDuration() {
+    return breakerOpenDuration;
+  }
+
+  /**
+   * @param breakerOpenDuration
+   *          the time (in milliseconds) the circuit breaker stays open before probing.
+   */
+  public void setBreakerOpenDuration(long breakerOpenDuration) {
+    this.breakerOpenDuration = breakerOpenDuration;
+  }
+
+  /**
+   * @return the number of probe calls that must succeed to close the circuit breaker.
+   */
+  public int getBreakerHalfOpenCalls() {
+    return breakerHalfOpenCalls;
+  }
+
+  /**
+   * @param breakerHalfOpenCalls
+   *          the number of probe calls that must succeed to close the circuit breaker.
+   */
+  public void setBreakerHalfOpenCalls(int breakerHalfOpenCalls) {
+    this.breakerHalfOpenCalls = breakerHalfOpenCalls;
+  }
+
+  /**
+   * @return the number of connections shared by asynchronous operations, 0 or less runs them synchronously.
+   */
+  public int getAsyncConnections() {
+    return asyncConnections;
+  }
+
+  /**
+   * @param asyncConnections
+   *          the number of connections shared by asynchronous operations, 0 or less runs them synchronously.
+   */
+  public void setAsyncConnections(int asyncConnections) {
+    this.asyncConnections = asyncConnections;
+  }
+
+  /**
+   * @return the maximum number of asynchronous operations in flight.
+   */
+  public int getAsyncMaxOutstanding() {
+    return asyncMaxOutstanding;
+  }
+
+  /**
+   * @param asyncMaxOutstanding
+   *          the maximum number of asynchronous operations in flight.
+   */
+  public void setAsyncMaxOutstanding(int asyncMaxOutstanding) {
+    this.asyncMaxOutstanding = asyncMaxOutstanding;
+  }
+
+  /**
+   * @return the time (in milliseconds) after which an asynchronous operation is abandoned.
+   */
+  public long getAsyncTimeout() {
+    return asyncTimeout;
+  }
+
+  /**
+   * @param asyncTimeout
+   *          the time (in milliseconds) after which an asynchronous operation is abandoned.
+   */
+  public void setAsyncTimeout(long asyncTimeout) {
+    this.asyncTimeout = asyncTimeout;
+  }
+
+  /**
+   * @return the time (in milliseconds) an idle connection may go unchecked before a keep-alive is sent, 0 or less disables keep-alives.
+   */
+  public long getPoolKeepAliveInterval() {
+    return poolKeepAliveInterval;
+  }
+
+  /**
+   * @param poolKeepAliveInterval
+   *          the time (in milliseconds) an idle connection may go unchecked before a keep-alive is sent, 0 or less disables keep-alives.
+   */
+  public void setPoolKeepAliveInterval(long poolKeepAliveInterval) {
+    this.poolKeepAliveInterval = poolKeepAliveInterval;
+  }
+
+  /**
+   * @return the time (in milliseconds) after which a connection is retired, 0 or less keeps connections forever.
+   */
+  public long getPoolMaxAge() {
+    return poolMaxAge;
+  }
+
+  /**
+   * @param poolMaxAge
+   *          the time (in milliseconds) after which a connection is retired, 0 or less keeps connections forever.
+   */
+  public void setPoolMaxAge(long poolMaxAge) {
+    this.poolMaxAge = poolMaxAge;
+  }
+
+  /**
+   * @return the maximum number of bound DNs with pooled connections, 0 or less disables pooling of bound connections.
+   */
+  public int getBoundPoolMaxKeys() {
+    return boundPoolMaxKeys;
+  }
+
+  /**
+   * @param boundPoolMaxKeys
+   *          the maximum number of bound DNs with pooled connections, 0 or less disables pooling of bound connections.
+   */
+  public void setBoundPoolMaxKeys(int boundPoolMaxKeys) {
+    this.boundPoolMaxKeys = boundPoolMaxKeys;
+  }
+
+  /**
+   * @return the maximum number of pooled connections per bound DN.
+   */
+  public int getBoundPoolMaxConnsPerKey() {
+    return boundPoolMaxConnsPerKey;
+  }
+
+  /**
+   * @param boundPoolMaxConnsPerKey
+   *          the maximum number of pooled connections per bound DN.
+   */
+  public void setBoundPoolMaxConnsPerKey(int boundPoolMaxConnsPerKey) {
+    this.boundPoolMaxConnsPerKey = boundPoolMaxConnsPerKey;
+  }
+
+  /**
+   * @return the number of pooled connections opened and validated, off the activation thread, when the manager is activated; 0 or less disables warm-up.
+   */
+  public int getWarmUpConnections() {
+    return warmUpConnections;
+  }
+
+  /**
+   * @param warmUpConnections
+   *          the number of pooled connections opened and validated, off the activation thread, when the manager is activated; 0 or less disables warm-up.
+   */
+  public void setWarmUpConnections(int warmUpConnections) {
+    this.warmUpConnections = warmUpConnections;
+  }
+
+  /**
+   * @return the DN of an entry read through the manager once connections are warmed up, to prime the lookup path; null or empty to skip.
+   */
+  public String getWarmUpDn() {
+    return warmUpDn;
+  }
+
+  /**
+   * @param warmUpDn
+   *          the DN of an entry read through the manager once connections are warmed up, to prime the lookup path; null or empty to skip.
+   */
+  public void setWarmUpDn(String warmUpDn) {
+    this.warmUpDn = warmUpDn;
+  }
+
+  /**
+   * @return the timeout (in milliseconds) for connecting to a replica, 0 for none.
+   */
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * @param connectTimeout
+   *          the timeout (in milliseconds) for connecting to a replica, 0 for none.
+   */
+  public void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * @return whether slow reads are sent to a second replica as well.
+   */
+  public boolean isHedgingEnabled() {
+    return hedgingEnabled;
+  }
+
+  /**
+   * @param hedgingEnabled
+   *          whether slow reads are sent to a second replica as well.
+   */
+  public void setHedgingEnabled(boolean hedgingEnabled) {
+    this.hedgingEnabled = hedgingEnabled;
+  }
+
+  /**
+   * @return the percentile of recent read times after which a read is hedged.
+   */
+  public int getHedgePercentile() {
+    return hedgePercentile;
+  }
+
+  /**
+   * @param hedgePercentile
+   *          the percentile of recent read times after which a read is hedged.
+   */
+  public void setHedgePercentile(int hedgePercentile) {
+    this.hedgePercentile = hedgePercentile;
+  }
+
+  /**
+   * @return the time (in milliseconds) a read is always given before it is hedged.
+   */
+  public long getHedgeMinDelay() {
+    return hedgeMinDelay;
+  }
+
+  /**
+   * @param hedgeMinDelay
+   *          the time (in milliseconds) a read is always given before it is hedged.
+   */
+  public void setHedgeMinDelay(long hedgeMinDelay) {
+    this.hedgeMinDelay = hedgeMinDelay;
+  }
+
+  /**
+   * @return the most hedged reads, as a percentage of reads.
+   */
+  public int getHedgeBudget() {
+    return hedgeBudget;
+  }
+
+  /**
+   * @param hedgeBudget
+   *          the most hedged reads, as a percentage of reads.
+   */
+  public void setHedgeBudget(int hedgeBudget) {
+    this.hedgeBudget = hedgeBudget;
+  }
+
+  /**
+   * @return the number of reads the hedging percentile is taken over.
+   */
+  public int getHedgeWindowSize() {
+    return hedgeWindowSize;
+  }
+
+  /**
+   * @param hedgeWindowSize
+   *          the number of reads the hedging percentile is taken over.
+   */
+  public void setHedgeWindowSize(int hedgeWindowSize) {
+    this.hedgeWindowSize = hedgeWindowSize;
+  }
 }
@@ -0,0 +1,545 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pool of <code>LDAPConnections</code>. Physical connections are created,
+ * validated and destroyed by a {@link LdapConnectionFactory}; the pool only decides
+ * when. Borrowers wait up to the configured maximum for a connection once
+ * <code>pool.max</code> connections exist, idle connections are handed out most
+ * recently used first. {@link #maintain()}, run periodically, closes connections that
+ * have been idle too long, retires connections older than the maximum age so that load
+ * rebalances across replicas, and sends a cheap request down connections that have
+ * been idle a while to keep them open and prove they still work.
+ */
+public class LdapConnectionPool {
+
+  private static final Logger log = LoggerFactory.getLogger(LdapConnectionPool.class);
+
+  /**
+   * Book keeping for a physical connection.
+   */
+  private static class PooledConnection {
+    private final LDAPConnection connection;
+    private final long created;
+    private long lastReturned;
+    private long lastChecked;
+
+    PooledConnection(LDAPConnection connection) {
+      this.connection = connection;
+      this.created = System.currentTimeMillis();
+      this.lastReturned = created;
+      this.lastChecked = created;
+    }
+  }
+
+  private final LdapConnectionFactory factory;
+
+  private final int maxActive;
+
+  private final int maxIdle;
+
+  private final int minIdle;
+
+  private final long maxWait;
+
+  private final boolean testOnBorrow;
+
+  private final boolean testOnReturn;
+
+  private final long minEvictableIdleTime;
+
+  private final long keepAliveInterval;
+
+  private final long maxAge;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final Condition available = lock.newCondition();
+
+  /** Idle connections, most recently returned first. */
+  private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+
+  /** Every live connection owned by the pool, idle or borrowed. */
+  private final Map<LDAPConnection, PooledConnection> connections =
+      new IdentityHashMap<LDAPConnection, PooledConnection>();
+
+  /** Slots reserved by threads that are busy creating a connection. */
+  private int creating;
+
+  private int waiters;
+
+  private boolean closed;
+
+  private final AtomicLong created = new AtomicLong();
+
+  private final AtomicLong destroyed = new AtomicLong();
+
+  private final AtomicLong borrowed = new AtomicLong();
+
+  private final AtomicLong waitTimeouts = new AtomicLong();
+
+  private final AtomicLong validationFailures = new AtomicLong();
+
+  private final AtomicLong keepAlives = new AtomicLong();
+
+  private final AtomicLong keepAliveFailures = new AtomicLong();
+
+  private final AtomicLong evicted = new AtomicLong();
+
+  private final AtomicLong retired = new AtomicLong();
+
+  /** Time borrowers spent waiting for a connection or a free slot. */
+  private final LdapTimer waitTime = new LdapTimer();
+
+  public LdapConnectionPool(LdapConnectionFactory factory, LdapConnectionManagerConfig config) {
+    this.factory = factory;
+    this.maxActive = Math.max(1, config.getPoolMaxConns());
+    this.maxIdle = Math.max(0, Math.min(config.getPoolMaxIdle(), maxActive));
+    this.minIdle = Math.max(0, Math.min(config.getPoolMinIdle(), maxIdle));
+    this.maxWait = config.getPoolMaxWait();
+    this.testOnBorrow = config.isPoolTestOnBorrow();
+    this.testOnReturn = config.isPoolTestOnReturn();
+    this.minEvictableIdleTime = config.getPoolMinEvictableIdleTime();
+    this.keepAliveInterval = config.getPoolKeepAliveInterval();
+    this.maxAge = config.getPoolMaxAge();
+  }
+
+  /**
+   * Takes a connection from the pool, creating one if there is no idle connection and
+   * the pool has not reached its maximum size, otherwise waiting for one to be
+   * returned.
+   *
+   * @return a connection that must be given back with
+   *         {@link #returnConnection(LDAPConnection)}.
+   * @throws LDAPException
+   *           if a new connection could not be made, or no connection became available
+   *           within the maximum wait.
+   */
+  public LDAPConnection borrowConnection() throws LDAPException {
+    return borrowConnection(factory);
+  }
+
+  /**
+   * As {@link #borrowConnection()}, but if a new connection is needed it is made by
+   * the given factory rather than the pool's own. Used where the pool cannot hold the
+   * credentials needed to make connections itself.
+   *
+   * @param creator
+   *          makes a new connection if one is needed.
+   */
+  public LDAPConnection borrowConnection(LdapConnectionFactory creator) throws LDAPException {
+    return borrowConnection(creator, maxWait);
+  }
+
+  /**
+   * As {@link #borrowConnection(LdapConnectionFactory)}, waiting at most the given time
+   * for a connection to be returned rather than the pool's maximum wait.
+   *
+   * @param wait
+   *          the most time (in milliseconds) to wait, negative to wait indefinitely.
+   */
+  public LDAPConnection borrowConnection(LdapConnectionFactory creator, long wait)
+      throws LDAPException {
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(wait);
+    boolean waited = false;
+    while (true) {
+      PooledConnection pooled = null;
+      lock.lock();
+      try {
+        while (pooled == null) {
+          if (closed) {
+            throw new IllegalStateException("LDAP connection pool has been closed.");
+          }
+          if (!idle.isEmpty()) {
+            pooled = idle.removeFirst();
+          } else if (connections.size() + creating < maxActive) {
+            creating++;
+            break;
+          } else {
+            try {
+              awaitConnection(deadline, wait);
+            } catch (LDAPException e) {
+              waitTime.recordSince(start, true);
+              throw e;
+            }
+          }
+        }
+      } finally {
+        lock.unlock();
+      }
+      if (!waited) {
+        waitTime.recordSince(start, false);
+        waited = true;
+      }
+
+      if (pooled == null) {
+        LDAPConnection conn = createConnection(creator);
+        borrowed.incrementAndGet();
+        return conn;
+      }
+      if (isExpired(pooled, System.currentTimeMillis())) {
+        retired.incrementAndGet();
+        invalidateConnection(pooled.connection);
+      } else if (!testOnBorrow || factory.validateConnection(pooled.connection)) {
+        borrowed.incrementAndGet();
+        return pooled.connection;
+      } else {
+        log.debug("borrowConnection(): discarding connection that failed validation");
+        validationFailures.incrementAndGet();
+        invalidateConnection(pooled.connection);
+      }
+    }
+  }
+
+  /**
+   * Gives a connection back to the pool.
+   *
+   * @param conn
+   *          a connection obtained from {@link #borrowConnection()}.
+   * @return <code>false</code> if the connection does not belong to this pool, in which
+   *         case the caller remains responsible for it.
+   */
+  public boolean returnConnection(LDAPConnection conn) {
+    PooledConnection pooled;
+    lock.lock();
+    try {
+      pooled = connections.get(conn);
+      if (pooled == null) {
+        return false;
+      }
+      if (idle.contains(pooled)) {
+        log.warn("returnConnection(): connection returned more than once");
+        return true;
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    if (isExpired(pooled, System.currentTimeMillis())) {
+      retired.incrementAndGet();
+      invalidateConnection(conn);
+      return true;
+    }
+    if (testOnReturn && !factory.validateConnection(conn)) {
+      log.debug("returnConnection(): discarding connection that failed validation");
+      validationFailures.incrementAndGet();
+      invalidateConnection(conn);
+      return true;
+    }
+    release(pooled, true);
+    return true;
+  }
+
+  /**
+   * Removes a connection from the pool and destroys it. Use this rather than
+   * {@link #returnConnection(LDAPConnection)} when a connection is known to be broken.
+   *
+   * @param conn
+   *          a connection obtained from {@link #borrowConnection()}.
+   */
+  public void invalidateConnection(LDAPConnection conn) {
+    lock.lock();
+    try {
+      PooledConnection pooled = connections.remove(conn);
+      if (pooled == null) {
+        return;
+      }
+      idle.remove(pooled);
+      available.signal();
+    } finally {
+      lock.unlock();
+    }
+    destroy(conn);
+  }
+
+  /**
+   * Runs one round of maintenance over the idle connections:
+   * <ul>
+   * <li>connections older than the maximum age are retired;</li>
+   * <li>connections idle for longer than the minimum evictable idle time are closed,
+   * keeping at least the minimum number of idle connections;</li>
+   * <li>connections that have not been used or checked for the keep-alive interval
+   * are checked with {@link LdapConnectionFactory#keepAlive(LDAPConnection)}, and
+   * closed if the check fails;</li>
+   * </ul>
+   * and finally tops the idle connections back up to the minimum.
+   */
+  public void maintain() {
+    List<PooledConnection> retire = new LinkedList<PooledConnection>();
+    List<PooledConnection> evict = new LinkedList<PooledConnection>();
+    List<PooledConnection> check = new LinkedList<PooledConnection>();
+    long now = System.currentTimeMillis();
+    lock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      // oldest idle connections are at the end of the list.
+      for (ListIterator<PooledConnection> i = idle.listIterator(idle.size());
+          i.hasPrevious();) {
+        PooledConnection pooled = i.previous();
+        if (isExpired(pooled, now)) {
+          i.remove();
+          connections.remove(pooled.connection);
+          retire.add(pooled);
+        } else if (idle.size() > minIdle && now - pooled.lastReturned > minEvictableIdleTime) {
+          i.remove();
+          connections.remove(pooled.connection);
+          evict.add(pooled);
+        } else if (keepAliveInterval > 0
+            && now - Math.max(pooled.lastReturned, pooled.lastChecked) > keepAliveInterval) {
+          // take it out of the idle list while it is checked, as if borrowed.
+          i.remove();
+          check.add(pooled);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (retire.size() + evict.size() > 0) {
+      log.debug("maintain(): retiring {} old and closing {} idle connections", retire.size(),
+          evict.size());
+    }
+    retired.addAndGet(retire.size());
+    evicted.addAndGet(evict.size());
+    for (PooledConnection pooled : retire) {
+      destroy(pooled.connection);
+    }
+    for (PooledConnection pooled : evict) {
+      destroy(pooled.connection);
+    }
+    for (PooledConnection pooled : check) {
+      keepAlives.incrementAndGet();
+      if (factory.keepAlive(pooled.connection)) {
+        pooled.lastChecked = System.currentTimeMillis();
+        release(pooled, false);
+      } else {
+        log.debug("maintain(): discarding idle connection that failed its keep-alive");
+        keepAliveFailures.incrementAndGet();
+        invalidateConnection(pooled.connection);
+      }
+    }
+    ensureMinIdle();
+  }
+
+  /**
+   * Creates connections until the pool holds at least the minimum number of idle
+   * connections, or has reached its maximum size.
+   */
+  public void ensureMinIdle() {
+    while (true) {
+      lock.lock();
+      try {
+        if (closed || idle.size() + creating >= minIdle
+            || connections.size() + creating >= maxActive) {
+          return;
+        }
+        creating++;
+      } finally {
+        lock.unlock();
+      }
+      LDAPConnection conn;
+      try {
+        conn = createConnection(factory);
+      } catch (LDAPException e) {
+        log.warn("ensureMinIdle(): failed to create an idle connection: {}", e.getMessage());
+        return;
+      }
+      returnConnection(conn);
+    }
+  }
+
+  /**
+   * Closes the pool, destroying all idle connections. Connections that are still
+   * borrowed are destroyed as they are returned.
+   */
+  public void close() {
+    List<PooledConnection> destroy;
+    lock.lock();
+    try {
+      closed = true;
+      destroy = new LinkedList<PooledConnection>(idle);
+      for (PooledConnection pooled : destroy) {
+        connections.remove(pooled.connection);
+      }
+      idle.clear();
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    for (PooledConnection pooled : destroy) {
+      destroy(pooled.connection);
+    }
+  }
+
+  /**
+   * @return the number of connections currently borrowed from the pool.
+   */
+  public int getNumActive() {
+    lock.lock();
+    try {
+      return connections.size() - idle.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of idle connections in the pool.
+   */
+  public int getNumIdle() {
+    lock.lock();
+    try {
+      return idle.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of threads waiting for a connection.
+   */
+  public int getNumWaiters() {
+    lock.lock();
+    try {
+      return waiters;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the pool's health counters and gauges: connections created, destroyed,
+   *         borrowed, retired for age, evicted for idleness, validation and keep-alive
+   *         failures, borrow timeouts, the current active, idle and waiting counts, and
+   *         how long borrowers waited.
+   */
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+    lock.lock();
+    try {
+      statistics.put("active", connections.size() - idle.size());
+      statistics.put("idle", idle.size());
+      statistics.put("waiters", waiters);
+      statistics.put("maxActive", maxActive);
+    } finally {
+      lock.unlock();
+    }
+    statistics.put("created", created.get());
+    statistics.put("destroyed", destroyed.get());
+    statistics.put("borrowed", borrowed.get());
+    statistics.put("waitTimeouts", waitTimeouts.get());
+    statistics.put("validationFailures", validationFailures.get());
+    statistics.put("keepAlives", keepAlives.get());
+    statistics.put("keepAliveFailures", keepAliveFailures.get());
+    statistics.put("evicted", evicted.get());
+    statistics.put("retired", retired.get());
+    statistics.put("wait", waitTime.getStatistics());
+    return statistics;
+  }
+
+  /**
+   * Puts a connection back on the idle list, or destroys it if the pool is closed or
+   * already holds the maximum number of idle connections.
+   *
+   * @param used
+   *          <code>true</code> if the connection is coming back from a borrower, rather
+   *          than from a keep-alive check.
+   */
+  private void release(PooledConnection pooled, boolean used) {
+    lock.lock();
+    try {
+      if (!closed && idle.size() < maxIdle) {
+        if (used) {
+          pooled.lastReturned = System.currentTimeMillis();
+          idle.addFirst(pooled);
+        } else {
+          idle.addLast(pooled);
+        }
+        available.signal();
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+    invalidateConnection(pooled.connection);
+  }
+
+  private boolean isExpired(PooledConnection pooled, long now) {
+    return maxAge > 0 && now - pooled.created > maxAge;
+  }
+
+  private void destroy(LDAPConnection conn) {
+    destroyed.incrementAndGet();
+    factory.destroyConnection(conn);
+  }
+
+  /**
+   * Creates a connection for a slot already reserved by incrementing
+   * <code>creating</code>.
+   */
+  private LDAPConnection createConnection(LdapConnectionFactory creator) throws LDAPException {
+    LDAPConnection conn = null;
+    try {
+      conn = creator.makeConnection();
+      created.incrementAndGet();
+      return conn;
+    } finally {
+      lock.lock();
+      try {
+        creating--;
+        if (conn != null) {
+          connections.put(conn, new PooledConnection(conn));
+        } else {
+          // let a waiter have a go at creating one instead.
+          available.signal();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Waits, with the lock held, until signalled or the deadline passes.
+   */
+  private void awaitConnection(long deadline, long wait) throws LDAPException {
+    waiters++;
+    try {
+      if (wait < 0) {
+        available.await();
+      } else {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          waitTimeouts.incrementAndGet();
+          throw new LDAPException("Timed out after " + wait
+              + "ms waiting for a pooled LDAP connection", LDAPException.LDAP_TIMEOUT, null);
+        }
+        available.awaitNanos(remaining);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LDAPException("Interrupted waiting for a pooled LDAP connection",
+          LDAPException.LDAP_TIMEOUT, null);
+    } finally {
+      waiters--;
+    }
+  }
+}
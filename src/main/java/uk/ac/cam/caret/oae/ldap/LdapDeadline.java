@@ -0,0 +1,83 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time by which a caller needs an answer from the directory, usually what is left of
+ * the budget of the request it is serving. Passed to the connection manager so that
+ * connecting, binding and reading each wait at most the time remaining, and so that
+ * nothing is sent to the directory once the caller has given up.
+ */
+public final class LdapDeadline {
+
+  /** in terms of {@link System#nanoTime()} */
+  private final long deadline;
+
+  private LdapDeadline(long deadline) {
+    this.deadline = deadline;
+  }
+
+  /**
+   * @param millis
+   *          the time from now (in milliseconds) the caller can wait.
+   * @return a deadline that many milliseconds from now.
+   */
+  public static LdapDeadline after(long millis) {
+    return new LdapDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  /**
+   * @param time
+   *          the time (as {@link System#currentTimeMillis()}) by which the caller needs an
+   *          answer.
+   * @return a deadline at that time.
+   */
+  public static LdapDeadline at(long time) {
+    return after(time - System.currentTimeMillis());
+  }
+
+  /**
+   * @return the time left (in milliseconds), 0 once the deadline has passed.
+   */
+  public long remaining() {
+    long remaining = deadline - System.nanoTime();
+    // round up, so that a deadline less than a millisecond away has not passed yet.
+    return remaining <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(remaining + 999999);
+  }
+
+  /**
+   * @return <code>true</code> once the deadline has passed.
+   */
+  public boolean isExpired() {
+    return deadline - System.nanoTime() <= 0;
+  }
+
+  /**
+   * @param limit
+   *          a time limit (in milliseconds), 0 for none.
+   * @return the lesser of the limit and the time left, as a time limit for
+   *         <code>LDAPConstraints</code>.
+   */
+  public int limit(int limit) {
+    long remaining = Math.max(1, remaining());
+    return (int) (limit > 0 ? Math.min(limit, remaining) : Math.min(Integer.MAX_VALUE,
+        remaining));
+  }
+
+  /**
+   * @param operation
+   *          what was about to be done, for the message.
+   * @throws LdapDeadlineExceededException
+   *           if the deadline has passed.
+   */
+  public void check(String operation) throws LdapDeadlineExceededException {
+    if (isExpired()) {
+      throw new LdapDeadlineExceededException("Out of time before " + operation);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return remaining() + "ms";
+  }
+}
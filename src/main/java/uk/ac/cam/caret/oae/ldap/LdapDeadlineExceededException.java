@@ -0,0 +1,21 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPException;
+
+/**
+ * Thrown when an {@link LdapDeadline} passes, either before the directory is contacted
+ * or while waiting for it. Says nothing about the health of the directory, so it is not
+ * counted as a failure by the {@link LdapCircuitBreaker}.
+ */
+public class LdapDeadlineExceededException extends LDAPException {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = -3630364640425416582L;
+
+  public LdapDeadlineExceededException(String message) {
+    super(message, LDAPException.LDAP_TIMEOUT, null);
+  }
+
+}
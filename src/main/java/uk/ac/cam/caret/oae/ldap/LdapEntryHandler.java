@@ -0,0 +1,24 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPEntry;
+
+import java.io.IOException;
+
+/**
+ * Receives the entries of a streamed search one at a time, as they arrive from the
+ * directory.
+ *
+ * @see SimpleLdapConnectionManager#search(String, int, String, String[], LdapEntryHandler)
+ */
+public interface LdapEntryHandler {
+
+  /**
+   * @param entry
+   *          the next entry found.
+   * @throws IOException
+   *           to stop the search, which is abandoned; the exception is passed on to the
+   *           caller of the search.
+   */
+  void handle(LDAPEntry entry) throws IOException;
+
+}
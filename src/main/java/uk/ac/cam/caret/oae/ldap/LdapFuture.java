@@ -0,0 +1,223 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of an asynchronous directory operation. The first of
+ * {@link #complete(Object)}, {@link #fail(Throwable)} or {@link #cancel(boolean)}
+ * decides the outcome; listeners added with {@link #addListener(Runnable)} run once the
+ * outcome is known, on the thread that decided it.
+ *
+ * @param <T>
+ *          the type of the result.
+ */
+public class LdapFuture<T> implements Future<T> {
+
+  private static final Logger log = LoggerFactory.getLogger(LdapFuture.class);
+
+  private final CountDownLatch done = new CountDownLatch(1);
+
+  private List<Runnable> listeners = new ArrayList<Runnable>();
+
+  private T value;
+
+  private Throwable failure;
+
+  private boolean cancelled;
+
+  /**
+   * Completes the future with a result.
+   *
+   * @return <code>false</code> if the outcome had already been decided.
+   */
+  public boolean complete(T result) {
+    List<Runnable> toRun;
+    synchronized (this) {
+      if (listeners == null) {
+        return false;
+      }
+      value = result;
+      toRun = decided();
+    }
+    finish(toRun);
+    return true;
+  }
+
+  /**
+   * Completes the future with a failure.
+   *
+   * @return <code>false</code> if the outcome had already been decided.
+   */
+  public boolean fail(Throwable cause) {
+    List<Runnable> toRun;
+    synchronized (this) {
+      if (listeners == null) {
+        return false;
+      }
+      failure = cause;
+      toRun = decided();
+    }
+    finish(toRun);
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    List<Runnable> toRun;
+    synchronized (this) {
+      if (listeners == null) {
+        return false;
+      }
+      cancelled = true;
+      failure = new CancellationException();
+      toRun = decided();
+    }
+    finish(toRun);
+    cancelled();
+    return true;
+  }
+
+  /**
+   * Called once, after listeners, if the future is cancelled, so that subclasses can
+   * stop the underlying operation.
+   */
+  protected void cancelled() {
+  }
+
+  /**
+   * Adds a listener to run once the outcome is known, immediately if it already is.
+   */
+  public void addListener(Runnable listener) {
+    synchronized (this) {
+      if (listeners != null) {
+        listeners.add(listener);
+        return;
+      }
+    }
+    run(listener);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public synchronized boolean isDone() {
+    return listeners == null;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public T get() throws InterruptedException, ExecutionException {
+    done.await();
+    return result();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+      TimeoutException {
+    if (!done.await(timeout, unit)) {
+      throw new TimeoutException();
+    }
+    return result();
+  }
+
+  /**
+   * Waits for the result, reporting every kind of failure as an
+   * <code>LDAPException</code>.
+   *
+   * @param timeoutMillis
+   *          the maximum time to wait, in milliseconds.
+   * @return the result.
+   * @throws LDAPException
+   *           the failure of the operation, or a <code>LDAP_TIMEOUT</code> if the wait
+   *           timed out or was interrupted.
+   */
+  public T getResult(long timeoutMillis) throws LDAPException {
+    try {
+      return get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LDAPException("Interrupted waiting for an LDAP response",
+          LDAPException.LDAP_TIMEOUT, null, e);
+    } catch (TimeoutException e) {
+      throw new LDAPException("Timed out after " + timeoutMillis
+          + "ms waiting for an LDAP response", LDAPException.LDAP_TIMEOUT, null, e);
+    } catch (CancellationException e) {
+      throw new LDAPException("LDAP operation was cancelled", LDAPException.USER_CANCELLED,
+          null, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof LDAPException) {
+        throw (LDAPException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new LDAPException(cause.getMessage(), LDAPException.OTHER, null, cause);
+    }
+  }
+
+  private synchronized T result() throws ExecutionException {
+    if (cancelled) {
+      throw new CancellationException();
+    }
+    if (failure != null) {
+      throw new ExecutionException(failure);
+    }
+    return value;
+  }
+
+  /**
+   * Marks the outcome as decided, with the lock held, so that no other caller can decide
+   * it too.
+   *
+   * @return the listeners to run.
+   */
+  private List<Runnable> decided() {
+    List<Runnable> toRun = listeners;
+    listeners = null;
+    return toRun;
+  }
+
+  private void finish(List<Runnable> toRun) {
+    done.countDown();
+    for (Runnable listener : toRun) {
+      run(listener);
+    }
+  }
+
+  private void run(Runnable listener) {
+    try {
+      listener.run();
+    } catch (RuntimeException e) {
+      log.warn("LDAP future listener failed: {}", e.getMessage());
+      log.debug(e.getMessage(), e);
+    }
+  }
+}
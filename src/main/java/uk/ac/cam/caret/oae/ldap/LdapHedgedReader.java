@@ -0,0 +1,337 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads entries from one replica and, if the answer is slow in coming, sends the same
+ * read to a second replica and takes whichever answers first; the other read is
+ * abandoned. Each replica has a {@link LdapMultiplexer} of its own, so reads are sent
+ * without tying up a connection and either can be abandoned.
+ * <p>
+ * A read is slow once it has taken longer than <code>percentile</code> of the reads in
+ * the last window of <code>windowSize</code> reads, and never less than
+ * <code>minDelay</code>; nothing is hedged until the first window is complete. Every read
+ * earns <code>budget</code> percent of a hedge, and a hedge is only sent if a whole one
+ * has been earned, so hedges never add more than that share to the load on the
+ * directory, however slow it gets.
+ */
+class LdapHedgedReader {
+
+  private static final Logger log = LoggerFactory.getLogger(LdapHedgedReader.class);
+
+  /** credit is kept in thousandths of a hedge */
+  private static final long HEDGE = 1000;
+
+  /** the most hedges that can be saved up for a burst of slow reads */
+  private static final long MAX_CREDIT = 10 * HEDGE;
+
+  /** each replica and the connection reads are sent to it over, in configured order */
+  private final Map<LdapServer, LdapMultiplexer> replicas;
+
+  private final LdapServerSet servers;
+
+  private final double percentile;
+
+  private final long minDelay;
+
+  private final long creditPerRead;
+
+  private final int windowSize;
+
+  /** times the first answer to each read in the current window */
+  private volatile LdapTimer window = new LdapTimer();
+
+  /** the time (in milliseconds) after which a read is hedged, negative until known */
+  private volatile long delay = -1;
+
+  private final AtomicLong credit = new AtomicLong();
+
+  private final AtomicInteger next = new AtomicInteger();
+
+  private final AtomicLong reads = new AtomicLong();
+
+  private final AtomicLong hedges = new AtomicLong();
+
+  private final AtomicLong hedgeWins = new AtomicLong();
+
+  private final AtomicLong hedgesDenied = new AtomicLong();
+
+  /**
+   * @param replicas
+   *          the replicas and their connections.
+   * @param servers
+   *          the server set the replicas belong to, told of failed probes.
+   * @param config
+   *          gives the percentile, minimum delay, budget and window size.
+   */
+  LdapHedgedReader(Map<LdapServer, LdapMultiplexer> replicas, LdapServerSet servers,
+      LdapConnectionManagerConfig config) {
+    this.replicas = replicas;
+    this.servers = servers;
+    this.percentile = Math.max(1, Math.min(100, config.getHedgePercentile()));
+    this.minDelay = Math.max(0, config.getHedgeMinDelay());
+    this.creditPerRead = Math.max(0, Math.min(100, config.getHedgeBudget())) * HEDGE / 100;
+    this.windowSize = Math.max(1, config.getHedgeWindowSize());
+  }
+
+  /**
+   * Reads an entry, hedging if it is slow.
+   *
+   * @param timeout
+   *          the time (in milliseconds) to wait for an answer from either replica.
+   * @return the entry, or null if it does not exist.
+   * @throws LDAPException
+   *           if neither replica answered in time, or both failed.
+   */
+  LDAPEntry read(String dn, String[] attributes, long timeout) throws LDAPException {
+    final long start = System.nanoTime();
+    long end = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+    reads.incrementAndGet();
+    earn();
+
+    List<LdapServer> chosen = choose();
+    final LdapServer primaryServer = chosen.get(0);
+    final LdapFuture<LDAPEntry> primary = replicas.get(primaryServer).read(dn, attributes);
+    primary.addListener(new Runnable() {
+      public void run() {
+        // a hedged read that lost is timed up to when it was abandoned.
+        record(primaryServer, primary, System.nanoTime() - start);
+      }
+    });
+    LdapFuture<LDAPEntry> hedge = null;
+    try {
+      long hedgeDelay = delay;
+      if (chosen.size() < 2 || hedgeDelay < 0 || hedgeDelay >= timeout
+          || await(primary, hedgeDelay)) {
+        return primary.getResult(remaining(end));
+      }
+      if (!spend()) {
+        hedgesDenied.incrementAndGet();
+        return primary.getResult(remaining(end));
+      }
+      hedges.incrementAndGet();
+      final LdapServer hedgeServer = chosen.get(1);
+      log.debug("read(): hedging {} on {} after {}ms", new Object[] { dn, hedgeServer,
+          hedgeDelay });
+      hedge = replicas.get(hedgeServer).read(dn, attributes);
+      AtomicBoolean hedgeWon = new AtomicBoolean();
+      LdapFuture<LDAPEntry> first = firstOf(primary, hedge, hedgeWon);
+      LDAPEntry entry = first.getResult(remaining(end));
+      if (hedgeWon.get()) {
+        hedgeWins.incrementAndGet();
+      }
+      return entry;
+    } finally {
+      // abandons whichever read has not answered.
+      primary.cancel(false);
+      if (hedge != null) {
+        hedge.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * @return the replicas to read from, the first for the read and the second, if there
+   *         is one, for a hedge. Replicas take turns to go first; a down replica due a
+   *         probe goes first, as the hedge covers for it if it is still unwell.
+   */
+  private List<LdapServer> choose() {
+    long now = System.currentTimeMillis();
+    List<LdapServer> up = new ArrayList<LdapServer>(replicas.size());
+    LdapServer probe = null;
+    for (LdapServer server : replicas.keySet()) {
+      if (server.isUp()) {
+        up.add(server);
+      } else if (probe == null && server.claimProbe(now)) {
+        probe = server;
+      }
+    }
+    if (up.size() > 1) {
+      Collections.rotate(up, -((next.getAndIncrement() & Integer.MAX_VALUE) % up.size()));
+    }
+    if (probe != null) {
+      up.add(0, probe);
+    }
+    if (up.isEmpty()) {
+      // all down, let the read find out if they still are.
+      up.addAll(replicas.keySet());
+    }
+    return up;
+  }
+
+  private void record(LdapServer server, LdapFuture<LDAPEntry> future, long duration) {
+    if (future.isCancelled()) {
+      if (!server.isUp()) {
+        // a probe that did not answer in time.
+        servers.failed(server);
+      }
+    } else {
+      try {
+        future.get();
+        if (!server.isUp()) {
+          // a probe that answered.
+          server.markUp();
+        }
+      } catch (ExecutionException e) {
+        if (!server.isUp()) {
+          servers.failed(server);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    LdapTimer current = window;
+    current.record(duration, false);
+    if (current.getCount() >= windowSize) {
+      synchronized (this) {
+        if (window == current) {
+          window = new LdapTimer();
+          delay = Math.max(minDelay, (current.getPercentile(percentile) + 999) / 1000);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param hedgeWon
+   *          set only if the hedge's answer is the one passed on.
+   * @return a future that has the first answer of either read, or the last failure if
+   *         both fail. Both reads may answer at once, so only the one whose answer is
+   *         taken counts as having won.
+   */
+  static <T> LdapFuture<T> firstOf(LdapFuture<T> primary, LdapFuture<T> hedge,
+      AtomicBoolean hedgeWon) {
+    LdapFuture<T> first = new LdapFuture<T>();
+    AtomicInteger failed = new AtomicInteger();
+    listen(primary, first, failed, null);
+    listen(hedge, first, failed, hedgeWon);
+    return first;
+  }
+
+  /**
+   * Passes the answer of a read on to <code>first</code> if it is the first, or the
+   * failure if both reads fail.
+   */
+  private static <T> void listen(final LdapFuture<T> read, final LdapFuture<T> first,
+      final AtomicInteger failed, final AtomicBoolean won) {
+    read.addListener(new Runnable() {
+      public void run() {
+        Throwable failure;
+        try {
+          // complete() is only true for the answer first actually took.
+          if (first.complete(read.get()) && won != null) {
+            won.set(true);
+          }
+          return;
+        } catch (ExecutionException e) {
+          failure = e.getCause();
+        } catch (CancellationException e) {
+          failure = e;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          failure = e;
+        }
+        if (failed.incrementAndGet() == 2) {
+          first.fail(failure);
+        }
+      }
+    });
+  }
+
+  /**
+   * @return <code>true</code> if the read answered, or failed, within the time.
+   */
+  private static boolean await(LdapFuture<LDAPEntry> future, long millis) {
+    try {
+      future.get(millis, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    } catch (ExecutionException e) {
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return true;
+    }
+  }
+
+  private static long remaining(long end) {
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()));
+  }
+
+  private void earn() {
+    long current;
+    do {
+      current = credit.get();
+      if (current >= MAX_CREDIT) {
+        return;
+      }
+    } while (!credit.compareAndSet(current, Math.min(MAX_CREDIT, current + creditPerRead)));
+  }
+
+  private boolean spend() {
+    long current;
+    do {
+      current = credit.get();
+      if (current < HEDGE) {
+        return false;
+      }
+    } while (!credit.compareAndSet(current, current - HEDGE));
+    return true;
+  }
+
+  /**
+   * Retires idle connections, as {@link LdapMultiplexer#maintain(long, long)}.
+   */
+  void maintain(long maxAge, long idleTimeout) {
+    for (LdapMultiplexer multiplexer : replicas.values()) {
+      multiplexer.maintain(maxAge, idleTimeout);
+    }
+  }
+
+  /**
+   * Closes the connections to every replica.
+   */
+  void close() {
+    for (LdapMultiplexer multiplexer : replicas.values()) {
+      multiplexer.close();
+    }
+  }
+
+  /**
+   * @return the number of reads, hedges sent, hedges that answered first and hedges
+   *         refused for lack of budget, the current hedging delay and the state of the
+   *         connection to each replica.
+   */
+  Map<String, Object> getStatistics() {
+    Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+    statistics.put("reads", reads.get());
+    statistics.put("hedges", hedges.get());
+    statistics.put("hedgeWins", hedgeWins.get());
+    statistics.put("hedgesDenied", hedgesDenied.get());
+    statistics.put("delayMs", delay);
+    Map<String, Object> connections = new LinkedHashMap<String, Object>();
+    for (Map.Entry<LdapServer, LdapMultiplexer> e : replicas.entrySet()) {
+      connections.put(e.getKey().toString(), e.getValue().getStatistics());
+    }
+    statistics.put("replicas", connections);
+    return statistics;
+  }
+}
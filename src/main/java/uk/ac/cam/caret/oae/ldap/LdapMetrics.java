@@ -0,0 +1,72 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link LdapTimer}s of a connection manager, by operation name.
+ */
+public class LdapMetrics {
+
+  /** Time to get a connection from the manager, including waiting for the pool. */
+  public static final String GET_CONNECTION = "getConnection";
+
+  /** Time to open the TCP (or SSL) connection to a replica. */
+  public static final String CONNECT = "connect";
+
+  /** Time to negotiate StartTLS on an open connection. */
+  public static final String TLS = "tls";
+
+  public static final String BIND = "bind";
+
+  public static final String READ = "read";
+
+  public static final String SEARCH = "search";
+
+  private final ConcurrentMap<String, LdapTimer> timers =
+      new ConcurrentHashMap<String, LdapTimer>();
+
+  public LdapMetrics() {
+    // create the usual timers up front so they are reported before first use.
+    for (String name : new String[] { GET_CONNECTION, CONNECT, TLS, BIND, READ, SEARCH }) {
+      timer(name);
+    }
+  }
+
+  /**
+   * @return the timer for the named operation, created if need be.
+   */
+  public LdapTimer timer(String name) {
+    LdapTimer timer = timers.get(name);
+    if (timer == null) {
+      LdapTimer created = new LdapTimer();
+      timer = timers.putIfAbsent(name, created);
+      if (timer == null) {
+        timer = created;
+      }
+    }
+    return timer;
+  }
+
+  /**
+   * Forgets everything recorded so far.
+   */
+  public void reset() {
+    for (LdapTimer timer : timers.values()) {
+      timer.reset();
+    }
+  }
+
+  /**
+   * @return the statistics of each timer, sorted by operation name.
+   */
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> statistics = new TreeMap<String, Object>();
+    for (Map.Entry<String, LdapTimer> e : timers.entrySet()) {
+      statistics.put(e.getKey(), e.getValue().getStatistics());
+    }
+    return statistics;
+  }
+}
@@ -0,0 +1,531 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPMessage;
+import com.novell.ldap.LDAPMessageQueue;
+import com.novell.ldap.LDAPResponse;
+import com.novell.ldap.LDAPSearchConstraints;
+import com.novell.ldap.LDAPSearchRequest;
+import com.novell.ldap.LDAPSearchResult;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many searches at once over a small fixed set of connections. Each search is
+ * sent without waiting for earlier ones to finish; a dispatcher thread per connection
+ * reads responses off the connection's message queue and hands them to the pending
+ * request with the same message ID.
+ * <p>
+ * Connections are opened lazily with the {@link LdapConnectionFactory} and reopened
+ * after a failure, which fails every request that was pending on the broken
+ * connection. Requests that have not completed within the timeout are abandoned.
+ * {@link #maintain(long, long)} retires connections that are too old or have been idle
+ * long enough for a firewall to have dropped them; they are reopened when next needed.
+ */
+public class LdapMultiplexer {
+
+  private static final Logger log = LoggerFactory.getLogger(LdapMultiplexer.class);
+
+  private static final String[] ALL_ATTRIBUTES = new String[0];
+
+  /**
+   * A request that has been sent and is waiting for its final response.
+   */
+  private static class PendingRequest<T> {
+    private final LdapFuture<T> future;
+    private final boolean read;
+    private final long deadline;
+    private final List<LDAPEntry> entries = new ArrayList<LDAPEntry>();
+    private volatile Channel channel;
+    private volatile int messageId;
+
+    PendingRequest(LdapFuture<T> future, boolean read, long deadline) {
+      this.future = future;
+      this.read = read;
+      this.deadline = deadline;
+    }
+
+    @SuppressWarnings("unchecked")
+    void succeed() {
+      if (read) {
+        ((LdapFuture<LDAPEntry>) future).complete(entries.isEmpty() ? null : entries.get(0));
+      } else {
+        ((LdapFuture<List<LDAPEntry>>) future).complete(entries);
+      }
+    }
+  }
+
+  /**
+   * One connection, its message queue and the requests pending on it.
+   */
+  private class Channel implements Runnable {
+    private final int index;
+    private final Map<Integer, PendingRequest<?>> pending =
+        new ConcurrentHashMap<Integer, PendingRequest<?>>();
+    private LDAPConnection connection;
+    private LDAPMessageQueue queue;
+    private Thread dispatcher;
+    private long connectedAt;
+    private long lastUsed;
+
+    Channel(int index) {
+      this.index = index;
+    }
+
+    /**
+     * Opens the connection if it is not already open. The connection is made without
+     * holding the channel's lock, as connecting, starting TLS and binding may take up to
+     * the connect timeout, and requests and maintenance must not queue behind it. If
+     * another thread opens the channel meanwhile, the connection made here is discarded.
+     */
+    void open() throws LDAPException {
+      synchronized (this) {
+        if (closed) {
+          throw new IllegalStateException("LDAP multiplexer has been closed.");
+        }
+        if (connection != null) {
+          return;
+        }
+      }
+      LDAPConnection made = factory.makeConnection();
+      synchronized (this) {
+        if (!closed && connection == null) {
+          connection = made;
+          connectedAt = System.currentTimeMillis();
+          lastUsed = connectedAt;
+          queue = null;
+          return;
+        }
+      }
+      factory.destroyConnection(made);
+      if (closed) {
+        throw new IllegalStateException("LDAP multiplexer has been closed.");
+      }
+    }
+
+    void send(PendingRequest<?> request, LDAPSearchRequest message) throws LDAPException {
+      while (true) {
+        open();
+        synchronized (this) {
+          if (connection == null) {
+            // dropped again since it was opened.
+            continue;
+          }
+          lastUsed = System.currentTimeMillis();
+          request.channel = this;
+          request.messageId = message.getMessageID();
+          pending.put(request.messageId, request);
+          try {
+            if (queue == null) {
+              queue = connection.sendRequest(message, null);
+            } else {
+              connection.sendRequest(message, queue);
+            }
+          } catch (LDAPException e) {
+            pending.remove(request.messageId);
+            broken(connection, e);
+            throw e;
+          }
+          if (dispatcher == null) {
+            dispatcher = new Thread(this, "LDAP multiplexer dispatcher " + index);
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+          }
+          notifyAll();
+          return;
+        }
+      }
+    }
+
+    public void run() {
+      while (true) {
+        LDAPConnection conn;
+        LDAPMessageQueue currentQueue;
+        synchronized (this) {
+          while (!closed && pending.isEmpty() && dispatcher == Thread.currentThread()) {
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          if (closed || dispatcher != Thread.currentThread()) {
+            return;
+          }
+          conn = connection;
+          currentQueue = queue;
+        }
+        try {
+          LDAPMessage message = currentQueue.getResponse();
+          if (message != null) {
+            dispatch(message);
+          }
+        } catch (LDAPException e) {
+          broken(conn, e);
+          return;
+        } catch (RuntimeException e) {
+          log.warn("Dispatcher failed: {}", e.getMessage());
+          log.debug(e.getMessage(), e);
+          broken(conn, new LDAPException(e.getMessage(), LDAPException.OTHER, null, e));
+          return;
+        }
+      }
+    }
+
+    private void dispatch(LDAPMessage message) {
+      PendingRequest<?> request = pending.get(message.getMessageID());
+      if (request == null) {
+        // abandoned or timed out.
+        return;
+      }
+      if (message instanceof LDAPSearchResult) {
+        request.entries.add(((LDAPSearchResult) message).getEntry());
+      } else if (message instanceof LDAPResponse) {
+        if (pending.remove(message.getMessageID()) == null) {
+          return;
+        }
+        permits.release();
+        LDAPResponse response = (LDAPResponse) message;
+        int resultCode = response.getResultCode();
+        if (resultCode == LDAPException.SUCCESS) {
+          request.succeed();
+        } else if (resultCode == LDAPException.NO_SUCH_OBJECT && request.read) {
+          request.entries.clear();
+          request.succeed();
+        } else {
+          request.future.fail(new LDAPException(LDAPException.resultCodeToString(resultCode),
+              resultCode, response.getErrorMessage()));
+        }
+      }
+      // search result references are not followed.
+    }
+
+    /**
+     * Drops a connection that has failed, and fails every request pending on it.
+     */
+    private void broken(LDAPConnection conn, LDAPException cause) {
+      synchronized (this) {
+        if (connection != conn) {
+          return;
+        }
+        log.warn("Multiplexed LDAP connection failed: {}", cause.getMessage());
+        connection = null;
+        queue = null;
+        dispatcher = null;
+        notifyAll();
+      }
+      failAll(cause);
+      if (conn != null) {
+        factory.destroyConnection(conn);
+      }
+    }
+
+    private void failAll(LDAPException cause) {
+      for (Integer messageId : pending.keySet()) {
+        PendingRequest<?> request = pending.remove(messageId);
+        if (request != null) {
+          permits.release();
+          request.future.fail(cause);
+        }
+      }
+    }
+
+    /**
+     * Forgets a pending request and asks the server to stop working on it.
+     */
+    void abandon(PendingRequest<?> request) {
+      if (pending.remove(request.messageId) == null) {
+        return;
+      }
+      permits.release();
+      LDAPConnection conn;
+      synchronized (this) {
+        conn = connection;
+      }
+      if (conn != null) {
+        try {
+          conn.abandon(request.messageId);
+        } catch (LDAPException e) {
+          log.debug("abandon(): {}", e.getMessage());
+        }
+      }
+    }
+
+    /**
+     * Closes the connection if it is idle and either older than the maximum age or
+     * unused for longer than the idle timeout.
+     */
+    void retire(long now, long maxAge, long idleTimeout) {
+      LDAPConnection conn;
+      synchronized (this) {
+        conn = connection;
+        if (conn == null || !pending.isEmpty()) {
+          return;
+        }
+        if (!(maxAge > 0 && now - connectedAt > maxAge)
+            && !(idleTimeout > 0 && now - lastUsed > idleTimeout)) {
+          return;
+        }
+        connection = null;
+        queue = null;
+        dispatcher = null;
+        notifyAll();
+      }
+      retired.incrementAndGet();
+      factory.destroyConnection(conn);
+    }
+
+    synchronized boolean isConnected() {
+      return connection != null;
+    }
+
+    synchronized void close() {
+      LDAPConnection conn = connection;
+      connection = null;
+      queue = null;
+      dispatcher = null;
+      notifyAll();
+      failAll(new LDAPException("LDAP multiplexer has been closed", LDAPException.USER_CANCELLED,
+          null));
+      if (conn != null) {
+        factory.destroyConnection(conn);
+      }
+    }
+  }
+
+  private final LdapConnectionFactory factory;
+
+  private final Channel[] channels;
+
+  private final Semaphore permits;
+
+  private final long timeout;
+
+  private final ScheduledExecutorService timer;
+
+  private volatile boolean closed;
+
+  private final AtomicLong retired = new AtomicLong();
+
+  /**
+   * @param factory
+   *          creates and destroys the underlying connections.
+   * @param connections
+   *          the number of connections to spread requests over.
+   * @param maxOutstanding
+   *          the maximum number of requests in flight at once, further requests fail
+   *          immediately.
+   * @param timeout
+   *          the time (in milliseconds) after which a request is abandoned.
+   */
+  public LdapMultiplexer(LdapConnectionFactory factory, int connections, int maxOutstanding,
+      long timeout) {
+    this.factory = factory;
+    this.channels = new Channel[Math.max(1, connections)];
+    for (int i = 0; i < channels.length; i++) {
+      channels[i] = new Channel(i);
+    }
+    this.permits = new Semaphore(Math.max(1, maxOutstanding));
+    this.timeout = timeout;
+    this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "LDAP multiplexer timeouts");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    long interval = Math.max(10, Math.min(1000, timeout / 4));
+    timer.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        expire();
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Reads an entry.
+   *
+   * @param dn
+   *          the DN of the entry.
+   * @param attributes
+   *          the attributes to return, null for all user attributes.
+   * @return a future of the entry, or of null if the entry does not exist.
+   */
+  public LdapFuture<LDAPEntry> read(String dn, String[] attributes) {
+    RequestFuture<LDAPEntry> future = new RequestFuture<LDAPEntry>();
+    submit(future, true, dn, LDAPConnection.SCOPE_BASE, "(objectClass=*)", attributes);
+    return future;
+  }
+
+  /**
+   * Searches the directory.
+   *
+   * @param base
+   *          the base DN.
+   * @param scope
+   *          one of the <code>LDAPConnection.SCOPE_</code> constants.
+   * @param filter
+   *          the search filter.
+   * @param attributes
+   *          the attributes to return, null for all user attributes.
+   * @return a future of the entries found.
+   */
+  public LdapFuture<List<LDAPEntry>> search(String base, int scope, String filter,
+      String[] attributes) {
+    RequestFuture<List<LDAPEntry>> future = new RequestFuture<List<LDAPEntry>>();
+    submit(future, false, base, scope, filter, attributes);
+    return future;
+  }
+
+  /**
+   * Opens every connection that is not already open, rather than waiting for the first
+   * requests to do so.
+   *
+   * @throws LDAPException
+   *           if a connection could not be opened.
+   */
+  public void connect() throws LDAPException {
+    for (Channel channel : channels) {
+      channel.open();
+    }
+  }
+
+  /**
+   * @return the number of requests in flight.
+   */
+  public int getOutstanding() {
+    int outstanding = 0;
+    for (Channel channel : channels) {
+      outstanding += channel.pending.size();
+    }
+    return outstanding;
+  }
+
+  /**
+   * Retires idle connections that are older than the maximum age or have not been used
+   * for longer than the idle timeout.
+   *
+   * @param maxAge
+   *          the maximum age (in milliseconds) of a connection, 0 or less for no limit.
+   * @param idleTimeout
+   *          the maximum time (in milliseconds) a connection may go unused, 0 or less
+   *          for no limit.
+   */
+  public void maintain(long maxAge, long idleTimeout) {
+    long now = System.currentTimeMillis();
+    for (Channel channel : channels) {
+      channel.retire(now, maxAge, idleTimeout);
+    }
+  }
+
+  /**
+   * @return the number of open connections, requests in flight and connections retired.
+   */
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+    int connected = 0;
+    for (Channel channel : channels) {
+      if (channel.isConnected()) {
+        connected++;
+      }
+    }
+    statistics.put("connections", connected);
+    statistics.put("outstanding", getOutstanding());
+    statistics.put("retired", retired.get());
+    return statistics;
+  }
+
+  /**
+   * Closes every connection, failing the requests still pending.
+   */
+  public void close() {
+    closed = true;
+    timer.shutdownNow();
+    for (Channel channel : channels) {
+      channel.close();
+    }
+  }
+
+  /**
+   * A future that abandons its request when cancelled.
+   */
+  private class RequestFuture<T> extends LdapFuture<T> {
+    private PendingRequest<T> request;
+
+    @Override
+    protected void cancelled() {
+      PendingRequest<T> r;
+      synchronized (this) {
+        r = request;
+      }
+      if (r != null && r.channel != null) {
+        r.channel.abandon(r);
+      }
+    }
+  }
+
+  private <T> void submit(RequestFuture<T> future, boolean read, String base, int scope,
+      String filter, String[] attributes) {
+    if (!permits.tryAcquire()) {
+      future.fail(new LDAPException("Too many outstanding LDAP requests", LDAPException.BUSY,
+          null));
+      return;
+    }
+    PendingRequest<T> request = new PendingRequest<T>(future, read, System.currentTimeMillis()
+        + timeout);
+    synchronized (future) {
+      future.request = request;
+    }
+    try {
+      int serverTimeLimit = (int) Math.max(1, (timeout + 999) / 1000);
+      LDAPSearchRequest message = new LDAPSearchRequest(base, scope, filter,
+          attributes == null ? ALL_ATTRIBUTES : attributes, LDAPSearchConstraints.DEREF_NEVER,
+          read ? 1 : 0, serverTimeLimit, false, null);
+      leastLoaded().send(request, message);
+    } catch (LDAPException e) {
+      permits.release();
+      future.fail(e);
+    } catch (RuntimeException e) {
+      permits.release();
+      future.fail(e);
+    }
+  }
+
+  private Channel leastLoaded() {
+    Channel best = channels[0];
+    for (int i = 1; i < channels.length; i++) {
+      if (channels[i].pending.size() < best.pending.size()) {
+        best = channels[i];
+      }
+    }
+    return best;
+  }
+
+  private void expire() {
+    long now = System.currentTimeMillis();
+    for (Channel channel : channels) {
+      for (PendingRequest<?> request : channel.pending.values()) {
+        if (request.deadline <= now) {
+          channel.abandon(request);
+          request.future.fail(new LDAPException("Timed out after " + timeout
+              + "ms waiting for an LDAP response", LDAPException.LDAP_TIMEOUT, null));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPControl;
+import com.novell.ldap.asn1.ASN1Integer;
+import com.novell.ldap.asn1.ASN1Object;
+import com.novell.ldap.asn1.ASN1OctetString;
+import com.novell.ldap.asn1.ASN1Sequence;
+import com.novell.ldap.asn1.LBERDecoder;
+import com.novell.ldap.asn1.LBEREncoder;
+
+/**
+ * The simple paged results control of RFC 2696, which JLDAP does not provide. The
+ * request asks for a page of entries; the server answers with a cookie that asks for the
+ * next page when sent back, and an empty cookie after the last page.
+ */
+class LdapPagedResults {
+
+  static final String OID = "1.2.840.113556.1.4.319";
+
+  private LdapPagedResults() {
+  }
+
+  /**
+   * @param pageSize
+   *          the most entries the server should return in this page.
+   * @param cookie
+   *          the cookie from the previous page, null for the first page.
+   * @return the control to send with the search.
+   */
+  static LDAPControl request(int pageSize, byte[] cookie) {
+    ASN1Sequence value = new ASN1Sequence(2);
+    value.add(new ASN1Integer(pageSize));
+    value.add(new ASN1OctetString(cookie == null ? new byte[0] : cookie));
+    // critical, so that a server that cannot page fails rather than returning everything.
+    return new LDAPControl(OID, true, value.getEncoding(new LBEREncoder()));
+  }
+
+  /**
+   * @param controls
+   *          the controls returned with the end of a page, may be null.
+   * @return the cookie asking for the next page, or null after the last page.
+   */
+  static byte[] getCookie(LDAPControl[] controls) {
+    if (controls == null) {
+      return null;
+    }
+    for (LDAPControl control : controls) {
+      if (!OID.equals(control.getID()) || control.getValue() == null) {
+        continue;
+      }
+      ASN1Object decoded = new LBERDecoder().decode(control.getValue());
+      if (decoded instanceof ASN1Sequence && ((ASN1Sequence) decoded).size() > 1) {
+        ASN1Object cookie = ((ASN1Sequence) decoded).get(1);
+        if (cookie instanceof ASN1OctetString) {
+          byte[] value = ((ASN1OctetString) cookie).byteValue();
+          return value == null || value.length == 0 ? null : value;
+        }
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,289 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPEntry;
+
+import java.io.UnsupportedEncodingException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A compact, immutable record of a directory entry, for holding many entries in memory.
+ * It reads like the map made by {@link LdapUtil#toRecord(LDAPEntry)}: attribute name to
+ * a <code>String</code> or, for multi valued attributes, a <code>String[]</code>.
+ * <p>
+ * Rather than a hash map of strings per entry, the attribute names are held in a
+ * {@link Schema} shared by every record with the same attributes, and the values are
+ * encoded as UTF-8 one after another in a single byte array, indexed by an array of end
+ * offsets. Values are only decoded when read, so a record costs a few arrays rather than
+ * a map, its entries and two strings per attribute.
+ */
+public final class LdapRecord extends AbstractMap<String, Object> {
+
+  private static final String UTF8 = "UTF-8";
+
+  /** past this many schemas new ones are not shared, to bound the memory they use */
+  private static final int MAX_SCHEMAS = 1024;
+
+  private static final ConcurrentMap<List<String>, Schema> SCHEMAS =
+      new ConcurrentHashMap<List<String>, Schema>();
+
+  /**
+   * The sorted attribute names of a record, shared by records with the same attributes.
+   */
+  static final class Schema {
+    private final String[] names;
+
+    private Schema(String[] names) {
+      this.names = names;
+    }
+
+    /**
+     * @return the position of the attribute, or a negative number if it is not in the
+     *         schema.
+     */
+    int indexOf(Object name) {
+      return name instanceof String ? Arrays.binarySearch(names, name) : -1;
+    }
+  }
+
+  /**
+   * An attribute of a record, as read through {@link LdapRecord#entrySet()}.
+   */
+  private static final class Entry implements Map.Entry<String, Object> {
+    private final String key;
+    private final Object value;
+
+    private Entry(String key, Object value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public Object getValue() {
+      return value;
+    }
+
+    public Object setValue(Object value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry<?, ?>)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      return key.equals(e.getKey())
+          && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+    }
+
+    @Override
+    public int hashCode() {
+      return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + value;
+    }
+  }
+
+  private final Schema schema;
+
+  /** every value of every attribute, in UTF-8 */
+  private final byte[] data;
+
+  /** the end offset in data of each value */
+  private final int[] valueEnds;
+
+  /** the end index in valueEnds of each attribute's values */
+  private final int[] attributeEnds;
+
+  private LdapRecord(Schema schema, byte[] data, int[] valueEnds, int[] attributeEnds) {
+    this.schema = schema;
+    this.data = data;
+    this.valueEnds = valueEnds;
+    this.attributeEnds = attributeEnds;
+  }
+
+  /**
+   * Converts an entry to a compact record holding the same values as
+   * {@link LdapUtil#toRecord(LDAPEntry)}. Attributes without values are left out.
+   * Binary attributes such as <code>jpegPhoto</code> are kept as their bytes read as
+   * UTF-8, which does not round trip, so callers should not read them this way.
+   */
+  public static LdapRecord fromEntry(LDAPEntry ldapEntry) {
+    return fromEntry(ldapEntry, Collections.<String> emptySet());
+  }
+
+  /**
+   * As {@link #fromEntry(LDAPEntry)}, leaving out some attributes.
+   *
+   * @param excluded
+   *          lower case names of the attributes to leave out.
+   */
+  public static LdapRecord fromEntry(LDAPEntry ldapEntry, Set<String> excluded) {
+    List<LDAPAttribute> attributes = new ArrayList<LDAPAttribute>();
+    for (@SuppressWarnings("unchecked")
+    Iterator<LDAPAttribute> i = ldapEntry.getAttributeSet().iterator(); i.hasNext();) {
+      LDAPAttribute la = i.next();
+      String[] values = la.getStringValueArray();
+      if (values != null && values.length > 0
+          && !excluded.contains(la.getName().toLowerCase())) {
+        attributes.add(la);
+      }
+    }
+    String[] names = new String[attributes.size()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = attributes.get(i).getName();
+    }
+    Arrays.sort(names);
+    Schema schema = schemaOf(names);
+
+    List<byte[]> encoded = new ArrayList<byte[]>();
+    int[] attributeEnds = new int[names.length];
+    int length = 0;
+    for (int a = 0; a < names.length; a++) {
+      for (String value : ldapEntry.getAttribute(schema.names[a]).getStringValueArray()) {
+        byte[] bytes = encode(value);
+        encoded.add(bytes);
+        length += bytes.length;
+      }
+      attributeEnds[a] = encoded.size();
+    }
+    byte[] data = new byte[length];
+    int[] valueEnds = new int[encoded.size()];
+    int offset = 0;
+    for (int v = 0; v < valueEnds.length; v++) {
+      byte[] bytes = encoded.get(v);
+      System.arraycopy(bytes, 0, data, offset, bytes.length);
+      offset += bytes.length;
+      valueEnds[v] = offset;
+    }
+    return new LdapRecord(schema, data, valueEnds, attributeEnds);
+  }
+
+  private static Schema schemaOf(String[] names) {
+    List<String> key = Arrays.asList(names);
+    Schema schema = SCHEMAS.get(key);
+    if (schema != null) {
+      return schema;
+    }
+    for (int i = 0; i < names.length; i++) {
+      names[i] = names[i].intern();
+    }
+    schema = new Schema(names);
+    if (SCHEMAS.size() < MAX_SCHEMAS) {
+      Schema existing = SCHEMAS.putIfAbsent(key, schema);
+      if (existing != null) {
+        return existing;
+      }
+    }
+    return schema;
+  }
+
+  /**
+   * @return roughly how many bytes of heap the record takes, not counting its schema.
+   */
+  public long getSize() {
+    return 16 + (16 + data.length) + (16 + 4L * valueEnds.length)
+        + (16 + 4L * attributeEnds.length);
+  }
+
+  @Override
+  public int size() {
+    return schema.names.length;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return schema.indexOf(key) >= 0;
+  }
+
+  @Override
+  public Object get(Object key) {
+    int index = schema.indexOf(key);
+    return index < 0 ? null : decode(index);
+  }
+
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    return new AbstractSet<Map.Entry<String, Object>>() {
+      @Override
+      public int size() {
+        return schema.names.length;
+      }
+
+      @Override
+      public Iterator<Map.Entry<String, Object>> iterator() {
+        return new Iterator<Map.Entry<String, Object>>() {
+          private int next;
+
+          public boolean hasNext() {
+            return next < schema.names.length;
+          }
+
+          public Map.Entry<String, Object> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            int index = next++;
+            return new Entry(schema.names[index], decode(index));
+          }
+
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * @return the value of an attribute, a <code>String</code> if it has one value,
+   *         otherwise a <code>String[]</code>.
+   */
+  private Object decode(int index) {
+    int first = index == 0 ? 0 : attributeEnds[index - 1];
+    int end = attributeEnds[index];
+    if (end - first == 1) {
+      return decodeValue(first);
+    }
+    String[] values = new String[end - first];
+    for (int v = first; v < end; v++) {
+      values[v - first] = decodeValue(v);
+    }
+    return values;
+  }
+
+  private String decodeValue(int value) {
+    int start = value == 0 ? 0 : valueEnds[value - 1];
+    try {
+      return new String(data, start, valueEnds[value] - start, UTF8);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Failed to decode attribute value", e);
+    }
+  }
+
+  private static byte[] encode(String value) {
+    try {
+      return value.getBytes(UTF8);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Failed to encode attribute value", e);
+    }
+  }
+}
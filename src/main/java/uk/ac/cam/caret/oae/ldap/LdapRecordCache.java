@@ -0,0 +1,61 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPException;
+
+import java.util.Map;
+
+/**
+ * Reads directory entries as records, a map of attribute name to a
+ * <code>String</code> (single valued) or <code>String[]</code> (multi valued), caching
+ * them for a while. Entries that do not exist are cached too, for a shorter while.
+ */
+public interface LdapRecordCache {
+
+  /**
+   * Gets the record for an entry, from the cache if it holds a fresh copy, otherwise
+   * from the directory.
+   *
+   * @param dn
+   *          the DN of the entry.
+   * @param attributes
+   *          the attributes to read, null for all user attributes. Records read with
+   *          different attributes are cached separately.
+   * @return the record, which must not be modified, or null if the entry does not
+   *         exist.
+   * @throws LDAPException
+   *           if the directory could not be read. Failures are not cached.
+   */
+  Map<String, Object> getRecord(String dn, String[] attributes) throws LDAPException;
+
+  /**
+   * As {@link #getRecord(String, String[])}, giving up on the directory, or on another
+   * caller reading the same entry, once the deadline passes.
+   *
+   * @param deadline
+   *          when the caller gives up, null to wait as long as configured.
+   * @throws LDAPException
+   *           if the directory could not be read in time.
+   */
+  Map<String, Object> getRecord(String dn, String[] attributes, LdapDeadline deadline)
+      throws LDAPException;
+
+  /**
+   * Drops every cached record of an entry, so that it is read from the directory next
+   * time.
+   *
+   * @param dn
+   *          the DN of the entry.
+   */
+  void invalidate(String dn);
+
+  /**
+   * Drops every cached record.
+   */
+  void invalidateAll();
+
+  /**
+   * @return hits, misses, evictions and the size of the cache.
+   */
+  Map<String, Object> getStatistics();
+
+}
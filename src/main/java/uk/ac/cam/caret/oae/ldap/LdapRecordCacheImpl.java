@@ -0,0 +1,542 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A least recently used cache of directory records, bounded both by the number of
+ * records and by an estimate of the memory they use. Records expire <code>ttl</code>
+ * milliseconds after they were read, records of entries that do not exist after
+ * <code>negative.ttl</code>. A TTL of 0 or less turns caching off. Records are held as
+ * compact {@link LdapRecord}s.
+ * <p>
+ * Concurrent requests for the same record are coalesced: the first caller reads the
+ * directory and the others wait for its result, for at most
+ * <code>coalesce.timeout</code> milliseconds.
+ * <p>
+ * Popular records are refreshed ahead of time: a record read within
+ * <code>refresh.ahead</code> milliseconds of expiring, and within the last quarter of its
+ * TTL, is reloaded in the background while the cached copy is still served. A record
+ * that has expired is served stale for up to <code>max.stale</code> milliseconds while it
+ * is reloaded; after that callers wait for the directory. Neither applies to entries
+ * that do not exist, which simply expire after <code>negative.ttl</code>. Reloads run
+ * on <code>refresh.threads</code> threads with a queue of <code>refresh.queue</code>, and
+ * take connections from the same pool as everything else.
+ */
+@Component(metatype=true, immediate=true)
+@Service(value=LdapRecordCache.class)
+public class LdapRecordCacheImpl implements LdapRecordCache {
+
+  private static final Logger log = LoggerFactory.getLogger(LdapRecordCacheImpl.class);
+
+  @Property(intValue=10000)
+  private static final String PROP_MAX_ENTRIES = "max.entries";
+
+  @Property(longValue=33554432)
+  private static final String PROP_MAX_BYTES = "max.bytes";
+
+  @Property(longValue=600000)
+  private static final String PROP_TTL = "ttl";
+
+  @Property(longValue=60000)
+  private static final String PROP_NEGATIVE_TTL = "negative.ttl";
+
+  @Property(longValue=10000)
+  private static final String PROP_COALESCE_TIMEOUT = "coalesce.timeout";
+
+  @Property(longValue=60000)
+  private static final String PROP_REFRESH_AHEAD = "refresh.ahead";
+
+  @Property(longValue=300000)
+  private static final String PROP_MAX_STALE = "max.stale";
+
+  @Property(intValue=2)
+  private static final String PROP_REFRESH_THREADS = "refresh.threads";
+
+  @Property(intValue=100)
+  private static final String PROP_REFRESH_QUEUE = "refresh.queue";
+
+  /** Rough per record overhead of the map, cache entry and key, in bytes. */
+  private static final long RECORD_OVERHEAD = 200;
+
+  /** Largest share of a record's TTL in which it is refreshed ahead. */
+  private static final int REFRESH_AHEAD_DIVISOR = 4;
+
+  /** Rough per attribute overhead of a map entry and string headers, in bytes. */
+  private static final long ATTRIBUTE_OVERHEAD = 80;
+
+  /**
+   * A cached record.
+   */
+  private static class Entry {
+    private final String dn;
+    private final String[] attributes;
+    /** null for an entry that does not exist */
+    private final Map<String, Object> record;
+    private final long expires;
+    private final long bytes;
+    /** whether a refresh has been queued, guarded by the cache lock */
+    private boolean refreshing;
+
+    Entry(String dn, String[] attributes, Map<String, Object> record, long expires,
+        long bytes) {
+      this.dn = dn;
+      this.attributes = attributes;
+      this.record = record;
+      this.expires = expires;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * A read in progress, which callers wanting the same record wait on rather than
+   * reading it again.
+   */
+  private static class Flight {
+    private final LdapFuture<Map<String, Object>> future = new LdapFuture<Map<String, Object>>();
+    private final long started;
+
+    Flight(long started) {
+      this.started = started;
+    }
+  }
+
+  @Reference
+  private SimpleLdapConnectionManager simpleLdapConnectionManager;
+
+  /** Reads in progress, by key. */
+  private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+  /** Cached records by key, least recently used first. Guarded by itself. */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16,
+      0.75f, true);
+
+  private long bytes;
+
+  /**
+   * Incremented by every invalidation, so that a read that was in flight when its
+   * record was invalidated is not cached.
+   */
+  private long generation;
+
+  private volatile int maxEntries;
+
+  private volatile long maxBytes;
+
+  private volatile long ttl;
+
+  private volatile long negativeTtl;
+
+  private volatile long coalesceTimeout;
+
+  private volatile long refreshAhead;
+
+  private volatile long maxStale;
+
+  /** reloads records in the background, null if refresh-ahead is off */
+  private volatile ThreadPoolExecutor refreshExecutor;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong negativeHits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  private final AtomicLong expirations = new AtomicLong();
+
+  private final AtomicLong invalidations = new AtomicLong();
+
+  private final AtomicLong coalesced = new AtomicLong();
+
+  private final AtomicLong coalesceTimeouts = new AtomicLong();
+
+  private final AtomicLong staleHits = new AtomicLong();
+
+  private final AtomicLong refreshes = new AtomicLong();
+
+  private final AtomicLong refreshFailures = new AtomicLong();
+
+  private final AtomicLong refreshesRejected = new AtomicLong();
+
+  @Activate
+  @Modified
+  public void modified(Map<String, Object> properties) {
+    maxEntries = OsgiUtil.toInteger(properties.get(PROP_MAX_ENTRIES), 10000);
+    maxBytes = OsgiUtil.toLong(properties.get(PROP_MAX_BYTES), 33554432);
+    ttl = OsgiUtil.toLong(properties.get(PROP_TTL), 600000);
+    negativeTtl = OsgiUtil.toLong(properties.get(PROP_NEGATIVE_TTL), 60000);
+    coalesceTimeout = OsgiUtil.toLong(properties.get(PROP_COALESCE_TIMEOUT), 10000);
+    refreshAhead = OsgiUtil.toLong(properties.get(PROP_REFRESH_AHEAD), 60000);
+    maxStale = OsgiUtil.toLong(properties.get(PROP_MAX_STALE), 300000);
+    startRefresh(OsgiUtil.toInteger(properties.get(PROP_REFRESH_THREADS), 2),
+        OsgiUtil.toInteger(properties.get(PROP_REFRESH_QUEUE), 100));
+    synchronized (entries) {
+      evict();
+    }
+  }
+
+  @Deactivate
+  public void deactivate(Map<String, Object> properties) {
+    stopRefresh();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public Map<String, Object> getRecord(String dn, String[] attributes) throws LDAPException {
+    return getRecord(dn, attributes, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public Map<String, Object> getRecord(String dn, String[] attributes, LdapDeadline deadline)
+      throws LDAPException {
+    String key = key(dn, attributes);
+    if (ttl <= 0) {
+      return load(key, dn, attributes, false, 0, deadline);
+    }
+    long now = System.currentTimeMillis();
+    long readGeneration;
+    synchronized (entries) {
+      readGeneration = generation;
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        if (entry.expires > now) {
+          if (entry.record == null) {
+            negativeHits.incrementAndGet();
+          } else {
+            hits.incrementAndGet();
+          }
+          if (entry.record != null
+              && entry.expires - now <= Math.min(refreshAhead, ttl / REFRESH_AHEAD_DIVISOR)) {
+            refresh(key, entry, readGeneration);
+          }
+          return entry.record;
+        }
+        if (entry.record != null && entry.expires + maxStale > now
+            && refresh(key, entry, readGeneration)) {
+          // stale, but a fresh copy is on its way.
+          staleHits.incrementAndGet();
+          return entry.record;
+        }
+        remove(key);
+        expirations.incrementAndGet();
+      }
+    }
+    misses.incrementAndGet();
+    return load(key, dn, attributes, true, readGeneration, deadline);
+  }
+
+  /**
+   * Reads a record from the directory, unless another caller is already reading it, in
+   * which case waits for their result. A caller waits at most
+   * <code>coalesce.timeout</code> from the start of the read; a read that has taken
+   * longer than that is no longer waited on, and the next caller reads afresh. Nor is
+   * it waited on past the caller's deadline.
+   */
+  private Map<String, Object> load(String key, String dn, String[] attributes,
+      boolean cache, long readGeneration, LdapDeadline deadline) throws LDAPException {
+    long timeout = coalesceTimeout;
+    if (timeout <= 0) {
+      Map<String, Object> record = read(dn, attributes, deadline);
+      if (cache) {
+        put(key, dn, attributes, record, System.currentTimeMillis(), readGeneration);
+      }
+      return record;
+    }
+
+    long now = System.currentTimeMillis();
+    Flight flight = new Flight(now);
+    Flight existing;
+    while ((existing = flights.putIfAbsent(key, flight)) != null) {
+      long remaining = existing.started + timeout - now;
+      if (remaining > 0) {
+        coalesced.incrementAndGet();
+        long wait = deadline == null ? remaining : Math.min(remaining, deadline.remaining());
+        try {
+          return existing.future.getResult(wait);
+        } catch (LDAPException e) {
+          if (e.getResultCode() == LDAPException.LDAP_TIMEOUT && !existing.future.isDone()) {
+            if (wait < remaining) {
+              throw new LdapDeadlineExceededException("Out of time waiting for " + dn);
+            }
+            coalesceTimeouts.incrementAndGet();
+          }
+          throw e;
+        }
+      }
+      // stuck, stop sending callers to it.
+      flights.remove(key, existing);
+    }
+
+    try {
+      Map<String, Object> record = read(dn, attributes, deadline);
+      if (cache) {
+        put(key, dn, attributes, record, System.currentTimeMillis(), readGeneration);
+      }
+      flight.future.complete(record);
+      return record;
+    } catch (LDAPException e) {
+      flight.future.fail(e);
+      throw e;
+    } catch (RuntimeException e) {
+      flight.future.fail(e);
+      throw e;
+    } catch (Error e) {
+      flight.future.fail(e);
+      throw e;
+    } finally {
+      flights.remove(key, flight);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void invalidate(String dn) {
+    synchronized (entries) {
+      generation++;
+      for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+        Entry entry = i.next();
+        if (entry.dn.equalsIgnoreCase(dn)) {
+          i.remove();
+          bytes -= entry.bytes;
+          invalidations.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void invalidateAll() {
+    synchronized (entries) {
+      generation++;
+      invalidations.addAndGet(entries.size());
+      entries.clear();
+      bytes = 0;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+    synchronized (entries) {
+      statistics.put("entries", entries.size());
+      statistics.put("bytes", bytes);
+    }
+    statistics.put("maxEntries", maxEntries);
+    statistics.put("maxBytes", maxBytes);
+    statistics.put("hits", hits.get());
+    statistics.put("negativeHits", negativeHits.get());
+    statistics.put("misses", misses.get());
+    statistics.put("evictions", evictions.get());
+    statistics.put("expirations", expirations.get());
+    statistics.put("invalidations", invalidations.get());
+    statistics.put("inFlight", flights.size());
+    statistics.put("coalesced", coalesced.get());
+    statistics.put("coalesceTimeouts", coalesceTimeouts.get());
+    statistics.put("staleHits", staleHits.get());
+    statistics.put("refreshes", refreshes.get());
+    statistics.put("refreshFailures", refreshFailures.get());
+    statistics.put("refreshesRejected", refreshesRejected.get());
+    return statistics;
+  }
+
+  /**
+   * Reads a record from the directory.
+   *
+   * @param deadline
+   *          null if there is no deadline.
+   * @return the record, or null if the entry does not exist.
+   */
+  protected Map<String, Object> read(String dn, String[] attributes, LdapDeadline deadline)
+      throws LDAPException {
+    LDAPEntry ldapEntry;
+    try {
+      ldapEntry = simpleLdapConnectionManager.read(dn, attributes, deadline);
+    } catch (LDAPException e) {
+      if (e.getResultCode() == LDAPException.NO_SUCH_OBJECT) {
+        return null;
+      }
+      throw e;
+    }
+    if (ldapEntry == null) {
+      return null;
+    }
+    return LdapRecord.fromEntry(ldapEntry);
+  }
+
+  private void put(String key, String dn, String[] attributes, Map<String, Object> record,
+      long now, long readGeneration) {
+    long expires = now + (record == null ? negativeTtl : ttl);
+    if (expires <= now) {
+      return;
+    }
+    Entry entry = new Entry(dn, attributes, record, expires, sizeOf(key, record));
+    synchronized (entries) {
+      if (readGeneration != generation) {
+        return;
+      }
+      remove(key);
+      entries.put(key, entry);
+      bytes += entry.bytes;
+      evict();
+    }
+  }
+
+  /**
+   * Queues a background reload of a record, unless one is already queued. Must be called
+   * holding the lock.
+   *
+   * @return <code>true</code> if a reload is queued.
+   */
+  private boolean refresh(final String key, final Entry entry, final long readGeneration) {
+    if (entry.refreshing) {
+      return true;
+    }
+    ThreadPoolExecutor executor = refreshExecutor;
+    if (executor == null) {
+      return false;
+    }
+    entry.refreshing = true;
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            refreshes.incrementAndGet();
+            load(key, entry.dn, entry.attributes, true, readGeneration, null);
+          } catch (LDAPException e) {
+            refreshFailures.incrementAndGet();
+            log.debug("refresh(): failed to reload {}: {}", entry.dn, e.getMessage());
+          } finally {
+            synchronized (entries) {
+              // a successful reload replaces the entry; after a failure this lets the
+              // next caller try again.
+              entry.refreshing = false;
+            }
+          }
+        }
+      });
+      return true;
+    } catch (RejectedExecutionException e) {
+      refreshesRejected.incrementAndGet();
+      entry.refreshing = false;
+      return false;
+    }
+  }
+
+  private synchronized void startRefresh(int threads, int queueSize) {
+    stopRefresh();
+    if (refreshAhead <= 0 && maxStale <= 0) {
+      return;
+    }
+    // few threads and a bounded queue, so that refreshing never takes more than a small
+    // share of the connection pool; refreshes that do not fit are skipped.
+    refreshExecutor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "LDAP record refresh");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  private synchronized void stopRefresh() {
+    if (refreshExecutor != null) {
+      refreshExecutor.shutdownNow();
+      refreshExecutor = null;
+    }
+  }
+
+  /**
+   * Removes a record. Must be called holding the lock.
+   */
+  private void remove(String key) {
+    Entry old = entries.remove(key);
+    if (old != null) {
+      bytes -= old.bytes;
+    }
+  }
+
+  /**
+   * Drops least recently used records until the cache is within its bounds. Must be
+   * called holding the lock.
+   */
+  private void evict() {
+    for (Iterator<Entry> i = entries.values().iterator(); i.hasNext()
+        && ((maxEntries > 0 && entries.size() > maxEntries) || (maxBytes > 0 && bytes > maxBytes));) {
+      Entry eldest = i.next();
+      i.remove();
+      bytes -= eldest.bytes;
+      evictions.incrementAndGet();
+    }
+  }
+
+  private static String key(String dn, String[] attributes) {
+    if (attributes == null) {
+      return dn;
+    }
+    StringBuilder sb = new StringBuilder(dn).append('\n');
+    for (String attribute : attributes) {
+      sb.append(attribute).append(',');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return a rough estimate of the memory used to cache a record, in bytes.
+   */
+  private static long sizeOf(String key, Map<String, Object> record) {
+    long size = RECORD_OVERHEAD + 2L * key.length();
+    if (record == null) {
+      return size;
+    }
+    if (record instanceof LdapRecord) {
+      return size + ((LdapRecord) record).getSize();
+    }
+    for (Map.Entry<String, Object> e : record.entrySet()) {
+      size += ATTRIBUTE_OVERHEAD + 2L * e.getKey().length();
+      Object value = e.getValue();
+      if (value instanceof String[]) {
+        for (String s : (String[]) value) {
+          size += 40 + 2L * s.length();
+        }
+      } else {
+        size += 40 + 2L * value.toString().length();
+      }
+    }
+    return size;
+  }
+}
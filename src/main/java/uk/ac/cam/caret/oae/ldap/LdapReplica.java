@@ -0,0 +1,48 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import java.util.Map;
+
+/**
+ * An in-memory copy of part of the directory, so that lookups can be answered without
+ * asking the directory. The copy may lag the directory by a little while, and may not
+ * hold every entry or attribute: callers read the directory for anything it does not
+ * have.
+ */
+public interface LdapReplica {
+
+  /**
+   * @param dn
+   *          the DN of the entry.
+   * @param attributes
+   *          the attributes the caller needs, null or <code>*</code> for all user
+   *          attributes.
+   * @return the replicated record of the entry, which must not be modified and may hold
+   *         more attributes than asked for, or null if the replica is not loaded, does
+   *         not hold the entry, or does not replicate all of the attributes.
+   */
+  Map<String, Object> getRecord(String dn, String[] attributes);
+
+  /**
+   * As {@link #getRecord(String, String[])}, for a caller that drops some attributes
+   * whatever it asks for, so that asking for all user attributes can be answered by a
+   * replica that leaves those out.
+   *
+   * @param ignored
+   *          the attributes the caller does not need.
+   */
+  Map<String, Object> getRecord(String dn, String[] attributes, String[] ignored);
+
+  /**
+   * Registers a listener for changes to the replica. If the replica is loaded already,
+   * the listener is told so at once, on the calling thread.
+   */
+  void addListener(LdapReplicaListener listener);
+
+  void removeListener(LdapReplicaListener listener);
+
+  /**
+   * @return the size of the replica and how current it is.
+   */
+  Map<String, Object> getStatistics();
+
+}
@@ -0,0 +1,453 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a copy of the entries under <code>base</code> that match <code>filter</code> in
+ * memory. Off unless <code>enabled</code> is set.
+ * <p>
+ * The entries are loaded with a paged search, then kept current by searching every
+ * <code>poll.interval</code> milliseconds for entries whose <code>modifyTimestamp</code>
+ * is no older than the newest one seen. Polling cannot see entries being deleted or
+ * renamed, so everything is loaded again every <code>reload.interval</code>
+ * milliseconds; if the directory does not return <code>modifyTimestamp</code> there is
+ * nothing to poll by, and reloading is all that is done.
+ * <p>
+ * Only the <code>attributes</code> listed are kept (all user attributes if none are),
+ * less those in <code>attributes.exclude</code>, by default the large
+ * <code>jpegPhoto</code>. Callers asking for anything else are told to read the
+ * directory.
+ * <p>
+ * The replica holds every matching entry, so size the heap for it: roughly the number of
+ * entries times the size of a cached record.
+ */
+@Component(metatype=true, immediate=true)
+@Service(value=LdapReplica.class)
+public class LdapReplicaImpl implements LdapReplica {
+
+  private static final Logger log = LoggerFactory.getLogger(LdapReplicaImpl.class);
+
+  @Property(boolValue=false)
+  private static final String PROP_ENABLED = "enabled";
+
+  @Property(value="ou=people,o=University of Cambridge,dc=cam,dc=ac,dc=uk")
+  private static final String PROP_BASE = "base";
+
+  @Property(value="(uid=*)")
+  private static final String PROP_FILTER = "filter";
+
+  @Property(value={}, cardinality=Integer.MAX_VALUE)
+  private static final String PROP_ATTRIBUTES = "attributes";
+
+  @Property(value={ "jpegPhoto" }, cardinality=Integer.MAX_VALUE)
+  private static final String PROP_ATTRIBUTES_EXCLUDE = "attributes.exclude";
+
+  @Property(intValue=500)
+  private static final String PROP_PAGE_SIZE = "page.size";
+
+  @Property(longValue=60000)
+  private static final String PROP_POLL_INTERVAL = "poll.interval";
+
+  @Property(longValue=21600000)
+  private static final String PROP_RELOAD_INTERVAL = "reload.interval";
+
+  @Reference
+  private SimpleLdapConnectionManager simpleLdapConnectionManager;
+
+  private String base;
+
+  private String filter;
+
+  /** lower case names of the attributes kept, null for all user attributes */
+  private volatile Set<String> replicatedAttributes;
+
+  /** lower case names of the attributes left out */
+  private volatile Set<String> excludedAttributes = Collections.emptySet();
+
+  /** the attributes to search for */
+  private String[] searchAttributes;
+
+  private int pageSize;
+
+  private long pollInterval;
+
+  private long reloadInterval;
+
+  /** normalised DN to record, null until loaded */
+  private volatile Map<String, Map<String, Object>> records;
+
+  /** the newest modifyTimestamp seen, only touched by the sync thread */
+  private long newestModified;
+
+  /**
+   * false if the entries loaded have no modifyTimestamp to poll by, so that changes are
+   * only seen by reloading
+   */
+  private volatile boolean polling;
+
+  private volatile long lastLoad;
+
+  private volatile long lastSync;
+
+  private ScheduledExecutorService syncExecutor;
+
+  private final List<LdapReplicaListener> listeners =
+      new CopyOnWriteArrayList<LdapReplicaListener>();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong loads = new AtomicLong();
+
+  private final AtomicLong polls = new AtomicLong();
+
+  private final AtomicLong updates = new AtomicLong();
+
+  private final AtomicLong failures = new AtomicLong();
+
+  @Activate
+  @Modified
+  public synchronized void modified(Map<String, Object> properties) {
+    stopSync();
+    records = null;
+    base = OsgiUtil.toString(properties.get(PROP_BASE),
+        "ou=people,o=University of Cambridge,dc=cam,dc=ac,dc=uk");
+    filter = OsgiUtil.toString(properties.get(PROP_FILTER), "(uid=*)").trim();
+    if (!filter.startsWith("(")) {
+      filter = "(" + filter + ")";
+    }
+    Set<String> excluded = new HashSet<String>();
+    for (String attribute : OsgiUtil.toStringArray(properties.get(PROP_ATTRIBUTES_EXCLUDE),
+        new String[] { "jpegPhoto" })) {
+      if (attribute.trim().length() > 0) {
+        excluded.add(attribute.trim().toLowerCase());
+      }
+    }
+    excludedAttributes = excluded;
+    List<String> attributes = new ArrayList<String>();
+    Set<String> names = new HashSet<String>();
+    for (String attribute : OsgiUtil.toStringArray(properties.get(PROP_ATTRIBUTES),
+        new String[0])) {
+      if (attribute.trim().length() > 0 && !excluded.contains(attribute.trim().toLowerCase())) {
+        attributes.add(attribute.trim());
+        names.add(attribute.trim().toLowerCase());
+      }
+    }
+    if (attributes.isEmpty()) {
+      attributes.add("*");
+      replicatedAttributes = null;
+    } else {
+      replicatedAttributes = names;
+    }
+    // needed to poll, and by callers validating what they return.
+    attributes.add(LdapUtil.MODIFY_TIMESTAMP);
+    attributes.add(LdapUtil.ENTRY_CSN);
+    searchAttributes = attributes.toArray(new String[attributes.size()]);
+    pageSize = OsgiUtil.toInteger(properties.get(PROP_PAGE_SIZE), 500);
+    pollInterval = OsgiUtil.toLong(properties.get(PROP_POLL_INTERVAL), 60000);
+    reloadInterval = OsgiUtil.toLong(properties.get(PROP_RELOAD_INTERVAL), 21600000);
+    if (OsgiUtil.toBoolean(properties.get(PROP_ENABLED), false)) {
+      startSync();
+    }
+  }
+
+  @Deactivate
+  public synchronized void deactivate(Map<String, Object> properties) {
+    stopSync();
+    records = null;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public Map<String, Object> getRecord(String dn, String[] attributes) {
+    return getRecord(dn, attributes, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public Map<String, Object> getRecord(String dn, String[] attributes, String[] ignored) {
+    Map<String, Map<String, Object>> current = records;
+    if (current == null || !covers(attributes, ignored)) {
+      return null;
+    }
+    Map<String, Object> record = current.get(normalise(dn));
+    if (record == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return record;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void addListener(LdapReplicaListener listener) {
+    listeners.add(listener);
+    Map<String, Map<String, Object>> current = records;
+    if (current != null) {
+      listener.replicaLoaded(Collections.unmodifiableMap(current));
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void removeListener(LdapReplicaListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public Map<String, Object> getStatistics() {
+    Map<String, Map<String, Object>> current = records;
+    Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+    statistics.put("enabled", syncExecutor != null);
+    statistics.put("loaded", current != null);
+    statistics.put("entries", current == null ? 0 : current.size());
+    statistics.put("lastLoad", lastLoad);
+    statistics.put("lastSync", lastSync);
+    statistics.put("polling", polling);
+    statistics.put("hits", hits.get());
+    statistics.put("misses", misses.get());
+    statistics.put("loads", loads.get());
+    statistics.put("polls", polls.get());
+    statistics.put("updates", updates.get());
+    statistics.put("failures", failures.get());
+    return statistics;
+  }
+
+  /**
+   * @return <code>true</code> if every attribute asked for is replicated.
+   */
+  private boolean covers(String[] attributes, String[] ignored) {
+    Set<String> replicated = replicatedAttributes;
+    Set<String> excluded = excludedAttributes;
+    if (attributes == null) {
+      return replicated == null && ignores(excluded, ignored);
+    }
+    for (String attribute : attributes) {
+      String name = attribute.toLowerCase();
+      if (name.equals(LdapUtil.MODIFY_TIMESTAMP.toLowerCase())
+          || name.equals(LdapUtil.ENTRY_CSN.toLowerCase())) {
+        continue;
+      }
+      if (replicated == null) {
+        if (name.startsWith("+") || excluded.contains(name)
+            || (name.equals("*") && !ignores(excluded, ignored))) {
+          return false;
+        }
+      } else if (!replicated.contains(name)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return <code>true</code> if every attribute left out of the replica is ignored by
+   *         the caller.
+   */
+  private static boolean ignores(Set<String> excluded, String[] ignored) {
+    if (excluded.isEmpty()) {
+      return true;
+    }
+    Set<String> names = new HashSet<String>();
+    if (ignored != null) {
+      for (String attribute : ignored) {
+        names.add(attribute.toLowerCase());
+      }
+    }
+    return names.containsAll(excluded);
+  }
+
+  /**
+   * Loads the replica if it is not loaded or due to be reloaded, otherwise fetches the
+   * entries changed since the last time. Runs on the sync thread only.
+   */
+  private void sync() {
+    long now = System.currentTimeMillis();
+    try {
+      if (records == null || now - lastLoad >= reloadInterval) {
+        load();
+        lastLoad = now;
+      } else if (polling) {
+        poll();
+      }
+      lastSync = now;
+    } catch (LDAPException e) {
+      failures.incrementAndGet();
+      log.warn("Failed to sync the directory replica, will retry: {}", e.getMessage());
+      log.debug(e.getMessage(), e);
+    } catch (IOException e) {
+      failures.incrementAndGet();
+      log.warn("Failed to sync the directory replica, will retry: {}", e.getMessage());
+    }
+  }
+
+  private void load() throws LDAPException, IOException {
+    long start = System.currentTimeMillis();
+    final Map<String, Map<String, Object>> loaded =
+        new ConcurrentHashMap<String, Map<String, Object>>();
+    newestModified = 0;
+    simpleLdapConnectionManager.searchPaged(base, LDAPConnection.SCOPE_SUB, filter,
+        searchAttributes, pageSize, new LdapEntryHandler() {
+          public void handle(LDAPEntry entry) {
+            store(loaded, entry);
+          }
+        });
+    // swapped in whole, so that lookups never see a half loaded replica.
+    records = loaded;
+    for (LdapReplicaListener listener : listeners) {
+      try {
+        listener.replicaLoaded(Collections.unmodifiableMap(loaded));
+      } catch (RuntimeException e) {
+        log.warn("Replica listener {} failed: {}", listener, e.getMessage());
+        log.debug(e.getMessage(), e);
+      }
+    }
+    loads.incrementAndGet();
+    log.info("Loaded {} directory entries in {} ms", loaded.size(),
+        System.currentTimeMillis() - start);
+    // without a timestamp every poll would fetch the whole subtree again.
+    polling = newestModified > 0 || loaded.isEmpty();
+    if (!polling) {
+      log.warn("None of the directory entries loaded has a {}, so changes will only be "
+          + "seen when the replica is reloaded every {} ms", LdapUtil.MODIFY_TIMESTAMP,
+          reloadInterval);
+    }
+  }
+
+  private void poll() throws LDAPException, IOException {
+    final Map<String, Map<String, Object>> current = records;
+    // >= rather than >, as timestamps only have a resolution of a second; entries seen
+    // already are simply stored again.
+    String changed = "(&" + filter + "(" + LdapUtil.MODIFY_TIMESTAMP + ">="
+        + formatGeneralizedTime(newestModified) + "))";
+    simpleLdapConnectionManager.searchPaged(base, LDAPConnection.SCOPE_SUB, changed,
+        searchAttributes, pageSize, new LdapEntryHandler() {
+          public void handle(LDAPEntry entry) {
+            String dn = normalise(entry.getDN());
+            Map<String, Object> record = store(current, entry);
+            updates.incrementAndGet();
+            for (LdapReplicaListener listener : listeners) {
+              try {
+                listener.recordChanged(dn, record);
+              } catch (RuntimeException e) {
+                log.warn("Replica listener {} failed: {}", listener, e.getMessage());
+                log.debug(e.getMessage(), e);
+              }
+            }
+          }
+        });
+    polls.incrementAndGet();
+  }
+
+  private Map<String, Object> store(Map<String, Map<String, Object>> target,
+      LDAPEntry entry) {
+    Map<String, Object> record = LdapRecord.fromEntry(entry, excludedAttributes);
+    Object modifyTimestamp = record.get(LdapUtil.MODIFY_TIMESTAMP);
+    if (modifyTimestamp instanceof String) {
+      newestModified = Math.max(newestModified,
+          LdapUtil.parseGeneralizedTime((String) modifyTimestamp));
+    }
+    target.put(normalise(entry.getDN()), record);
+    return record;
+  }
+
+  private static String formatGeneralizedTime(long time) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(new Date(time));
+  }
+
+  /**
+   * Normalises a DN well enough to match the DNs the directory returns with those made
+   * from templates: lower case, without spaces around separators.
+   */
+  private static String normalise(String dn) {
+    StringBuilder sb = new StringBuilder(dn.length());
+    boolean escaped = false;
+    for (int i = 0; i < dn.length(); i++) {
+      char c = dn.charAt(i);
+      if (!escaped && (c == ',' || c == '=' || c == '+')) {
+        // drop the spaces before the separator and skip those after it.
+        while (sb.length() > 0 && sb.charAt(sb.length() - 1) == ' ') {
+          sb.setLength(sb.length() - 1);
+        }
+        sb.append(c);
+        while (i + 1 < dn.length() && dn.charAt(i + 1) == ' ') {
+          i++;
+        }
+        continue;
+      }
+      escaped = !escaped && c == '\\';
+      sb.append(Character.toLowerCase(c));
+    }
+    return sb.toString().trim();
+  }
+
+  private void startSync() {
+    syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "LDAP directory replica");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    syncExecutor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          sync();
+        } catch (RuntimeException e) {
+          failures.incrementAndGet();
+          log.warn("Failed to sync the directory replica: {}", e.getMessage());
+          log.debug(e.getMessage(), e);
+        }
+      }
+    }, 0, Math.max(1000, pollInterval), TimeUnit.MILLISECONDS);
+  }
+
+  private void stopSync() {
+    if (syncExecutor != null) {
+      syncExecutor.shutdownNow();
+      syncExecutor = null;
+    }
+  }
+}
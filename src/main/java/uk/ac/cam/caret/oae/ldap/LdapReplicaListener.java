@@ -0,0 +1,33 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import java.util.Map;
+
+/**
+ * Told when the {@link LdapReplica} is loaded and when its records change, so that
+ * structures built from the replica can be kept up to date without rebuilding them. Called
+ * on the thread keeping the replica in sync, so must not block for long.
+ *
+ * @see LdapReplica#addListener(LdapReplicaListener)
+ */
+public interface LdapReplicaListener {
+
+  /**
+   * The replica has been loaded or reloaded, replacing every record.
+   *
+   * @param records
+   *          normalised DN to record, which must not be modified.
+   */
+  void replicaLoaded(Map<String, Map<String, Object>> records);
+
+  /**
+   * A record has been added or changed since the replica was loaded. A record may be
+   * reported again without having changed.
+   *
+   * @param dn
+   *          the normalised DN of the entry.
+   * @param record
+   *          the new record, which must not be modified.
+   */
+  void recordChanged(String dn, Map<String, Object> record);
+
+}
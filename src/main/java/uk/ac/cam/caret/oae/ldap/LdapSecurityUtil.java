@@ -83,8 +83,13 @@ public class LdapSecurityUtil {
   public static SSLContext initKeystore(String keystoreLocation, String keystorePassword)
       throws GeneralSecurityException, IOException {
     FileInputStream fis = new FileInputStream(keystoreLocation);
-    char[] passChars = (keystorePassword != null) ? keystorePassword.toCharArray() : null;
-    TrustManager[] myTM = new TrustManager[] { new LdapX509TrustManager(fis, passChars) };
+    TrustManager[] myTM;
+    try {
+      char[] passChars = (keystorePassword != null) ? keystorePassword.toCharArray() : null;
+      myTM = new TrustManager[] { new LdapX509TrustManager(fis, passChars) };
+    } finally {
+      fis.close();
+    }
     SSLContext ctx = SSLContext.getInstance("TLS");
     ctx.init(null, myTM, null);
     return ctx;
@@ -0,0 +1,115 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One directory replica in a {@link LdapServerSet}, with its health and the number of
+ * connections currently open to it.
+ */
+public class LdapServer {
+
+  private final String host;
+
+  private final int port;
+
+  private final int weight;
+
+  private final AtomicInteger outstanding = new AtomicInteger();
+
+  private final AtomicBoolean probing = new AtomicBoolean();
+
+  /** Consecutive failed connection attempts. */
+  private int failures;
+
+  /** Time (in milliseconds) before which the replica is considered down. */
+  private long downUntil;
+
+  /** Smooth weighted round robin state, guarded by the owning server set. */
+  int currentWeight;
+
+  public LdapServer(String host, int port, int weight) {
+    this.host = host;
+    this.port = port;
+    this.weight = Math.max(1, weight);
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  public int getWeight() {
+    return weight;
+  }
+
+  /**
+   * @return the number of connections currently open to this replica.
+   */
+  public int getOutstanding() {
+    return outstanding.get();
+  }
+
+  /**
+   * @return <code>true</code> if the replica is not currently marked down.
+   */
+  public synchronized boolean isUp() {
+    return failures == 0;
+  }
+
+  /**
+   * @return the time (in milliseconds) after which a down replica may be probed again.
+   */
+  public synchronized long getDownUntil() {
+    return downUntil;
+  }
+
+  void connectionOpened() {
+    outstanding.incrementAndGet();
+  }
+
+  void connectionClosed() {
+    outstanding.decrementAndGet();
+  }
+
+  /**
+   * @return <code>true</code> if the caller may probe this down replica. Only one
+   *         caller at a time is allowed to probe, and only once its back-off expired.
+   */
+  boolean claimProbe(long now) {
+    synchronized (this) {
+      if (failures == 0 || now < downUntil) {
+        return false;
+      }
+    }
+    return probing.compareAndSet(false, true);
+  }
+
+  void releaseProbe() {
+    probing.set(false);
+  }
+
+  synchronized void markUp() {
+    failures = 0;
+    downUntil = 0;
+    probing.set(false);
+  }
+
+  synchronized void markDown(long now, long retryInterval, long maxRetryInterval) {
+    failures++;
+    long backoff = retryInterval;
+    for (int i = 1; i < failures && backoff < maxRetryInterval; i++) {
+      backoff = backoff * 2;
+    }
+    downUntil = now + Math.min(backoff, maxRetryInterval);
+    probing.set(false);
+  }
+
+  @Override
+  public String toString() {
+    return host + ":" + port;
+  }
+}
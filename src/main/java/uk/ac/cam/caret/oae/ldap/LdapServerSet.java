@@ -0,0 +1,233 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPConnection;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The directory replicas a connection manager may connect to, and the policy for
+ * choosing between them. Hosts are given as a list of
+ * <code>host[:port][*weight]</code> separated by spaces, commas or semicolons, eg
+ * <code>ldap1.example.com:636*2;ldap2.example.com</code>.
+ * <p>
+ * {@link #getCandidates()} returns the replicas to try for a new connection, in order.
+ * Replicas that fail are marked down and retried with exponential back-off; once the
+ * back-off has expired a single caller may claim the replica with
+ * {@link #claimProbes()} and probe it, and a successful connection marks it up again.
+ */
+public class LdapServerSet {
+
+  /** Healthy replicas are tried in the configured order. */
+  public static final String STRATEGY_ORDERED = "ordered";
+
+  /** Healthy replicas take turns, in proportion to their weight. */
+  public static final String STRATEGY_ROUND_ROBIN = "round-robin";
+
+  /** The healthy replica with the fewest open connections per unit weight goes first. */
+  public static final String STRATEGY_LEAST_OUTSTANDING = "least-outstanding";
+
+  private final List<LdapServer> servers;
+
+  private final String strategy;
+
+  private final long retryInterval;
+
+  private final long maxRetryInterval;
+
+  /** the replica each open connection was counted against */
+  private final Map<LDAPConnection, LdapServer> connections = Collections
+      .synchronizedMap(new IdentityHashMap<LDAPConnection, LdapServer>());
+
+  /**
+   * @param hosts
+   *          the host list.
+   * @param defaultPort
+   *          the port for hosts that do not specify one.
+   * @param strategy
+   *          one of the <code>STRATEGY_</code> constants.
+   * @param retryInterval
+   *          the time (in milliseconds) a replica is left alone after its first failure.
+   * @param maxRetryInterval
+   *          the maximum time (in milliseconds) a replica is left alone after
+   *          repeated failures.
+   */
+  public LdapServerSet(String hosts, int defaultPort, String strategy, long retryInterval,
+      long maxRetryInterval) {
+    this.servers = Collections.unmodifiableList(parse(hosts, defaultPort));
+    this.strategy = strategy;
+    this.retryInterval = retryInterval;
+    this.maxRetryInterval = maxRetryInterval;
+  }
+
+  /**
+   * @return all configured replicas, in configured order.
+   */
+  public List<LdapServer> getServers() {
+    return servers;
+  }
+
+  /**
+   * @return the replicas to try for a new connection, most preferred first. Down
+   *         replicas come after every healthy one, soonest to recover first.
+   */
+  public List<LdapServer> getCandidates() {
+    List<LdapServer> candidates = new ArrayList<LdapServer>();
+    List<LdapServer> down = new ArrayList<LdapServer>();
+    for (LdapServer server : servers) {
+      if (server.isUp()) {
+        candidates.add(server);
+      } else {
+        down.add(server);
+      }
+    }
+
+    if (STRATEGY_LEAST_OUTSTANDING.equals(strategy)) {
+      Collections.sort(candidates, new Comparator<LdapServer>() {
+        public int compare(LdapServer a, LdapServer b) {
+          long la = (long) a.getOutstanding() * b.getWeight();
+          long lb = (long) b.getOutstanding() * a.getWeight();
+          return la < lb ? -1 : (la == lb ? 0 : 1);
+        }
+      });
+    } else if (STRATEGY_ROUND_ROBIN.equals(strategy) && candidates.size() > 1) {
+      LdapServer next = nextWeighted(candidates);
+      candidates.remove(next);
+      candidates.add(0, next);
+    }
+
+    Collections.sort(down, new Comparator<LdapServer>() {
+      public int compare(LdapServer a, LdapServer b) {
+        long da = a.getDownUntil();
+        long db = b.getDownUntil();
+        return da < db ? -1 : (da == db ? 0 : 1);
+      }
+    });
+    candidates.addAll(down);
+    return candidates;
+  }
+
+  /**
+   * @return the down replicas whose back-off has expired, claimed for this caller to
+   *         probe. Each claim ends when the probe is recorded as
+   *         {@link #connected(LdapServer, LDAPConnection)} or {@link #failed(LdapServer)},
+   *         or when it is given up with {@link #released(LdapServer)}.
+   */
+  public List<LdapServer> claimProbes() {
+    long now = System.currentTimeMillis();
+    List<LdapServer> probes = new ArrayList<LdapServer>();
+    for (LdapServer server : servers) {
+      if (!server.isUp() && server.claimProbe(now)) {
+        probes.add(server);
+      }
+    }
+    return probes;
+  }
+
+  /**
+   * Records a successful connection to a replica, counting it as open until it is
+   * {@link #disconnected(LDAPConnection)}.
+   */
+  public void connected(LdapServer server, LDAPConnection conn) {
+    if (!server.isUp()) {
+      server.markUp();
+    }
+    if (connections.put(conn, server) == null) {
+      server.connectionOpened();
+    }
+  }
+
+  /**
+   * Records a failed connection attempt to a replica, marking it down.
+   */
+  public void failed(LdapServer server) {
+    server.markDown(System.currentTimeMillis(), retryInterval, maxRetryInterval);
+  }
+
+  /**
+   * Gives up a claim to probe a replica without saying anything about its health.
+   * Another caller may probe it straight away.
+   */
+  public void released(LdapServer server) {
+    server.releaseProbe();
+  }
+
+  /**
+   * Records that a connection has been closed. The replica it was counted against is
+   * remembered, as a connection that has dropped no longer knows its host.
+   */
+  public void disconnected(LDAPConnection conn) {
+    LdapServer server = connections.remove(conn);
+    if (server != null) {
+      server.connectionClosed();
+    }
+  }
+
+  /**
+   * @return the configured replica with the given host and port, or null.
+   */
+  public LdapServer find(String host, int port) {
+    if (host == null) {
+      return null;
+    }
+    for (LdapServer server : servers) {
+      if (server.getPort() == port && server.getHost().equalsIgnoreCase(host)) {
+        return server;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Smooth weighted round robin: every replica gains its weight, the one with the most
+   * accumulated weight is chosen and pays back the total.
+   */
+  private synchronized LdapServer nextWeighted(List<LdapServer> candidates) {
+    int total = 0;
+    LdapServer best = null;
+    for (LdapServer server : candidates) {
+      server.currentWeight += server.getWeight();
+      total += server.getWeight();
+      if (best == null || server.currentWeight > best.currentWeight) {
+        best = server;
+      }
+    }
+    best.currentWeight -= total;
+    return best;
+  }
+
+  private static List<LdapServer> parse(String hosts, int defaultPort) {
+    List<LdapServer> parsed = new ArrayList<LdapServer>();
+    if (hosts == null) {
+      return parsed;
+    }
+    for (String spec : StringUtils.split(hosts, " ,;")) {
+      int weight = 1;
+      int star = spec.indexOf('*');
+      if (star >= 0) {
+        weight = Integer.parseInt(spec.substring(star + 1));
+        spec = spec.substring(0, star);
+      }
+      String host = spec;
+      int port = defaultPort;
+      int colon = spec.lastIndexOf(':');
+      int bracket = spec.lastIndexOf(']');
+      // a bare IPv6 address has several colons and no port, a bracketed one may have one.
+      if (colon > bracket && (bracket >= 0 || spec.indexOf(':') == colon)) {
+        host = spec.substring(0, colon);
+        port = Integer.parseInt(spec.substring(colon + 1));
+      }
+      if (host.startsWith("[") && host.endsWith("]")) {
+        host = host.substring(1, host.length() - 1);
+      }
+      parsed.add(new LdapServer(host, port, weight));
+    }
+    return parsed;
+  }
+}
@@ -0,0 +1,179 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the secure socket factories built by
+ * {@link LdapSecurityUtil#initLDAPSocketFactory(LdapConnectionManagerConfig)} so that
+ * the keystore is parsed and the <code>SSLContext</code> initialised once rather than
+ * for every connection. Factories are keyed on the keystore location and a salted
+ * SHA-256 digest of its password, so the password is not kept in the cache, and are
+ * rebuilt when the keystore file's modification time or size changes and its
+ * content digest no longer matches.
+ */
+public class LdapSocketFactoryCache {
+
+  private static final Logger log = LoggerFactory.getLogger(LdapSocketFactoryCache.class);
+
+  /** Minimum time (in milliseconds) between checks of the keystore file. */
+  private static final long DEFAULT_CHECK_INTERVAL = 5000;
+
+  /**
+   * A socket factory and the state of the keystore it was built from.
+   */
+  private static class CachedFactory {
+    private LDAPSocketFactory socketFactory;
+    private long lastModified;
+    private long length;
+    private byte[] digest;
+    private long nextCheck;
+  }
+
+  private final ConcurrentMap<String, CachedFactory> factories = new ConcurrentHashMap<String, CachedFactory>();
+
+  private final long checkInterval;
+
+  /** salts the password digests in the cache keys */
+  private final byte[] salt = new byte[16];
+
+  public LdapSocketFactoryCache() {
+    this(DEFAULT_CHECK_INTERVAL);
+  }
+
+  /**
+   * @param checkInterval
+   *          minimum time (in milliseconds) between checks of the keystore file for
+   *          changes.
+   */
+  public LdapSocketFactoryCache(long checkInterval) {
+    this.checkInterval = checkInterval;
+    new SecureRandom().nextBytes(salt);
+  }
+
+  /**
+   * @param config
+   *          The configuration used for connecting.
+   * @return the socket factory for the configuration, as
+   *         {@link LdapSecurityUtil#initLDAPSocketFactory(LdapConnectionManagerConfig)}
+   *         would return it.
+   */
+  public LDAPSocketFactory getSocketFactory(LdapConnectionManagerConfig config) {
+    if (!config.isSecureConnection() && !config.isTLS()) {
+      return null;
+    }
+    String key = config.isTLS() + ":" + config.getKeystoreLocation() + ":"
+        + digest(config.getKeystorePassword());
+    CachedFactory cached = factories.get(key);
+    if (cached == null) {
+      CachedFactory newCached = new CachedFactory();
+      cached = factories.putIfAbsent(key, newCached);
+      if (cached == null) {
+        cached = newCached;
+      }
+    }
+    synchronized (cached) {
+      long now = System.currentTimeMillis();
+      if (cached.socketFactory == null || now >= cached.nextCheck) {
+        refresh(cached, config);
+        cached.nextCheck = now + checkInterval;
+      }
+      return cached.socketFactory;
+    }
+  }
+
+  /**
+   * Drops all cached factories so that the next connection reloads its keystore.
+   */
+  public void clear() {
+    factories.clear();
+  }
+
+  private void refresh(CachedFactory cached, LdapConnectionManagerConfig config) {
+    String location = config.getKeystoreLocation();
+    if (location == null) {
+      if (cached.socketFactory == null) {
+        cached.socketFactory = LdapSecurityUtil.initLDAPSocketFactory(config);
+      }
+      return;
+    }
+    File keystore = new File(location);
+    long lastModified = keystore.lastModified();
+    long length = keystore.length();
+    if (cached.socketFactory != null && lastModified == cached.lastModified
+        && length == cached.length) {
+      return;
+    }
+    byte[] digest = digest(keystore);
+    if (cached.socketFactory != null && MessageDigest.isEqual(digest, cached.digest)) {
+      log.debug("refresh(): keystore [{}] touched but unchanged", location);
+    } else {
+      if (cached.socketFactory != null) {
+        log.info("Keystore [{}] has changed, reloading", location);
+      }
+      cached.socketFactory = LdapSecurityUtil.initLDAPSocketFactory(config);
+      cached.digest = digest;
+    }
+    cached.lastModified = lastModified;
+    cached.length = length;
+  }
+
+  /**
+   * @return the salted digest of a keystore password, in hex, or null for no password.
+   */
+  private String digest(String password) {
+    if (password == null) {
+      return null;
+    }
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(salt);
+      StringBuilder hex = new StringBuilder();
+      for (byte b : md.digest(password.getBytes("UTF8"))) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+        hex.append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Failed to encode keystore password", e);
+    }
+  }
+
+  private byte[] digest(File keystore) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      InputStream in = new FileInputStream(keystore);
+      try {
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+          md.update(buffer, 0, n);
+        }
+      } finally {
+        in.close();
+      }
+      return md.digest();
+    } catch (NoSuchAlgorithmException e) {
+      log.error(e.getMessage(), e);
+      throw new RuntimeException(e.getMessage(), e);
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+      throw new RuntimeException(e.getMessage(), e);
+    }
+  }
+}
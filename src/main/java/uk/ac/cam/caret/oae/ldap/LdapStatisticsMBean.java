@@ -0,0 +1,169 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Publishes the statistics of a {@link SimpleLdapConnectionManager} over JMX as
+ * read-only attributes. The nested statistics are flattened with dots, so that for
+ * instance the 95th percentile read time is the attribute
+ * <code>operations.read.p95Ms</code> and the number of idle pooled connections is
+ * <code>pool.idle</code>.
+ */
+public class LdapStatisticsMBean implements DynamicMBean {
+
+  private static final Logger log = LoggerFactory.getLogger(LdapStatisticsMBean.class);
+
+  public static final String OBJECT_NAME = "uk.ac.cam.caret.oae.ldap:type=LdapConnectionManager";
+
+  private final SimpleLdapConnectionManager manager;
+
+  private MBeanServer server;
+
+  private ObjectName name;
+
+  public LdapStatisticsMBean(SimpleLdapConnectionManager manager) {
+    this.manager = manager;
+  }
+
+  /**
+   * Registers the statistics of a manager with the platform MBean server.
+   *
+   * @return the registered MBean, or null if it could not be registered.
+   */
+  public static LdapStatisticsMBean register(SimpleLdapConnectionManager manager) {
+    LdapStatisticsMBean mbean = new LdapStatisticsMBean(manager);
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(OBJECT_NAME);
+      if (mbeanServer.isRegistered(objectName)) {
+        // left behind by an earlier activation.
+        mbeanServer.unregisterMBean(objectName);
+      }
+      mbeanServer.registerMBean(mbean, objectName);
+      mbean.server = mbeanServer;
+      mbean.name = objectName;
+      return mbean;
+    } catch (JMException e) {
+      log.warn("Failed to register LDAP statistics MBean: {}", e.getMessage());
+      log.debug(e.getMessage(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Removes this MBean from the server it was registered with.
+   */
+  public void unregister() {
+    if (server == null) {
+      return;
+    }
+    try {
+      server.unregisterMBean(name);
+    } catch (JMException e) {
+      log.debug("Failed to unregister LDAP statistics MBean: {}", e.getMessage());
+    }
+    server = null;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    Object value = flatten().get(attribute);
+    if (value == null) {
+      throw new AttributeNotFoundException(attribute);
+    }
+    return value;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public AttributeList getAttributes(String[] attributes) {
+    Map<String, Object> values = flatten();
+    AttributeList list = new AttributeList();
+    for (String attribute : attributes) {
+      Object value = values.get(attribute);
+      if (value != null) {
+        list.add(new Attribute(attribute, value));
+      }
+    }
+    return list;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("LDAP statistics are read only");
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public Object invoke(String actionName, Object[] params, String[] signature)
+      throws ReflectionException {
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public MBeanInfo getMBeanInfo() {
+    List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+    for (Map.Entry<String, Object> e : flatten().entrySet()) {
+      attributes.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+          e.getKey(), true, false, false));
+    }
+    return new MBeanInfo(getClass().getName(), "LDAP connection and operation statistics",
+        attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+        new MBeanOperationInfo[0], null);
+  }
+
+  private Map<String, Object> flatten() {
+    Map<String, Object> flat = new LinkedHashMap<String, Object>();
+    flatten("", manager.getStatistics(), flat);
+    return flat;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void flatten(String prefix, Map<String, Object> statistics,
+      Map<String, Object> flat) {
+    for (Map.Entry<String, Object> e : statistics.entrySet()) {
+      Object value = e.getValue();
+      if (value instanceof Map) {
+        flatten(prefix + e.getKey() + ".", (Map<String, Object>) value, flat);
+      } else if (value instanceof Number || value instanceof Boolean) {
+        flat.put(prefix + e.getKey(), value);
+      } else if (value != null) {
+        flat.put(prefix + e.getKey(), value.toString());
+      }
+    }
+  }
+}
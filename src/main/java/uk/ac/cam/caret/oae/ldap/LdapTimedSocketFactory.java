@@ -0,0 +1,80 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import com.novell.ldap.LDAPTLSSocketFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Opens plain sockets with a connect timeout, where <code>LDAPConnection</code> would
+ * otherwise wait as long as the operating system lets it for a replica that does not
+ * answer. Made for each connection, so that the timeout can be cut to what is left of the
+ * caller's {@link LdapDeadline}. StartTLS is handed to the configured factory, if there
+ * is one.
+ */
+class LdapTimedSocketFactory implements LDAPTLSSocketFactory {
+
+  /** the configured factory, null for plain connections */
+  private final LDAPTLSSocketFactory tlsFactory;
+
+  /** the connect timeout (in milliseconds), 0 for none */
+  private final int connectTimeout;
+
+  /** null if there is no deadline */
+  private final LdapDeadline deadline;
+
+  /**
+   * @param tlsFactory
+   *          starts TLS on the sockets made, null if TLS is not used.
+   * @param connectTimeout
+   *          the connect timeout (in milliseconds), 0 for none.
+   * @param deadline
+   *          cuts the connect timeout to the time left, null if there is no deadline.
+   */
+  LdapTimedSocketFactory(LDAPTLSSocketFactory tlsFactory, int connectTimeout,
+      LdapDeadline deadline) {
+    this.tlsFactory = tlsFactory;
+    this.connectTimeout = connectTimeout;
+    this.deadline = deadline;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public Socket createSocket(String host, int port) throws IOException {
+    // worked out for each replica tried, as earlier ones use up the time.
+    int timeout = deadline == null ? connectTimeout : deadline.limit(connectTimeout);
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(host, port), timeout);
+      return socket;
+    } catch (SocketTimeoutException e) {
+      closeQuietly(socket);
+      throw new SocketTimeoutException("Timed out after " + timeout + "ms connecting to "
+          + host + ":" + port);
+    } catch (IOException e) {
+      closeQuietly(socket);
+      throw e;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public Socket createSocket(Socket socket) throws IOException {
+    if (tlsFactory == null) {
+      throw new IOException("TLS is not configured");
+    }
+    return tlsFactory.createSocket(socket);
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // nothing more to be done.
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts an operation and keeps a histogram of how long it took. Durations are held in
+ * microseconds in buckets eight to each power of two, so recording is lock free and
+ * cheap, and percentiles are accurate to within about 12%. The maximum is exact.
+ */
+public class LdapTimer {
+
+  /** Sub-buckets per power of two, as a number of bits. */
+  private static final int SUB_BITS = 3;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  /** Enough buckets for durations up to 2^40 microseconds, about twelve days. */
+  private static final int BUCKETS = SUB_BUCKETS + (40 - SUB_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+  private final AtomicLong count = new AtomicLong();
+
+  private final AtomicLong errors = new AtomicLong();
+
+  private final AtomicLong totalMicros = new AtomicLong();
+
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  /**
+   * Records one operation.
+   *
+   * @param durationNanos
+   *          how long it took.
+   * @param failed
+   *          <code>true</code> if it failed.
+   */
+  public void record(long durationNanos, boolean failed) {
+    long micros = Math.max(0, durationNanos / 1000);
+    count.incrementAndGet();
+    if (failed) {
+      errors.incrementAndGet();
+    }
+    totalMicros.addAndGet(micros);
+    buckets.incrementAndGet(bucket(micros));
+    long max = maxMicros.get();
+    while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+      max = maxMicros.get();
+    }
+  }
+
+  /**
+   * Records one operation that started at <code>startNanos</code>, as given by
+   * {@link System#nanoTime()}.
+   */
+  public void recordSince(long startNanos, boolean failed) {
+    record(System.nanoTime() - startNanos, failed);
+  }
+
+  /**
+   * @return the number of operations recorded.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @param percentile
+   *          between 0 and 100.
+   * @return the duration, in microseconds, under which that percentage of operations
+   *         completed, 0 if none have been recorded.
+   */
+  public long getPercentile(double percentile) {
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = buckets.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(total * percentile / 100.0);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= Math.max(1, rank)) {
+        // the top of the bucket, but never more than the largest value seen.
+        return Math.min(lowerBound(i + 1) - 1, maxMicros.get());
+      }
+    }
+    return maxMicros.get();
+  }
+
+  /**
+   * Forgets everything recorded so far.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets.set(i, 0);
+    }
+    count.set(0);
+    errors.set(0);
+    totalMicros.set(0);
+    maxMicros.set(0);
+  }
+
+  /**
+   * @return the count, errors and mean, 50th, 95th, 99th percentile and maximum
+   *         durations in milliseconds.
+   */
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+    long n = count.get();
+    statistics.put("count", n);
+    statistics.put("errors", errors.get());
+    statistics.put("meanMs", n == 0 ? 0.0 : millis(totalMicros.get() / n));
+    statistics.put("p50Ms", millis(getPercentile(50)));
+    statistics.put("p95Ms", millis(getPercentile(95)));
+    statistics.put("p99Ms", millis(getPercentile(99)));
+    statistics.put("maxMs", millis(maxMicros.get()));
+    return statistics;
+  }
+
+  private static double millis(long micros) {
+    return micros / 1000.0;
+  }
+
+  private static int bucket(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    int sub = (int) (micros >> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return Math.min(BUCKETS - 1, SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub);
+  }
+
+  private static long lowerBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+    int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + sub)) << (exponent - SUB_BITS);
+  }
+}
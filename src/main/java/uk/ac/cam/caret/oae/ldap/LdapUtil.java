@@ -1,7 +1,25 @@
 package uk.ac.cam.caret.oae.ldap;
 
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPEntry;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
 
 public class LdapUtil {
+  /** operational attribute holding when an entry was last modified */
+  public static final String MODIFY_TIMESTAMP = "modifyTimestamp";
+
+  /** OpenLDAP operational attribute identifying the last change to an entry */
+  public static final String ENTRY_CSN = "entryCSN";
+
   /**
    * Escapes input intended for filter using a DN.<br/>
    * http://www.owasp.org/index.php/Preventing_LDAP_Injection_in_Java<br/>
@@ -40,11 +58,45 @@ public class LdapUtil {
    * </tr>
    * </table>
    *
+   * Returns <code>name</code> itself when nothing needs escaping.
+   *
    * @param name
    * @return
    */
   public static String escapeDN(String name) {
-    StringBuilder sb = new StringBuilder();
+    if (!needsDNEscape(name)) {
+      return name;
+    }
+    StringBuilder sb = new StringBuilder(name.length() + 8);
+    appendEscapedDN(sb, name);
+    return sb.toString();
+  }
+
+  private static boolean needsDNEscape(String name) {
+    int length = name.length();
+    if (length > 0 && (name.charAt(0) == ' ' || name.charAt(0) == '#')) {
+      return true;
+    }
+    if (length > 1 && name.charAt(length - 1) == ' ') {
+      return true;
+    }
+    for (int i = 0; i < length; i++) {
+      switch (name.charAt(i)) {
+      case '\\':
+      case ',':
+      case '+':
+      case '"':
+      case '<':
+      case '>':
+      case ';':
+        return true;
+      default:
+      }
+    }
+    return false;
+  }
+
+  private static void appendEscapedDN(StringBuilder sb, String name) {
     if ((name.length() > 0) && ((name.charAt(0) == ' ') || (name.charAt(0) == '#'))) {
       sb.append('\\'); // add the leading backslash if needed
     }
@@ -79,7 +131,6 @@ public class LdapUtil {
     if ((name.length() > 1) && (name.charAt(name.length() - 1) == ' ')) {
       sb.insert(sb.length() - 1, '\\'); // add the trailing backslash if needed
     }
-    return sb.toString();
   }
 
   /**
@@ -112,11 +163,36 @@ public class LdapUtil {
    * </tr>
    * </table>
    *
+   * Returns <code>filter</code> itself when nothing needs escaping.
+   *
    * @param filter
    * @return
    */
   public static final String escapeLDAPSearchFilter(String filter) {
-    StringBuilder sb = new StringBuilder();
+    if (!needsFilterEscape(filter)) {
+      return filter;
+    }
+    StringBuilder sb = new StringBuilder(filter.length() + 8);
+    appendEscapedFilter(sb, filter);
+    return sb.toString();
+  }
+
+  private static boolean needsFilterEscape(String filter) {
+    for (int i = 0; i < filter.length(); i++) {
+      switch (filter.charAt(i)) {
+      case '\\':
+      case '*':
+      case '(':
+      case ')':
+      case '\u0000':
+        return true;
+      default:
+      }
+    }
+    return false;
+  }
+
+  private static void appendEscapedFilter(StringBuilder sb, String filter) {
     for (int i = 0; i < filter.length(); i++) {
       char curChar = filter.charAt(i);
       switch (curChar) {
@@ -139,6 +215,190 @@ public class LdapUtil {
         sb.append(curChar);
       }
     }
-    return sb.toString();
+  }
+
+  /**
+   * A DN or filter pattern with <code>{0}</code>, <code>{1}</code>... placeholders, split
+   * once so that formatting it neither parses the pattern again nor builds anything but
+   * the result. Values are escaped for a DN or a filter as the template was compiled for.
+   * Unlike {@link java.text.MessageFormat}, quotes in the pattern have no special meaning.
+   */
+  public static final class Template {
+    /** the text before each placeholder, and after the last */
+    private final String[] literals;
+    /** the value each placeholder takes */
+    private final int[] arguments;
+    private final boolean dn;
+    private final int literalLength;
+
+    private Template(String pattern, boolean dn) {
+      List<String> literalList = new ArrayList<String>();
+      List<Integer> argumentList = new ArrayList<Integer>();
+      int start = 0;
+      int open = pattern.indexOf('{');
+      while (open >= 0) {
+        int close = pattern.indexOf('}', open);
+        if (close < 0) {
+          break;
+        }
+        int argument;
+        try {
+          argument = Integer.parseInt(pattern.substring(open + 1, close));
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Bad placeholder in " + pattern);
+        }
+        literalList.add(pattern.substring(start, open));
+        argumentList.add(argument);
+        start = close + 1;
+        open = pattern.indexOf('{', start);
+      }
+      literalList.add(pattern.substring(start));
+      this.literals = literalList.toArray(new String[literalList.size()]);
+      this.arguments = new int[argumentList.size()];
+      int length = 0;
+      for (int i = 0; i < arguments.length; i++) {
+        arguments[i] = argumentList.get(i);
+      }
+      for (String literal : literals) {
+        length += literal.length();
+      }
+      this.dn = dn;
+      this.literalLength = length;
+    }
+
+    /**
+     * @param values
+     *          the values of the placeholders, escaped before they are put in.
+     * @return the DN or filter.
+     * @throws IllegalArgumentException
+     *           if there are fewer values than the pattern needs.
+     */
+    public String format(String... values) {
+      int length = literalLength;
+      for (int argument : arguments) {
+        if (argument >= values.length) {
+          throw new IllegalArgumentException("No value for {" + argument + "}");
+        }
+        length += values[argument].length();
+      }
+      StringBuilder sb = new StringBuilder(length + 8);
+      for (int i = 0; i < arguments.length; i++) {
+        sb.append(literals[i]);
+        String value = values[arguments[i]];
+        if (dn) {
+          if (needsDNEscape(value)) {
+            appendEscapedDN(sb, value);
+          } else {
+            sb.append(value);
+          }
+        } else {
+          if (needsFilterEscape(value)) {
+            appendEscapedFilter(sb, value);
+          } else {
+            sb.append(value);
+          }
+        }
+      }
+      sb.append(literals[arguments.length]);
+      return sb.toString();
+    }
+  }
+
+  /**
+   * @param pattern
+   *          a DN with placeholders, for example
+   *          <code>uid={0},ou=people,dc=example,dc=com</code>.
+   * @return a template putting values escaped with {@link #escapeDN(String)} in the
+   *         placeholders.
+   */
+  public static Template compileDN(String pattern) {
+    return new Template(pattern, true);
+  }
+
+  /**
+   * @param pattern
+   *          a filter with placeholders, for example <code>(&(uid={0})(ou={1}))</code>.
+   * @return a template putting values escaped with
+   *         {@link #escapeLDAPSearchFilter(String)} in the placeholders.
+   */
+  public static Template compileFilter(String pattern) {
+    return new Template(pattern, false);
+  }
+
+  /**
+   * Converts an entry to a record: a map of attribute name to a <code>String</code> for
+   * single valued attributes or a <code>String[]</code> for multi valued ones.
+   * Attributes without values are left out.
+   *
+   * @param ldapEntry
+   * @return an unmodifiable record.
+   */
+  public static Map<String, Object> toRecord(LDAPEntry ldapEntry) {
+    Map<String, Object> record = new HashMap<String, Object>();
+    for (@SuppressWarnings("unchecked")
+    Iterator<LDAPAttribute> i = ldapEntry.getAttributeSet().iterator(); i.hasNext();) {
+      LDAPAttribute la = i.next();
+      String[] values = la.getStringValueArray();
+      if (values != null) {
+        if (values.length > 1) {
+          record.put(la.getName(), values);
+        } else if (values.length == 1) {
+          record.put(la.getName(), values[0]);
+        }
+      }
+    }
+    return Collections.unmodifiableMap(record);
+  }
+
+  /**
+   * Parses an LDAP GeneralizedTime such as <code>modifyTimestamp</code>, for example
+   * <code>20110301123456Z</code> or <code>20110301123456.5+0100</code>. Fractions of a
+   * second are ignored.
+   *
+   * @param value
+   * @return the time in milliseconds since the epoch, or -1 if the value could not be
+   *         parsed.
+   */
+  public static long parseGeneralizedTime(String value) {
+    if (value == null || value.length() < 15) {
+      return -1;
+    }
+    // SimpleDateFormat stops at the first character that isn't a digit.
+    for (int i = 0; i < 14; i++) {
+      if (!Character.isDigit(value.charAt(i))) {
+        return -1;
+      }
+    }
+    SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    format.setLenient(false);
+    long time;
+    try {
+      time = format.parse(value.substring(0, 14)).getTime();
+    } catch (ParseException e) {
+      return -1;
+    }
+    int zone = 14;
+    if (value.charAt(zone) == '.' || value.charAt(zone) == ',') {
+      zone++;
+      while (zone < value.length() && Character.isDigit(value.charAt(zone))) {
+        zone++;
+      }
+    }
+    if (zone == value.length() - 1 && value.charAt(zone) == 'Z') {
+      return time;
+    }
+    if (zone + 5 == value.length()
+        && (value.charAt(zone) == '+' || value.charAt(zone) == '-')) {
+      try {
+        int hours = Integer.parseInt(value.substring(zone + 1, zone + 3));
+        int minutes = Integer.parseInt(value.substring(zone + 3, zone + 5));
+        long offset = (hours * 60L + minutes) * 60000L;
+        return value.charAt(zone) == '+' ? time - offset : time + offset;
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+    return -1;
   }
 }
@@ -1,12 +1,171 @@
 package uk.ac.cam.caret.oae.ldap;
 
 import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
 import com.novell.ldap.LDAPException;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
 public interface SimpleLdapConnectionManager {
 
   LDAPConnection getConnection() throws LDAPException;
 
+  /**
+   * As {@link #getConnection()}, but waits for a pooled connection, or connects and binds
+   * a new one, only for the time left before the deadline.
+   *
+   * @param deadline
+   *          when the caller gives up, null to wait as long as configured.
+   * @throws LdapDeadlineExceededException
+   *           if the deadline passes first, and without contacting the directory if it
+   *           has already passed.
+   */
+  LDAPConnection getConnection(LdapDeadline deadline) throws LDAPException;
+
   void returnConnection(LDAPConnection conn);
 
+  /**
+   * Gets a connection bound as the given DN. If bound connections are pooled (which is
+   * off unless <code>bound.pool.max.keys</code> is set, and meant for service accounts),
+   * an idle connection already bound with the same DN and password is reused. Such a
+   * connection was bound when it was opened and the directory is not asked again, so a
+   * password changed or locked out since then keeps working until the connection is
+   * retired; do not use this method to check a user's credentials while pooling is on.
+   * A pooled connection must be given back with
+   * {@link #returnConnection(LDAPConnection)}, not disconnected, or it stays counted
+   * against its DN.
+   *
+   * @param dn
+   *          the DN to bind as.
+   * @param pass
+   *          the password to bind with.
+   * @return a bound connection, to be given back with
+   *         {@link #returnConnection(LDAPConnection)}.
+   * @throws LDAPException
+   *           if the connection could not be made or the bind failed.
+   */
+  LDAPConnection getBoundConnection(String dn, String pass) throws LDAPException;
+
+  /**
+   * Reads an entry using a connection from this manager, guarded by the circuit
+   * breaker if one is configured. If hedged reads are enabled, the read is instead sent
+   * over a connection kept to each replica, and sent to a second replica as well if the
+   * first is slow to answer.
+   *
+   * @param dn
+   *          the DN of the entry.
+   * @return the entry.
+   * @throws LdapCircuitOpenException
+   *           without contacting the directory if the circuit breaker is open.
+   * @throws LDAPException
+   *           if the read fails, including when the entry does not exist.
+   */
+  LDAPEntry read(String dn) throws LDAPException;
+
+  /**
+   * As {@link #read(String)}, returning only the given attributes.
+   *
+   * @param dn
+   *          the DN of the entry.
+   * @param attributes
+   *          the attributes to return, null for all user attributes.
+   * @return the entry.
+   * @throws LDAPException
+   *           if the read fails, including when the entry does not exist.
+   */
+  LDAPEntry read(String dn, String[] attributes) throws LDAPException;
+
+  /**
+   * As {@link #read(String, String[])}, within a deadline: getting a connection and the
+   * read itself each wait at most the time left, and nothing is sent to the directory
+   * once it has passed. Running out of time does not count against the directory in the
+   * circuit breaker.
+   *
+   * @param deadline
+   *          when the caller gives up, null to wait the operation timeout.
+   * @throws LdapDeadlineExceededException
+   *           without contacting the directory if the deadline has already passed.
+   * @throws LDAPException
+   *           if the read fails, including when the entry does not exist or the
+   *           deadline passes while reading.
+   */
+  LDAPEntry read(String dn, String[] attributes, LdapDeadline deadline) throws LDAPException;
+
+  /**
+   * Starts reading an entry without waiting for the answer. Many asynchronous
+   * operations share a few connections, so this does not take a connection from the
+   * pool.
+   *
+   * @param dn
+   *          the DN of the entry.
+   * @param attributes
+   *          the attributes to return, null for all user attributes.
+   * @return a future of the entry, or of null if the entry does not exist.
+   */
+  LdapFuture<LDAPEntry> readAsync(String dn, String[] attributes);
+
+  /**
+   * Starts a search without waiting for the answer.
+   *
+   * @param base
+   *          the base DN.
+   * @param scope
+   *          one of the <code>LDAPConnection.SCOPE_</code> constants.
+   * @param filter
+   *          the search filter.
+   * @param attributes
+   *          the attributes to return, null for all user attributes.
+   * @return a future of the entries found.
+   */
+  LdapFuture<List<LDAPEntry>> searchAsync(String base, int scope, String filter,
+      String[] attributes);
+
+  /**
+   * Searches the directory, passing each entry to the handler as soon as it arrives
+   * rather than collecting them all first, so that memory use does not grow with the
+   * number of entries found. Takes a connection from the pool for the length of the
+   * search.
+   *
+   * @param base
+   *          the base DN.
+   * @param scope
+   *          one of the <code>LDAPConnection.SCOPE_</code> constants.
+   * @param filter
+   *          the search filter.
+   * @param attributes
+   *          the attributes to return, null for all user attributes.
+   * @param handler
+   *          receives the entries found.
+   * @throws LDAPException
+   *           if the search fails.
+   * @throws IOException
+   *           if the handler fails, in which case the search is abandoned.
+   */
+  void search(String base, int scope, String filter, String[] attributes,
+      LdapEntryHandler handler) throws LDAPException, IOException;
+
+  /**
+   * Searches the directory a page at a time with the simple paged results control, so
+   * that searches returning more entries than the server's size limit still see every
+   * entry. Otherwise as {@link #search(String, int, String, String[], LdapEntryHandler)};
+   * all the pages are read on the same connection.
+   *
+   * @param pageSize
+   *          the most entries the server returns in a page, 0 not to page.
+   * @throws LDAPException
+   *           if the search fails, or the server does not support paging.
+   * @throws IOException
+   *           if the handler fails, in which case the search is abandoned.
+   */
+  void searchPaged(String base, int scope, String filter, String[] attributes,
+      int pageSize, LdapEntryHandler handler) throws LDAPException, IOException;
+
+  /**
+   * @return a snapshot of the health of the connections held by this manager, as
+   *         nested maps of counters and gauges.
+   */
+  Map<String, Object> getStatistics();
+
 }
@@ -19,11 +19,17 @@ package uk.ac.cam.caret.oae.ldap;
 
 import com.novell.ldap.LDAPConnection;
 import com.novell.ldap.LDAPConstraints;
+import com.novell.ldap.LDAPEntry;
 import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPReferralException;
+import com.novell.ldap.LDAPSearchConstraints;
+import com.novell.ldap.LDAPSearchResults;
 import com.novell.ldap.LDAPSocketFactory;
+import com.novell.ldap.LDAPTLSSocketFactory;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.OsgiUtil;
@@ -31,8 +37,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Allocates connected, constrained, and optionally bound and secure
@@ -58,27 +73,190 @@ public class SimpleLdapConnectionManagerImpl implements SimpleLdapConnectionMana
   @Property(boolValue=false)
   private static final String PROP_POOLING = "pooling";
 
+  @Property(longValue=5000)
+  private static final String PROP_POOL_MAX_WAIT = "pool.max.wait";
+
+  @Property(intValue=0)
+  private static final String PROP_POOL_MIN_IDLE = "pool.min.idle";
+
+  @Property(intValue=10)
+  private static final String PROP_POOL_MAX_IDLE = "pool.max.idle";
+
+  @Property(boolValue=true)
+  private static final String PROP_POOL_TEST_ON_BORROW = "pool.test.on.borrow";
+
+  @Property(boolValue=false)
+  private static final String PROP_POOL_TEST_ON_RETURN = "pool.test.on.return";
+
+  @Property(longValue=60000)
+  private static final String PROP_POOL_EVICTION_INTERVAL = "pool.eviction.interval";
+
+  @Property(longValue=300000)
+  private static final String PROP_POOL_MIN_EVICTABLE_IDLE = "pool.min.evictable.idle";
+
+  @Property(longValue=60000)
+  private static final String PROP_POOL_KEEP_ALIVE_INTERVAL = "pool.keep.alive.interval";
+
+  @Property(longValue=1800000)
+  private static final String PROP_POOL_MAX_AGE = "pool.max.age";
+
+  @Property(intValue=0)
+  private static final String PROP_BOUND_POOL_MAX_KEYS = "bound.pool.max.keys";
+
+  @Property(intValue=2)
+  private static final String PROP_BOUND_POOL_MAX_PER_KEY = "bound.pool.max.per.key";
+
+  @Property(intValue=2)
+  private static final String PROP_WARMUP_CONNECTIONS = "warmup.connections";
+
+  @Property(value="")
+  private static final String PROP_WARMUP_DN = "warmup.dn";
+
+  @Property(boolValue=true)
+  private static final String PROP_BREAKER_ENABLED = "breaker.enabled";
+
+  @Property(intValue=50)
+  private static final String PROP_BREAKER_FAILURE_RATE = "breaker.failure.rate";
+
+  @Property(intValue=100)
+  private static final String PROP_BREAKER_SLOW_CALL_RATE = "breaker.slow.call.rate";
+
+  @Property(longValue=5000)
+  private static final String PROP_BREAKER_SLOW_CALL_DURATION = "breaker.slow.call.duration";
+
+  @Property(intValue=20)
+  private static final String PROP_BREAKER_WINDOW_SIZE = "breaker.window.size";
+
+  @Property(intValue=10)
+  private static final String PROP_BREAKER_MINIMUM_CALLS = "breaker.minimum.calls";
+
+  @Property(longValue=30000)
+  private static final String PROP_BREAKER_OPEN_DURATION = "breaker.open.duration";
+
+  @Property(intValue=3)
+  private static final String PROP_BREAKER_HALF_OPEN_CALLS = "breaker.half.open.calls";
+
+  @Property(intValue=2)
+  private static final String PROP_ASYNC_CONNECTIONS = "async.connections";
+
+  @Property(intValue=1000)
+  private static final String PROP_ASYNC_MAX_OUTSTANDING = "async.max.outstanding";
+
+  @Property(longValue=30000)
+  private static final String PROP_ASYNC_TIMEOUT = "async.timeout";
+
+  /** in seconds, unlike the other timeouts */
   @Property(intValue=30)
   private static final String PROP_OPERATION_TIMEOUT = "operation.timeout";
 
+  @Property(intValue=5000)
+  private static final String PROP_CONNECT_TIMEOUT = "connect.timeout";
+
+  @Property(boolValue=false)
+  private static final String PROP_HEDGING_ENABLED = "hedging.enabled";
+
+  @Property(intValue=95)
+  private static final String PROP_HEDGE_PERCENTILE = "hedge.percentile";
+
+  @Property(longValue=5)
+  private static final String PROP_HEDGE_MIN_DELAY = "hedge.min.delay";
+
+  @Property(intValue=5)
+  private static final String PROP_HEDGE_BUDGET = "hedge.budget";
+
+  @Property(intValue=1000)
+  private static final String PROP_HEDGE_WINDOW_SIZE = "hedge.window.size";
+
   @Property(intValue=389)
   private static final String PROP_PORT = "port";
 
   @Property(value="ldap.lookup.cam.ac.uk")
   private static final String PROP_HOST = "host";
 
+  @Property(value=LdapServerSet.STRATEGY_ROUND_ROBIN)
+  private static final String PROP_HOST_STRATEGY = "host.strategy";
+
+  @Property(longValue=1000)
+  private static final String PROP_HOST_RETRY_INTERVAL = "host.retry.interval";
+
+  @Property(longValue=60000)
+  private static final String PROP_HOST_RETRY_MAX_INTERVAL = "host.retry.max.interval";
+
   @Property(boolValue=true)
   private static final String PROP_FOLLOWREFERALS = "followreferals";
 
   @Property(boolValue=false)
   private static final String PROP_AUTOBIND = "autobind";
 
+  /** Shortest time (in milliseconds) between probes of down replicas. */
+  private static final long MIN_PROBE_INTERVAL = 100;
+
   /** Class-specific logger */
   private static Logger log = LoggerFactory.getLogger(SimpleLdapConnectionManager.class);
 
   /** connection allocation configuration */
   protected LdapConnectionManagerConfig config;
 
+  /** secure socket factories, built once per keystore */
+  private final LdapSocketFactoryCache socketFactoryCache = new LdapSocketFactoryCache();
+
+  /** the replicas to connect to, built from the configuration */
+  private volatile LdapServerSet servers;
+
+  /** guards directory operations, null if disabled */
+  private volatile LdapCircuitBreaker breaker;
+
+  /** runs asynchronous operations, null if they run synchronously */
+  private volatile LdapMultiplexer multiplexer;
+
+  /** sends slow reads to a second replica, null if disabled */
+  private volatile LdapHedgedReader hedger;
+
+  /** the connection pool, null if pooling is disabled */
+  private volatile LdapConnectionPool pool;
+
+  /** pools connections bound as particular DNs, null if disabled */
+  private volatile KeyedLdapConnectionPool boundPool;
+
+  /** counts and times directory operations */
+  private final LdapMetrics metrics = new LdapMetrics();
+
+  /** publishes {@link #getStatistics()} over JMX, null if not registered */
+  private LdapStatisticsMBean statisticsMBean;
+
+  /** opens connections after activation, null once done */
+  private Thread warmUpThread;
+
+  /** runs connection maintenance, null if disabled */
+  private ScheduledExecutorService maintenanceExecutor;
+
+  /** creates the physical connections held in the pool */
+  private final LdapConnectionFactory connectionFactory = new LdapConnectionFactory() {
+
+    public LDAPConnection makeConnection() throws LDAPException {
+      return openConnection();
+    }
+
+    public boolean validateConnection(LDAPConnection conn) {
+      return conn.isConnected() && conn.isConnectionAlive();
+    }
+
+    public boolean keepAlive(LDAPConnection conn) {
+      try {
+        // the root DSE, asking for no attributes.
+        conn.read("", new String[] { LDAPConnection.NO_ATTRS });
+        return true;
+      } catch (LDAPException e) {
+        log.debug("keepAlive(): {}", e.getMessage());
+        return false;
+      }
+    }
+
+    public void destroyConnection(LDAPConnection conn) {
+      closeConnection(conn);
+    }
+  };
+
   /**
    * {@inheritDoc}
    */
@@ -94,81 +272,840 @@ public class SimpleLdapConnectionManagerImpl implements SimpleLdapConnectionMana
     this.config.setAutoBind(OsgiUtil.toBoolean(properties.get(PROP_AUTOBIND), false));
     this.config.setFollowReferrals(OsgiUtil.toBoolean(properties.get(PROP_FOLLOWREFERALS), true));
     this.config.setLdapHost(OsgiUtil.toString(properties.get(PROP_HOST), null));
+    this.config.setLoadBalancing(OsgiUtil.toString(properties.get(PROP_HOST_STRATEGY),
+        LdapServerSet.STRATEGY_ROUND_ROBIN));
+    this.config.setHostRetryInterval(OsgiUtil.toLong(properties.get(PROP_HOST_RETRY_INTERVAL), 1000));
+    this.config.setHostRetryMaxInterval(OsgiUtil.toLong(properties.get(PROP_HOST_RETRY_MAX_INTERVAL), 60000));
     this.config.setLdapPort(OsgiUtil.toInteger(properties.get(PROP_PORT), 389));
-    this.config.setOperationTimeout(OsgiUtil.toInteger(properties.get(PROP_OPERATION_TIMEOUT), 30));
+    this.config.setOperationTimeout(OsgiUtil.toInteger(properties.get(PROP_OPERATION_TIMEOUT), 30) * 1000);
+    this.config.setConnectTimeout(OsgiUtil.toInteger(properties.get(PROP_CONNECT_TIMEOUT), 5000));
     this.config.setPooling(OsgiUtil.toBoolean(properties.get(PROP_POOLING), true));
     this.config.setPoolMaxConns(OsgiUtil.toInteger(properties.get(PROP_POOL_MAX), 10));
+    this.config.setPoolMaxWait(OsgiUtil.toLong(properties.get(PROP_POOL_MAX_WAIT), 5000));
+    this.config.setPoolMinIdle(OsgiUtil.toInteger(properties.get(PROP_POOL_MIN_IDLE), 0));
+    this.config.setPoolMaxIdle(OsgiUtil.toInteger(properties.get(PROP_POOL_MAX_IDLE), 10));
+    this.config.setPoolTestOnBorrow(OsgiUtil.toBoolean(properties.get(PROP_POOL_TEST_ON_BORROW), true));
+    this.config.setPoolTestOnReturn(OsgiUtil.toBoolean(properties.get(PROP_POOL_TEST_ON_RETURN), false));
+    this.config.setPoolEvictionInterval(OsgiUtil.toLong(properties.get(PROP_POOL_EVICTION_INTERVAL), 60000));
+    this.config.setPoolMinEvictableIdleTime(OsgiUtil.toLong(properties.get(PROP_POOL_MIN_EVICTABLE_IDLE), 300000));
+    this.config.setPoolKeepAliveInterval(OsgiUtil.toLong(properties.get(PROP_POOL_KEEP_ALIVE_INTERVAL), 60000));
+    this.config.setPoolMaxAge(OsgiUtil.toLong(properties.get(PROP_POOL_MAX_AGE), 1800000));
+    this.config.setBoundPoolMaxKeys(OsgiUtil.toInteger(properties.get(PROP_BOUND_POOL_MAX_KEYS), 0));
+    this.config.setBoundPoolMaxConnsPerKey(OsgiUtil.toInteger(properties.get(PROP_BOUND_POOL_MAX_PER_KEY), 2));
+    this.config.setWarmUpConnections(OsgiUtil.toInteger(properties.get(PROP_WARMUP_CONNECTIONS), 2));
+    this.config.setWarmUpDn(OsgiUtil.toString(properties.get(PROP_WARMUP_DN), null));
     this.config.setSecureConnection(OsgiUtil.toBoolean(properties.get(PROP_SECURE_CONNECTION), false));
     this.config.setTLS(OsgiUtil.toBoolean(properties.get(PROP_TLS), false));
+    this.config.setAsyncConnections(OsgiUtil.toInteger(properties.get(PROP_ASYNC_CONNECTIONS), 2));
+    this.config.setAsyncMaxOutstanding(OsgiUtil.toInteger(properties.get(PROP_ASYNC_MAX_OUTSTANDING), 1000));
+    this.config.setAsyncTimeout(OsgiUtil.toLong(properties.get(PROP_ASYNC_TIMEOUT), 30000));
+    this.config.setBreakerEnabled(OsgiUtil.toBoolean(properties.get(PROP_BREAKER_ENABLED), true));
+    this.config.setBreakerFailureRateThreshold(OsgiUtil.toInteger(properties.get(PROP_BREAKER_FAILURE_RATE), 50));
+    this.config.setBreakerSlowCallRateThreshold(OsgiUtil.toInteger(properties.get(PROP_BREAKER_SLOW_CALL_RATE), 100));
+    this.config.setBreakerSlowCallDuration(OsgiUtil.toLong(properties.get(PROP_BREAKER_SLOW_CALL_DURATION), 5000));
+    this.config.setBreakerWindowSize(OsgiUtil.toInteger(properties.get(PROP_BREAKER_WINDOW_SIZE), 20));
+    this.config.setBreakerMinimumCalls(OsgiUtil.toInteger(properties.get(PROP_BREAKER_MINIMUM_CALLS), 10));
+    this.config.setBreakerOpenDuration(OsgiUtil.toLong(properties.get(PROP_BREAKER_OPEN_DURATION), 30000));
+    this.config.setBreakerHalfOpenCalls(OsgiUtil.toInteger(properties.get(PROP_BREAKER_HALF_OPEN_CALLS), 3));
+    this.config.setHedgingEnabled(OsgiUtil.toBoolean(properties.get(PROP_HEDGING_ENABLED), false));
+    this.config.setHedgePercentile(OsgiUtil.toInteger(properties.get(PROP_HEDGE_PERCENTILE), 95));
+    this.config.setHedgeMinDelay(OsgiUtil.toLong(properties.get(PROP_HEDGE_MIN_DELAY), 5));
+    this.config.setHedgeBudget(OsgiUtil.toInteger(properties.get(PROP_HEDGE_BUDGET), 5));
+    this.config.setHedgeWindowSize(OsgiUtil.toInteger(properties.get(PROP_HEDGE_WINDOW_SIZE), 1000));
 
     verifySetup();
+    servers = newServerSet(config);
+    breaker = config.isBreakerEnabled() ? new LdapCircuitBreaker(config) : null;
+
+    if (config.isPooling()) {
+      startPool();
+    }
+    if (config.getAsyncConnections() > 0) {
+      multiplexer = new LdapMultiplexer(connectionFactory, config.getAsyncConnections(),
+          config.getAsyncMaxOutstanding(), config.getAsyncTimeout());
+    }
+    if (config.isHedgingEnabled()) {
+      startHedging();
+    }
+    startMaintenance();
+    startWarmUp();
+    statisticsMBean = LdapStatisticsMBean.register(this);
+  }
+
+  @Deactivate
+  public void deactivate(Map<String, Object> properties) {
+    log.debug("destroy()");
+    if (statisticsMBean != null) {
+      statisticsMBean.unregister();
+      statisticsMBean = null;
+    }
+    stopWarmUp();
+    stopMaintenance();
+    stopPool();
+    stopHedging();
+    LdapMultiplexer currentMultiplexer = multiplexer;
+    multiplexer = null;
+    if (currentMultiplexer != null) {
+      currentMultiplexer.close();
+    }
   }
 
   /**
    * {@inheritDoc}
    */
   public LDAPConnection getConnection() throws LDAPException {
+    return getConnection(null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public LDAPConnection getConnection(LdapDeadline deadline) throws LDAPException {
     log.debug("getConnection()");
 
     verifySetup();
 
-    LDAPConnection conn = newLDAPConnection();
+    if (deadline != null) {
+      deadline.check("getting an LDAP connection");
+    }
+
+    LdapCircuitBreaker currentBreaker = breaker;
+    if (currentBreaker != null && currentBreaker.isOpen()) {
+      throw new LdapCircuitOpenException("LDAP circuit breaker is open");
+    }
+
+    long start = System.nanoTime();
+    boolean failure = true;
+    try {
+      LDAPConnection conn;
+      LdapConnectionPool currentPool = pool;
+      if (currentPool == null) {
+        conn = openConnection(deadline);
+      } else if (deadline == null) {
+        conn = currentPool.borrowConnection();
+      } else {
+        long wait = config.getPoolMaxWait() < 0 ? deadline.remaining() : Math.min(
+            config.getPoolMaxWait(), deadline.remaining());
+        conn = currentPool.borrowConnection(connectionFactory(deadline), wait);
+      }
+      failure = false;
+      return conn;
+    } finally {
+      metrics.timer(LdapMetrics.GET_CONNECTION).recordSince(start, failure);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public LDAPEntry read(String dn) throws LDAPException {
+    return read(dn, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public LDAPEntry read(String dn, String[] attributes) throws LDAPException {
+    return read(dn, attributes, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public LDAPEntry read(String dn, String[] attributes, LdapDeadline deadline)
+      throws LDAPException {
+    if (deadline != null) {
+      // before asking the breaker, so that a half open breaker's trial calls aren't wasted.
+      deadline.check("reading " + dn);
+    }
+    LdapCircuitBreaker currentBreaker = breaker;
+    if (currentBreaker != null && !currentBreaker.acquirePermission()) {
+      throw new LdapCircuitOpenException("LDAP circuit breaker is open");
+    }
+    long start = System.nanoTime();
+    boolean failure = true;
+    LDAPConnection conn = null;
+    long readStart = 0;
+    LdapHedgedReader currentHedger = hedger;
+    try {
+      LDAPEntry entry;
+      if (currentHedger != null) {
+        readStart = System.nanoTime();
+        entry = currentHedger.read(dn, attributes, readTimeout(deadline));
+        if (entry == null) {
+          throw new LDAPException(LDAPException.resultCodeToString(LDAPException.NO_SUCH_OBJECT),
+              LDAPException.NO_SUCH_OBJECT, null);
+        }
+      } else {
+        conn = getConnection(deadline);
+        readStart = System.nanoTime();
+        if (deadline == null) {
+          entry = conn.read(dn, attributes);
+        } else {
+          entry = conn.read(dn, attributes, searchConstraints(conn, deadline));
+        }
+      }
+      failure = false;
+      return entry;
+    } catch (LDAPException e) {
+      failure = isFailure(e, deadline);
+      throw e;
+    } finally {
+      if (readStart != 0) {
+        metrics.timer(LdapMetrics.READ).recordSince(readStart, failure);
+      }
+      if (currentBreaker != null) {
+        if (readStart == 0 && !failure) {
+          // out of time before the read was sent, which says nothing of the directory.
+          currentBreaker.release();
+        } else {
+          currentBreaker.record(System.nanoTime() - start, failure);
+        }
+      }
+      returnConnection(conn);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public LdapFuture<LDAPEntry> readAsync(String dn, String[] attributes) {
+    LdapCircuitBreaker currentBreaker = breaker;
+    if (currentBreaker != null && !currentBreaker.acquirePermission()) {
+      LdapFuture<LDAPEntry> future = new LdapFuture<LDAPEntry>();
+      future.fail(new LdapCircuitOpenException("LDAP circuit breaker is open"));
+      return future;
+    }
+    long start = System.nanoTime();
+    LdapMultiplexer currentMultiplexer = multiplexer;
+    LdapFuture<LDAPEntry> future;
+    if (currentMultiplexer != null) {
+      future = currentMultiplexer.read(dn, attributes);
+    } else {
+      future = new LdapFuture<LDAPEntry>();
+      LDAPConnection conn = null;
+      try {
+        conn = getConnection();
+        future.complete(conn.read(dn, attributes));
+      } catch (LDAPException e) {
+        if (e.getResultCode() == LDAPException.NO_SUCH_OBJECT) {
+          future.complete(null);
+        } else {
+          future.fail(e);
+        }
+      } catch (RuntimeException e) {
+        future.fail(e);
+      } finally {
+        returnConnection(conn);
+      }
+    }
+    recordOutcome(currentBreaker, metrics.timer(LdapMetrics.READ), future, start);
+    return future;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public LdapFuture<List<LDAPEntry>> searchAsync(String base, int scope, String filter,
+      String[] attributes) {
+    LdapCircuitBreaker currentBreaker = breaker;
+    if (currentBreaker != null && !currentBreaker.acquirePermission()) {
+      LdapFuture<List<LDAPEntry>> future = new LdapFuture<List<LDAPEntry>>();
+      future.fail(new LdapCircuitOpenException("LDAP circuit breaker is open"));
+      return future;
+    }
+    long start = System.nanoTime();
+    LdapMultiplexer currentMultiplexer = multiplexer;
+    LdapFuture<List<LDAPEntry>> future;
+    if (currentMultiplexer != null) {
+      future = currentMultiplexer.search(base, scope, filter, attributes);
+    } else {
+      future = new LdapFuture<List<LDAPEntry>>();
+      LDAPConnection conn = null;
+      try {
+        conn = getConnection();
+        LDAPSearchResults results = conn.search(base, scope, filter, attributes, false);
+        List<LDAPEntry> entries = new ArrayList<LDAPEntry>();
+        while (results.hasMore()) {
+          entries.add(results.next());
+        }
+        future.complete(entries);
+      } catch (LDAPException e) {
+        future.fail(e);
+      } catch (RuntimeException e) {
+        future.fail(e);
+      } finally {
+        returnConnection(conn);
+      }
+    }
+    recordOutcome(currentBreaker, metrics.timer(LdapMetrics.SEARCH), future, start);
+    return future;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void search(String base, int scope, String filter, String[] attributes,
+      LdapEntryHandler handler) throws LDAPException, IOException {
+    searchPaged(base, scope, filter, attributes, 0, handler);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The circuit breaker sees each page as a call of its own, timed without the time
+   * spent in the handler: a search paced by a slow client is not a slow directory.
+   */
+  public void searchPaged(String base, int scope, String filter, String[] attributes,
+      int pageSize, LdapEntryHandler handler) throws LDAPException, IOException {
+    LdapCircuitBreaker currentBreaker = breaker;
+    if (currentBreaker != null && !currentBreaker.acquirePermission()) {
+      throw new LdapCircuitOpenException("LDAP circuit breaker is open");
+    }
+    long start = System.nanoTime();
+    // the current page, which holds a permit from the breaker until it is recorded.
+    boolean permitted = currentBreaker != null;
+    long pageStart = start;
+    long inHandler = 0;
+    boolean failure = true;
+    LDAPConnection conn = null;
+    LDAPSearchResults results = null;
+    try {
+      conn = getConnection();
+      LDAPSearchConstraints constraints = conn.getSearchConstraints();
+      // hand back each entry as it arrives, however many there are.
+      constraints.setBatchSize(1);
+      constraints.setMaxResults(0);
+      byte[] cookie = null;
+      do {
+        if (pageSize > 0) {
+          constraints.setControls(LdapPagedResults.request(pageSize, cookie));
+        }
+        results = conn.search(base, scope, filter, attributes, false, constraints);
+        while (results.hasMore()) {
+          LDAPEntry entry;
+          try {
+            entry = results.next();
+          } catch (LDAPReferralException e) {
+            log.debug("search(): ignoring referral {}", e.getMessage());
+            continue;
+          }
+          long handleStart = System.nanoTime();
+          handler.handle(entry);
+          inHandler += System.nanoTime() - handleStart;
+        }
+        cookie = pageSize > 0 ? LdapPagedResults.getCookie(results.getResponseControls())
+            : null;
+        results = null;
+        if (currentBreaker != null) {
+          currentBreaker.record(System.nanoTime() - pageStart - inHandler, false);
+          permitted = false;
+          if (cookie != null && !currentBreaker.acquirePermission()) {
+            throw new LdapCircuitOpenException("LDAP circuit breaker is open");
+          }
+          permitted = cookie != null;
+          pageStart = System.nanoTime();
+          inHandler = 0;
+        }
+      } while (cookie != null);
+      failure = false;
+    } catch (LDAPException e) {
+      failure = LdapCircuitBreaker.isFailure(e);
+      throw e;
+    } catch (IOException e) {
+      // the handler gave up, not the directory's fault.
+      failure = false;
+      throw e;
+    } finally {
+      if (results != null) {
+        try {
+          conn.abandon(results);
+        } catch (LDAPException e) {
+          log.debug("search(): failed to abandon: {}", e.getMessage());
+        }
+      }
+      metrics.timer(LdapMetrics.SEARCH).recordSince(start, failure);
+      if (permitted) {
+        currentBreaker.record(System.nanoTime() - pageStart - inHandler, failure);
+      }
+      returnConnection(conn);
+    }
+  }
+
+  /**
+   * Records the outcome of an asynchronous operation with its timer and the circuit
+   * breaker once it is known.
+   */
+  private void recordOutcome(final LdapCircuitBreaker currentBreaker, final LdapTimer timer,
+      final LdapFuture<?> future, final long start) {
+    future.addListener(new Runnable() {
+      public void run() {
+        boolean failure = false;
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          failure = !(cause instanceof LDAPException)
+              || LdapCircuitBreaker.isFailure((LDAPException) cause);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+          // cancelled by the caller, not the directory's fault.
+        }
+        long duration = System.nanoTime() - start;
+        timer.record(duration, failure);
+        if (currentBreaker != null) {
+          currentBreaker.record(duration, failure);
+        }
+      }
+    });
+  }
+
+  /**
+   * Creates a new connected, constrained and optionally bound connection, bypassing
+   * the pool.
+   */
+  protected LDAPConnection openConnection() throws LDAPException {
+    return openConnection((LdapDeadline) null);
+  }
+
+  /**
+   * As {@link #openConnection()}, connecting and binding within the deadline.
+   *
+   * @param deadline
+   *          null if there is no deadline.
+   */
+  protected LDAPConnection openConnection(LdapDeadline deadline) throws LDAPException {
+    LDAPConnection conn = newLDAPConnection(deadline);
     applyConstraints(conn);
-    connect(conn);
+    connect(conn, deadline);
+    autoBind(conn, deadline);
+    return conn;
+  }
 
+  /**
+   * As {@link #openConnection()}, connecting to the given replica rather than the one
+   * the server set would choose.
+   */
+  protected LDAPConnection openConnection(LdapServer server) throws LDAPException {
+    LDAPConnection conn = newLDAPConnection(null);
+    applyConstraints(conn);
+    LdapServerSet serverSet = getServers();
+    try {
+      connect(conn, server, null);
+    } catch (LDAPException e) {
+      log.warn("Failed to connect to {}, marking it down: {}", server, e.getMessage());
+      serverSet.failed(server);
+      throw e;
+    }
+    serverSet.connected(server, conn);
+    autoBind(conn, null);
+    return conn;
+  }
+
+  private void autoBind(LDAPConnection conn, LdapDeadline deadline) throws LDAPException {
     if (config.isAutoBind()) {
       log.debug("getConnection(): auto-binding");
-      bind(conn, config.getLdapUser(), config.getLdapPassword());
+      try {
+        bind(conn, config.getLdapUser(), config.getLdapPassword(), deadline);
+      } catch (LDAPException e) {
+        closeConnection(conn);
+        throw e;
+      }
     }
-
-    return conn;
   }
 
+  /**
+   * {@inheritDoc}
+   */
   public LDAPConnection getBoundConnection(String dn, String pass) throws LDAPException {
     verifySetup();
 
-    log.debug("getBoundConnection(): [dn = {}]", config.getLdapUser());
+    log.debug("getBoundConnection(): [dn = {}]", dn);
+
+    KeyedLdapConnectionPool currentBoundPool = boundPool;
+    if (currentBoundPool != null && pass != null && pass.length() > 0) {
+      return currentBoundPool.borrowConnection(dn, pass);
+    }
+    return openBoundConnection(dn, pass);
+  }
 
+  /**
+   * Creates a new connection bound as the given DN, bypassing the pool.
+   */
+  protected LDAPConnection openBoundConnection(String dn, String pass) throws LDAPException {
     LDAPConnection conn = newLDAPConnection();
     applyConstraints(conn);
     connect(conn);
-    bind(conn, dn, pass);
+    try {
+      bind(conn, dn, pass, null);
+    } catch (LDAPException e) {
+      closeConnection(conn);
+      throw e;
+    }
 
     return conn;
   }
 
   protected LDAPConnection newLDAPConnection() {
+    return newLDAPConnection(null);
+  }
+
+  /**
+   * Creates an unconnected connection. Unless the connection is to be secure from the
+   * start, its socket is made with a connect timeout of <code>connect.timeout</code>, or
+   * the time left before the deadline if that is less.
+   *
+   * @param deadline
+   *          null if there is no deadline.
+   */
+  protected LDAPConnection newLDAPConnection(LdapDeadline deadline) {
     verifySetup();
 
-    LDAPSocketFactory ldapSocketFactory = LdapSecurityUtil.initLDAPSocketFactory(config);
+    LDAPSocketFactory ldapSocketFactory = socketFactoryCache.getSocketFactory(config);
+    // secure socket factories hand back sockets already connected, so can't be timed.
+    if (ldapSocketFactory == null || ldapSocketFactory instanceof LDAPTLSSocketFactory) {
+      ldapSocketFactory = new LdapTimedSocketFactory((LDAPTLSSocketFactory) ldapSocketFactory,
+          config.getConnectTimeout(), deadline);
+    }
     LDAPConnection conn = new LDAPConnection(ldapSocketFactory);
     return conn;
   }
 
-  private void bind(LDAPConnection conn, String dn, String pw) throws LDAPException {
+  /**
+   * @param deadline
+   *          limits the time waited for the bind, null to wait the operation timeout.
+   */
+  private void bind(LDAPConnection conn, String dn, String pw, LdapDeadline deadline)
+      throws LDAPException {
     log.debug("bind(): binding [dn = {}]", dn);
 
+    if (deadline != null) {
+      deadline.check("binding as " + dn);
+    }
+
+    byte[] password;
     try {
-      byte[] password = pw.getBytes("UTF8");
-      conn.bind(LDAPConnection.LDAP_V3, dn, password);
+      password = pw.getBytes("UTF8");
     } catch (UnsupportedEncodingException e) {
       throw new RuntimeException("Failed to encode user password", e);
     }
+    long start = System.nanoTime();
+    boolean failure = true;
+    try {
+      if (deadline == null) {
+        conn.bind(LDAPConnection.LDAP_V3, dn, password);
+      } else {
+        LDAPConstraints constraints = conn.getConstraints();
+        constraints.setTimeLimit(deadline.limit(constraints.getTimeLimit()));
+        conn.bind(LDAPConnection.LDAP_V3, dn, password, constraints);
+      }
+      failure = false;
+    } finally {
+      metrics.timer(LdapMetrics.BIND).recordSince(start, failure);
+    }
   }
 
   /**
    * {@inheritDoc}
    */
   public void returnConnection(LDAPConnection conn) {
+    if (conn == null) {
+      return;
+    }
+    LdapConnectionPool currentPool = pool;
+    if (currentPool != null && currentPool.returnConnection(conn)) {
+      return;
+    }
+    KeyedLdapConnectionPool currentBoundPool = boundPool;
+    if (currentBoundPool != null && currentBoundPool.returnConnection(conn)) {
+      return;
+    }
+    closeConnection(conn);
+  }
+
+  private void closeConnection(LDAPConnection conn) {
+    // counted down whether or not the connection is still up.
+    getServers().disconnected(conn);
     try {
-      if (conn != null) {
-        conn.disconnect();
-      }
+      conn.disconnect();
     } catch (LDAPException e) {
       log.error("returnConnection(): failed on disconnect: ", e);
     }
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+    LdapConnectionPool currentPool = pool;
+    if (currentPool != null) {
+      statistics.put("pool", currentPool.getStatistics());
+    }
+    KeyedLdapConnectionPool currentBoundPool = boundPool;
+    if (currentBoundPool != null) {
+      statistics.put("bound", currentBoundPool.getStatistics());
+    }
+    LdapMultiplexer currentMultiplexer = multiplexer;
+    if (currentMultiplexer != null) {
+      statistics.put("async", currentMultiplexer.getStatistics());
+    }
+    LdapHedgedReader currentHedger = hedger;
+    if (currentHedger != null) {
+      statistics.put("hedging", currentHedger.getStatistics());
+    }
+    LdapCircuitBreaker currentBreaker = breaker;
+    if (currentBreaker != null) {
+      statistics.put("breaker", currentBreaker.getState().toString());
+    }
+    Map<String, Object> replicas = new LinkedHashMap<String, Object>();
+    for (LdapServer server : getServers().getServers()) {
+      Map<String, Object> replica = new LinkedHashMap<String, Object>();
+      replica.put("up", server.isUp());
+      replica.put("connections", server.getOutstanding());
+      replicas.put(server.toString(), replica);
+    }
+    statistics.put("servers", replicas);
+    statistics.put("operations", metrics.getStatistics());
+    return statistics;
+  }
+
+  private synchronized void startPool() {
+    stopPool();
+    pool = new LdapConnectionPool(connectionFactory, config);
+    if (config.getBoundPoolMaxKeys() > 0) {
+      boundPool = new KeyedLdapConnectionPool(connectionFactory,
+          new KeyedLdapConnectionPool.Binder() {
+            public LDAPConnection bind(String dn, String password) throws LDAPException {
+              return openBoundConnection(dn, password);
+            }
+          }, config);
+    }
+  }
+
+  private synchronized void stopPool() {
+    if (pool != null) {
+      pool.close();
+      pool = null;
+    }
+    if (boundPool != null) {
+      boundPool.close();
+      boundPool = null;
+    }
+  }
+
+  /**
+   * Opens a multiplexed connection to each replica for hedged reads, if there is more
+   * than one replica to hedge with.
+   */
+  private synchronized void startHedging() {
+    stopHedging();
+    LdapServerSet serverSet = getServers();
+    if (serverSet.getServers().size() < 2) {
+      log.warn("Hedged reads need more than one LDAP host, reads will not be hedged");
+      return;
+    }
+    Map<LdapServer, LdapMultiplexer> replicas = new LinkedHashMap<LdapServer, LdapMultiplexer>();
+    for (LdapServer server : serverSet.getServers()) {
+      replicas.put(server, new LdapMultiplexer(connectionFactory(server), 1,
+          config.getAsyncMaxOutstanding(), config.getAsyncTimeout()));
+    }
+    hedger = new LdapHedgedReader(replicas, serverSet, config);
+  }
+
+  private synchronized void stopHedging() {
+    if (hedger != null) {
+      hedger.close();
+      hedger = null;
+    }
+  }
+
+  /**
+   * Schedules {@link #maintain()} to run every <code>pool.eviction.interval</code>, and,
+   * when there is more than one replica, {@link #probeServers()} every
+   * <code>host.retry.interval</code>.
+   */
+  private synchronized void startMaintenance() {
+    stopMaintenance();
+    long interval = config.getPoolEvictionInterval();
+    // with a single replica, connect() tries it whether it is down or not.
+    boolean probing = getServers().getServers().size() > 1;
+    if (interval <= 0 && !probing) {
+      return;
+    }
+    maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "LDAP connection maintenance");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    if (interval > 0) {
+      maintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            maintain();
+          } catch (RuntimeException e) {
+            log.warn("Connection maintenance failed: {}", e.getMessage());
+            log.debug(e.getMessage(), e);
+          }
+        }
+      }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+    if (probing) {
+      long probeInterval = Math.max(config.getHostRetryInterval(), MIN_PROBE_INTERVAL);
+      maintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            probeServers();
+          } catch (RuntimeException e) {
+            log.warn("Probing LDAP hosts failed: {}", e.getMessage());
+            log.debug(e.getMessage(), e);
+          }
+        }
+      }, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private synchronized void stopMaintenance() {
+    if (maintenanceExecutor != null) {
+      maintenanceExecutor.shutdownNow();
+      maintenanceExecutor = null;
+    }
+  }
+
+  /**
+   * Runs {@link #warmUp()} on a thread of its own, so that activation does not wait on
+   * the directory.
+   */
+  private synchronized void startWarmUp() {
+    stopWarmUp();
+    String dn = config.getWarmUpDn();
+    if (config.getWarmUpConnections() <= 0 && (dn == null || dn.length() == 0)) {
+      return;
+    }
+    warmUpThread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          warmUp();
+        } catch (RuntimeException e) {
+          log.warn("Connection warm-up failed: {}", e.getMessage());
+          log.debug(e.getMessage(), e);
+        }
+      }
+    }, "LDAP connection warm-up");
+    warmUpThread.setDaemon(true);
+    warmUpThread.start();
+  }
+
+  private synchronized void stopWarmUp() {
+    if (warmUpThread != null) {
+      warmUpThread.interrupt();
+      warmUpThread = null;
+    }
+  }
+
+  /**
+   * Gets the connections ready before the first users need them, so that they do not
+   * pay for building the socket factory, connecting and negotiating TLS. Opens and
+   * validates <code>warmup.connections</code> pooled connections (and at least
+   * <code>pool.min.idle</code>), opens the connections used for asynchronous
+   * operations, then reads <code>warmup.dn</code> both ways to prime the lookup path.
+   * Failures are logged and otherwise ignored: the connections will be made on demand.
+   */
+  protected void warmUp() {
+    long start = System.currentTimeMillis();
+    LdapConnectionPool currentPool = pool;
+    if (currentPool != null) {
+      currentPool.ensureMinIdle();
+      int count = Math.min(config.getWarmUpConnections(), config.getPoolMaxConns());
+      List<LDAPConnection> connections = new ArrayList<LDAPConnection>();
+      try {
+        // borrow them all at once so that each one is a distinct connection.
+        for (int i = 0; i < count && !Thread.currentThread().isInterrupted(); i++) {
+          connections.add(currentPool.borrowConnection());
+        }
+      } catch (LDAPException e) {
+        log.warn("Failed to warm up LDAP connections: {}", e.getMessage());
+      } finally {
+        for (LDAPConnection conn : connections) {
+          returnConnection(conn);
+        }
+      }
+    }
+    LdapMultiplexer currentMultiplexer = multiplexer;
+    if (currentMultiplexer != null && !Thread.currentThread().isInterrupted()) {
+      try {
+        currentMultiplexer.connect();
+      } catch (LDAPException e) {
+        log.warn("Failed to warm up asynchronous LDAP connections: {}", e.getMessage());
+      }
+    }
+    String dn = config.getWarmUpDn();
+    if (dn != null && dn.length() > 0 && !Thread.currentThread().isInterrupted()) {
+      try {
+        read(dn);
+        readAsync(dn, null).getResult(config.getAsyncTimeout());
+      } catch (LDAPException e) {
+        log.warn("Failed to prime LDAP lookups with {}: {}", dn, e.getMessage());
+      }
+    }
+    log.info("LDAP connections warmed up in {}ms", System.currentTimeMillis() - start);
+    if (log.isDebugEnabled()) {
+      log.debug("warmUp(): {}", getStatistics());
+    }
+  }
+
+  /**
+   * Connects to each down replica whose back-off has expired, marking it up if it
+   * answers. Runs on the maintenance thread, so that no user request pays for connecting
+   * to a replica that may still be dead while healthy ones are available.
+   */
+  protected void probeServers() {
+    LdapServerSet serverSet = getServers();
+    for (LdapServer server : serverSet.claimProbes()) {
+      if (Thread.currentThread().isInterrupted()) {
+        serverSet.released(server);
+        continue;
+      }
+      try {
+        closeConnection(openConnection(server));
+        log.info("LDAP host {} is answering again", server);
+      } catch (LDAPException e) {
+        log.debug("probeServers(): {} is still down: {}", server, e.getMessage());
+      } finally {
+        // a no-op once the probe has been recorded.
+        serverSet.released(server);
+      }
+    }
+  }
+
+  /**
+   * Checks, keeps alive and retires the pooled and multiplexed connections.
+   */
+  protected void maintain() {
+    LdapConnectionPool currentPool = pool;
+    if (currentPool != null) {
+      currentPool.maintain();
+    }
+    KeyedLdapConnectionPool currentBoundPool = boundPool;
+    if (currentBoundPool != null) {
+      currentBoundPool.maintain();
+    }
+    LdapMultiplexer currentMultiplexer = multiplexer;
+    if (currentMultiplexer != null) {
+      currentMultiplexer.maintain(config.getPoolMaxAge(), config.getPoolKeepAliveInterval());
+    }
+    LdapHedgedReader currentHedger = hedger;
+    if (currentHedger != null) {
+      currentHedger.maintain(config.getPoolMaxAge(), config.getPoolKeepAliveInterval());
+    }
+    if (log.isDebugEnabled()) {
+      log.debug("maintain(): {}", getStatistics());
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -178,6 +1115,7 @@ public class SimpleLdapConnectionManagerImpl implements SimpleLdapConnectionMana
    */
   public void setConfig(LdapConnectionManagerConfig config) {
     this.config = config;
+    this.servers = null;
   }
 
   /**
@@ -209,26 +1147,174 @@ public class SimpleLdapConnectionManagerImpl implements SimpleLdapConnectionMana
   }
 
   /**
-   * Connects the specified <code>LDAPConnection</code> to the currently
-   * configured host and port.
+   * @return the search constraints of the connection, with the time limit cut to the
+   *         time left before the deadline. Only for this call: the connection's own
+   *         constraints are left alone, as it goes back to the pool afterwards.
+   */
+  private LDAPSearchConstraints searchConstraints(LDAPConnection conn, LdapDeadline deadline) {
+    LDAPSearchConstraints constraints = conn.getSearchConstraints();
+    constraints.setTimeLimit(deadline.limit(constraints.getTimeLimit()));
+    return constraints;
+  }
+
+  /**
+   * @return <code>true</code> if the exception counts against the directory. A timeout
+   *         once the deadline has passed is down to the caller's budget, which may well
+   *         be shorter than the operation timeout.
+   */
+  private static boolean isFailure(LDAPException e, LdapDeadline deadline) {
+    return LdapCircuitBreaker.isFailure(e)
+        && !(deadline != null && e.getResultCode() == LDAPException.LDAP_TIMEOUT && deadline
+            .isExpired());
+  }
+
+  /**
+   * @return the time (in milliseconds) to wait for a read: the operation timeout, or the
+   *         time left before the deadline if that is less.
+   */
+  private long readTimeout(LdapDeadline deadline) {
+    int timeout = config.getOperationTimeout();
+    if (deadline != null) {
+      return deadline.limit(timeout);
+    }
+    return timeout > 0 ? timeout : config.getAsyncTimeout();
+  }
+
+  /**
+   * @return a factory making connections to the given replica.
+   */
+  private LdapConnectionFactory connectionFactory(final LdapServer server) {
+    return new LdapConnectionFactory() {
+
+      public LDAPConnection makeConnection() throws LDAPException {
+        return openConnection(server);
+      }
+
+      public boolean validateConnection(LDAPConnection conn) {
+        return connectionFactory.validateConnection(conn);
+      }
+
+      public boolean keepAlive(LDAPConnection conn) {
+        return connectionFactory.keepAlive(conn);
+      }
+
+      public void destroyConnection(LDAPConnection conn) {
+        connectionFactory.destroyConnection(conn);
+      }
+    };
+  }
+
+  /**
+   * @return a factory making connections for the pool within the deadline.
+   */
+  private LdapConnectionFactory connectionFactory(final LdapDeadline deadline) {
+    return new LdapConnectionFactory() {
+
+      public LDAPConnection makeConnection() throws LDAPException {
+        return openConnection(deadline);
+      }
+
+      public boolean validateConnection(LDAPConnection conn) {
+        return connectionFactory.validateConnection(conn);
+      }
+
+      public boolean keepAlive(LDAPConnection conn) {
+        return connectionFactory.keepAlive(conn);
+      }
+
+      public void destroyConnection(LDAPConnection conn) {
+        connectionFactory.destroyConnection(conn);
+      }
+    };
+  }
+
+  /**
+   * Connects the specified <code>LDAPConnection</code> to one of the currently
+   * configured replicas. Replicas are tried in the order chosen by the
+   * {@link LdapServerSet}; a replica that cannot be connected to is marked down and
+   * the next one is tried.
    *
    * @param conn
    *          an <code>LDAPConnection</code>
    * @throws LDAPConnection
-   *           if the connect attempt fails
+   *           if the connect attempt fails on every replica
    */
   protected void connect(LDAPConnection conn) throws LDAPException {
+    connect(conn, (LdapDeadline) null);
+  }
+
+  /**
+   * As {@link #connect(LDAPConnection)}, giving up once the deadline passes. Replicas
+   * that time out after the deadline has passed are not marked down, as they may only
+   * have been given a moment to answer.
+   *
+   * @param deadline
+   *          null if there is no deadline.
+   */
+  protected void connect(LDAPConnection conn, LdapDeadline deadline) throws LDAPException {
     log.debug("connect()");
 
     verifySetup();
 
-    conn.connect(config.getLdapHost(), config.getLdapPort());
+    LdapServerSet serverSet = getServers();
+    List<LdapServer> candidates = serverSet.getCandidates();
+    if (candidates.isEmpty()) {
+      throw new LDAPException("No LDAP host configured", LDAPException.CONNECT_ERROR, null);
+    }
+    LDAPException failure = null;
+    for (LdapServer server : candidates) {
+      if (deadline != null) {
+        deadline.check("connecting to " + server);
+      }
+      try {
+        connect(conn, server, deadline);
+        serverSet.connected(server, conn);
+        return;
+      } catch (LDAPException e) {
+        if (deadline != null && deadline.isExpired()) {
+          throw e instanceof LdapDeadlineExceededException ? e
+              : new LdapDeadlineExceededException("Out of time connecting to " + server
+                  + ": " + e.getMessage());
+        }
+        log.warn("Failed to connect to {}, marking it down: {}", server, e.getMessage());
+        serverSet.failed(server);
+        failure = e;
+      } catch (RuntimeException e) {
+        serverSet.failed(server);
+        throw e;
+      } catch (Error e) {
+        serverSet.failed(server);
+        throw e;
+      }
+    }
+    throw failure;
+  }
+
+  private void connect(LDAPConnection conn, LdapServer server, LdapDeadline deadline)
+      throws LDAPException {
+    long start = System.nanoTime();
+    boolean failure = true;
+    try {
+      conn.connect(server.getHost(), server.getPort());
+      failure = false;
+    } finally {
+      metrics.timer(LdapMetrics.CONNECT).recordSince(start, failure);
+    }
+
+    if (deadline != null && deadline.isExpired()) {
+      // send nothing more, starting TLS has no time limit of its own.
+      try {
+        conn.disconnect();
+      } catch (LDAPException e) {
+      }
+      throw new LdapDeadlineExceededException("Out of time after connecting to " + server);
+    }
 
     try {
       postConnect(conn);
     } catch (LDAPException e) {
-      log.error("Failed to completely initialize a connection [host = " + config.getLdapHost()
-          + "][port = " + config.getLdapPort() + "]", e);
+      log.error("Failed to completely initialize a connection [host = " + server.getHost()
+          + "][port = " + server.getPort() + "]", e);
       try {
         conn.disconnect();
       } catch (LDAPException ee) {
@@ -236,8 +1322,8 @@ public class SimpleLdapConnectionManagerImpl implements SimpleLdapConnectionMana
 
       throw e;
     } catch (Throwable e) {
-      log.error("Failed to completely initialize a connection [host = " + config.getLdapHost()
-          + "][port = " + config.getLdapPort() + "]", e);
+      log.error("Failed to completely initialize a connection [host = " + server.getHost()
+          + "][port = " + server.getPort() + "]", e);
       try {
         conn.disconnect();
       } catch (LDAPException ee) {
@@ -263,10 +1349,32 @@ public class SimpleLdapConnectionManagerImpl implements SimpleLdapConnectionMana
 
     if (config.isSecureConnection() && config.isTLS()) {
       log.debug("postConnect(): starting TLS");
-      conn.startTLS();
+      long start = System.nanoTime();
+      boolean failure = true;
+      try {
+        conn.startTLS();
+        failure = false;
+      } finally {
+        metrics.timer(LdapMetrics.TLS).recordSince(start, failure);
+      }
     }
   }
 
+  private LdapServerSet getServers() {
+    LdapServerSet serverSet = servers;
+    if (serverSet == null) {
+      serverSet = newServerSet(config);
+      servers = serverSet;
+    }
+    return serverSet;
+  }
+
+  private static LdapServerSet newServerSet(LdapConnectionManagerConfig config) {
+    return new LdapServerSet(config.getLdapHost(), config.getLdapPort(),
+        config.getLoadBalancing(), config.getHostRetryInterval(),
+        config.getHostRetryMaxInterval());
+  }
+
   private void verifySetup() throws IllegalStateException {
     if (config == null) {
       throw new IllegalStateException("Configuration not available for this connection manager.");
@@ -0,0 +1,204 @@
+package uk.ac.cam.caret.oae.profile;
+
+import com.google.common.collect.Maps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which directory attributes a lookup returns: a list of attributes to read (all user
+ * attributes if the list is empty) less a list of attributes that are never returned.
+ * Attribute names are compared ignoring case, as LDAP does.
+ */
+public class AttributeProjection {
+
+  /** the attributes to read, null for all */
+  private final String[] attributes;
+
+  /** lower case names of the attributes never returned */
+  private final Set<String> excluded;
+
+  /**
+   * @param include
+   *          the attributes to read, empty for all user attributes.
+   * @param exclude
+   *          the attributes never to return.
+   */
+  public AttributeProjection(String[] include, String[] exclude) {
+    Set<String> excludedNames = new HashSet<String>();
+    for (String attribute : exclude) {
+      if (attribute.trim().length() > 0) {
+        excludedNames.add(attribute.trim().toLowerCase());
+      }
+    }
+    this.excluded = excludedNames;
+    this.attributes = toAttributeList(include, excludedNames);
+  }
+
+  private AttributeProjection(String[] attributes, Set<String> excluded) {
+    this.attributes = attributes;
+    this.excluded = excluded;
+  }
+
+  /**
+   * @return a projection reading the given attributes, excluding the same attributes as
+   *         this one.
+   */
+  public AttributeProjection withInclude(String[] include) {
+    return new AttributeProjection(toAttributeList(include, excluded), excluded);
+  }
+
+  /**
+   * @return the attributes to ask the directory for, without the excluded ones, or null
+   *         to ask for all user attributes.
+   */
+  public String[] getAttributes() {
+    return attributes;
+  }
+
+  /**
+   * @param required
+   *          an attribute the caller needs whatever the projection.
+   * @return the attributes to ask the directory for, including <code>required</code>,
+   *         or null to ask for all user attributes.
+   */
+  public String[] getAttributes(String required) {
+    if (attributes == null) {
+      return null;
+    }
+    for (String attribute : attributes) {
+      if (attribute.equalsIgnoreCase(required)) {
+        return attributes;
+      }
+    }
+    String[] withRequired = new String[attributes.length + 1];
+    System.arraycopy(attributes, 0, withRequired, 0, attributes.length);
+    withRequired[attributes.length] = required;
+    return withRequired;
+  }
+
+  /**
+   * @param operational
+   *          operational attributes the caller needs whatever the projection. The
+   *          directory only returns these when they are asked for by name.
+   * @return the attributes to ask the directory for, including <code>operational</code>.
+   */
+  public String[] getAttributesWithOperational(String[] operational) {
+    List<String> list = new ArrayList<String>();
+    if (attributes == null) {
+      list.add("*");
+    } else {
+      list.addAll(Arrays.asList(attributes));
+    }
+    for (String attribute : operational) {
+      boolean present = false;
+      for (String listed : list) {
+        present |= listed.equalsIgnoreCase(attribute);
+      }
+      if (!present) {
+        list.add(attribute);
+      }
+    }
+    return list.toArray(new String[list.size()]);
+  }
+
+  /**
+   * @return the attributes never returned, in lower case.
+   */
+  public String[] getExcluded() {
+    return excluded.toArray(new String[excluded.size()]);
+  }
+
+  /**
+   * @return <code>true</code> if the attribute is never returned.
+   */
+  public boolean isExcluded(String attribute) {
+    return excluded.contains(attribute.toLowerCase());
+  }
+
+  /**
+   * @param record
+   *          a directory record, which is not modified.
+   * @return a copy of the record without the excluded attributes.
+   */
+  public Map<String, Object> filter(Map<String, Object> record) {
+    Map<String, Object> filtered = Maps.newHashMap();
+    for (Map.Entry<String, Object> e : record.entrySet()) {
+      if (!isExcluded(e.getKey())) {
+        filtered.put(e.getKey(), e.getValue());
+      }
+    }
+    return filtered;
+  }
+
+  /**
+   * @param record
+   *          a directory record that may hold more attributes than this projection reads,
+   *          which is not modified.
+   * @param operational
+   *          operational attributes to keep as well.
+   * @return a copy of the record with only the attributes this projection reads, less
+   *         the excluded ones.
+   */
+  public Map<String, Object> select(Map<String, Object> record, String[] operational) {
+    if (attributes == null) {
+      return filter(record);
+    }
+    Set<String> selected = new HashSet<String>();
+    for (String attribute : getAttributesWithOperational(operational)) {
+      selected.add(attribute.toLowerCase());
+    }
+    Map<String, Object> filtered = Maps.newHashMap();
+    for (Map.Entry<String, Object> e : record.entrySet()) {
+      String name = e.getKey().toLowerCase();
+      if (selected.contains(name) && !excluded.contains(name)) {
+        filtered.put(e.getKey(), e.getValue());
+      }
+    }
+    return filtered;
+  }
+
+  /**
+   * @param record
+   *          a directory record read with {@link #getAttributesWithOperational(String[])},
+   *          which is not modified.
+   * @param operational
+   *          the operational attributes it was read with.
+   * @return a copy of the record without those operational attributes that this
+   *         projection does not itself name, as they were only read for the caller's use.
+   */
+  public Map<String, Object> withoutOperational(Map<String, Object> record,
+      String[] operational) {
+    Set<String> unrequested = new HashSet<String>();
+    for (String attribute : operational) {
+      unrequested.add(attribute.toLowerCase());
+    }
+    if (attributes != null) {
+      for (String attribute : attributes) {
+        unrequested.remove(attribute.toLowerCase());
+      }
+    }
+    Map<String, Object> stripped = Maps.newHashMap();
+    for (Map.Entry<String, Object> e : record.entrySet()) {
+      if (!unrequested.contains(e.getKey().toLowerCase())) {
+        stripped.put(e.getKey(), e.getValue());
+      }
+    }
+    return stripped;
+  }
+
+  private static String[] toAttributeList(String[] attributes, Set<String> excluded) {
+    List<String> list = new ArrayList<String>();
+    for (String attribute : attributes) {
+      attribute = attribute.trim();
+      if (attribute.length() > 0 && !excluded.contains(attribute.toLowerCase())) {
+        list.add(attribute);
+      }
+    }
+    return list.isEmpty() ? null : list.toArray(new String[list.size()]);
+  }
+}
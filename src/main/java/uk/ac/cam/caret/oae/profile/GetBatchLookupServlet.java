@@ -0,0 +1,382 @@
+package uk.ac.cam.caret.oae.profile;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.cam.caret.oae.ldap.LdapFuture;
+import uk.ac.cam.caret.oae.ldap.LdapUtil;
+import uk.ac.cam.caret.oae.ldap.SimpleLdapConnectionManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Looks up many users at once. The users are given by <code>uid</code>, repeated or comma
+ * separated. Rather than one read per user, the directory is searched with one OR filter per
+ * <code>chunk.size</code> users, the chunks running concurrently while the local records are
+ * fetched.
+ *
+ * The response is a map keyed by uid, each value holding the remote ldap record (or false) and the
+ * local record if there is one, as for a single lookup. Only admin may look up other users.
+ *
+ * With <code>streaming</code> on (the default) each chunk of users is written, in order, as
+ * soon as it has been searched, so the response is not built in memory first. With it off
+ * the response is written at the end. Either way the searches run concurrently, and users
+ * whose chunk has not been searched within <code>timeout</code> milliseconds are
+ * answered with no remote record.
+ */
+@SlingServlet(paths = { "/system/ucam/lookups" }, methods = "GET")
+public class GetBatchLookupServlet extends SlingSafeMethodsServlet {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = 4520958713390671245L;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GetBatchLookupServlet.class);
+
+  private static final String SEARCH_BASE_DEFAULT = "ou=people,o=University of Cambridge,dc=cam,dc=ac,dc=uk";
+
+  @Property(value = SEARCH_BASE_DEFAULT)
+  private static final String SEARCH_BASE = "search-base";
+
+  @Property(value = "uid")
+  private static final String UID_ATTRIBUTE = "uid-attribute";
+
+  @Property(intValue = 50)
+  private static final String CHUNK_SIZE = "chunk.size";
+
+  @Property(intValue = 500)
+  private static final String MAX_UIDS = "max.uids";
+
+  @Property(longValue = 30000)
+  private static final String TIMEOUT = "timeout";
+
+  @Property(boolValue = true)
+  private static final String STREAMING = "streaming";
+
+  @Property(value = {}, cardinality = Integer.MAX_VALUE)
+  private static final String ATTRIBUTES = "attributes";
+
+  @Property(value = { "jpegPhoto" }, cardinality = Integer.MAX_VALUE)
+  private static final String ATTRIBUTES_EXCLUDE = "attributes.exclude";
+
+  @Reference
+  private SimpleLdapConnectionManager simpleLdapConnectionManager;
+
+  private String searchBase;
+
+  private String uidAttribute;
+
+  private int chunkSize;
+
+  private int maxUids;
+
+  private long timeout;
+
+  private boolean streaming;
+
+  private AttributeProjection projection;
+
+  @Activate
+  public void activate(Map<String, Object> properties) {
+    modify(properties);
+  }
+
+  @Modified
+  public void modify(Map<String, Object> properties) {
+    searchBase = OsgiUtil.toString(properties.get(SEARCH_BASE), SEARCH_BASE_DEFAULT);
+    uidAttribute = OsgiUtil.toString(properties.get(UID_ATTRIBUTE), "uid");
+    chunkSize = Math.max(1, OsgiUtil.toInteger(properties.get(CHUNK_SIZE), 50));
+    maxUids = OsgiUtil.toInteger(properties.get(MAX_UIDS), 500);
+    timeout = OsgiUtil.toLong(properties.get(TIMEOUT), 30000);
+    streaming = OsgiUtil.toBoolean(properties.get(STREAMING), true);
+    projection = new AttributeProjection(OsgiUtil.toStringArray(properties.get(ATTRIBUTES),
+        new String[0]), OsgiUtil.toStringArray(properties.get(ATTRIBUTES_EXCLUDE),
+        new String[] { "jpegPhoto" }));
+  }
+
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+
+    try {
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+          .adaptTo(javax.jcr.Session.class));
+      if (!User.ADMIN_USER.equals(session.getUserId())) {
+        response.setStatus(403);
+        return;
+      }
+      Set<String> userIds = getUserIds(request);
+      if (userIds.size() > maxUids) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "At most " + maxUids
+            + " users may be looked up at once");
+        return;
+      }
+
+      AttributeProjection currentProjection = projection;
+      if (streaming) {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        streamResults(session, userIds, currentProjection, response);
+        return;
+      }
+
+      // start the searches, then fetch the local records while they run.
+      List<LdapFuture<List<LDAPEntry>>> searches = startSearches(userIds,
+          currentProjection.getAttributes(uidAttribute));
+
+      AuthorizableManager authorizableManager = session.getAuthorizableManager();
+      Map<String, Map<String, Object>> out = new LinkedHashMap<String, Map<String, Object>>();
+      for (String userId : userIds) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("remote", false);
+        Authorizable user = authorizableManager.findAuthorizable(userId);
+        if (user != null) {
+          result.put("local", user.getSafeProperties());
+        }
+        out.put(userId, result);
+      }
+
+      collectResults(searches, userIds, currentProjection, out);
+
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      JSONWriter jsonWriter = new JSONWriter(response.getWriter());
+
+      ExtendedJSONWriter.writeValueMap(jsonWriter, out);
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @return the distinct uids requested, in the order given.
+   */
+  private Set<String> getUserIds(SlingHttpServletRequest request) {
+    Set<String> userIds = new LinkedHashSet<String>();
+    String[] values = request.getParameterValues("uid");
+    if (values != null) {
+      for (String value : values) {
+        for (String userId : value.split(",")) {
+          userId = userId.trim();
+          if (userId.length() > 0 && !User.ANON_USER.equals(userId)) {
+            userIds.add(userId);
+          }
+        }
+      }
+    }
+    return userIds;
+  }
+
+  /**
+   * @return one filter per chunk of users, each of the form
+   *         <code>(|(uid=a)(uid=b)...)</code>.
+   */
+  private List<String> getFilters(Set<String> userIds) {
+    List<String> filters = new ArrayList<String>();
+    StringBuilder terms = new StringBuilder();
+    int inChunk = 0;
+    for (String userId : userIds) {
+      terms.append('(').append(uidAttribute).append('=')
+          .append(LdapUtil.escapeLDAPSearchFilter(userId)).append(')');
+      if (++inChunk == chunkSize) {
+        filters.add(toFilter(terms, inChunk));
+        terms.setLength(0);
+        inChunk = 0;
+      }
+    }
+    if (inChunk > 0) {
+      filters.add(toFilter(terms, inChunk));
+    }
+    return filters;
+  }
+
+  private String toFilter(StringBuilder terms, int count) {
+    return count == 1 ? terms.toString() : "(|" + terms + ")";
+  }
+
+  /**
+   * Starts one search per chunk of users.
+   */
+  private List<LdapFuture<List<LDAPEntry>>> startSearches(Set<String> userIds,
+      String[] attributes) {
+    List<LdapFuture<List<LDAPEntry>>> searches = new ArrayList<LdapFuture<List<LDAPEntry>>>();
+    for (String filter : getFilters(userIds)) {
+      searches.add(simpleLdapConnectionManager.searchAsync(searchBase,
+          LDAPConnection.SCOPE_SUB, filter, attributes));
+    }
+    return searches;
+  }
+
+  /**
+   * Waits for the searches and puts each entry found in the result of the user it
+   * belongs to. Users whose search failed are left with no remote record.
+   */
+  private void collectResults(List<LdapFuture<List<LDAPEntry>>> searches,
+      Set<String> userIds, AttributeProjection currentProjection,
+      Map<String, Map<String, Object>> out) {
+    Map<String, List<String>> byLowerCase = byLowerCase(userIds);
+    long deadline = System.currentTimeMillis() + timeout;
+    for (LdapFuture<List<LDAPEntry>> search : searches) {
+      List<LDAPEntry> entries;
+      try {
+        entries = search.getResult(Math.max(1, deadline - System.currentTimeMillis()));
+      } catch (LDAPException e) {
+        search.cancel(true);
+        LOGGER.warn(e.getMessage());
+        LOGGER.debug(e.getMessage(), e);
+        continue;
+      }
+      for (LDAPEntry entry : entries) {
+        List<String> found = findUserIds(entry, byLowerCase);
+        if (found.isEmpty()) {
+          continue;
+        }
+        Map<String, Object> record = currentProjection.filter(LdapUtil.toRecord(entry));
+        for (String userId : found) {
+          out.get(userId).put("remote", record);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the users of each chunk, in order, as soon as the chunk has been searched, so
+   * that the response is not built in memory and the first users are sent before the
+   * last are found. The searches all start at once; once <code>timeout</code> has passed
+   * those still running are abandoned. Users without an entry, or whose search failed or
+   * ran out of time, are written last.
+   */
+  private void streamResults(Session session, Set<String> userIds,
+      AttributeProjection currentProjection, SlingHttpServletResponse response)
+      throws IOException, JSONException, StorageClientException, AccessDeniedException {
+    List<LdapFuture<List<LDAPEntry>>> searches = startSearches(userIds,
+        currentProjection.getAttributes(uidAttribute));
+    long deadline = System.currentTimeMillis() + timeout;
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    JSONWriter jsonWriter = new JSONWriter(response.getWriter());
+    Map<String, List<String>> pending = byLowerCase(userIds);
+    jsonWriter.object();
+    for (LdapFuture<List<LDAPEntry>> search : searches) {
+      List<LDAPEntry> entries;
+      try {
+        entries = search.getResult(Math.max(1, deadline - System.currentTimeMillis()));
+      } catch (LDAPException e) {
+        search.cancel(true);
+        LOGGER.warn(e.getMessage());
+        LOGGER.debug(e.getMessage(), e);
+        continue;
+      }
+      for (LDAPEntry entry : entries) {
+        List<String> found = findUserIds(entry, pending);
+        if (found.isEmpty()) {
+          continue;
+        }
+        pending.remove(found.get(0).toLowerCase());
+        Map<String, Object> record = currentProjection.filter(LdapUtil.toRecord(entry));
+        for (String userId : found) {
+          writeUser(jsonWriter, authorizableManager, userId, record);
+        }
+      }
+      response.flushBuffer();
+    }
+    for (List<String> unanswered : pending.values()) {
+      for (String userId : unanswered) {
+        writeUser(jsonWriter, authorizableManager, userId, null);
+      }
+    }
+    jsonWriter.endObject();
+  }
+
+  private void writeUser(JSONWriter jsonWriter, AuthorizableManager authorizableManager,
+      String userId, Map<String, Object> record) throws JSONException,
+      StorageClientException, AccessDeniedException {
+    Map<String, Object> result = new HashMap<String, Object>();
+    if (record == null) {
+      result.put("remote", false);
+    } else {
+      result.put("remote", record);
+    }
+    Authorizable user = authorizableManager.findAuthorizable(userId);
+    if (user != null) {
+      result.put("local", user.getSafeProperties());
+    }
+    jsonWriter.key(userId);
+    ExtendedJSONWriter.writeValueMap(jsonWriter, result);
+  }
+
+  /**
+   * @return the requested uids by their lower case form. The directory matches uids
+   *         ignoring case, so uids that differ only by case share an entry, but each is
+   *         answered under the uid asked for.
+   */
+  private static Map<String, List<String>> byLowerCase(Set<String> userIds) {
+    Map<String, List<String>> byLowerCase = new LinkedHashMap<String, List<String>>();
+    for (String userId : userIds) {
+      String key = userId.toLowerCase();
+      List<String> originals = byLowerCase.get(key);
+      if (originals == null) {
+        originals = new ArrayList<String>(1);
+        byLowerCase.put(key, originals);
+      }
+      originals.add(userId);
+    }
+    return byLowerCase;
+  }
+
+  /**
+   * @return the requested uids that the entry belongs to, empty if none.
+   */
+  private List<String> findUserIds(LDAPEntry entry, Map<String, List<String>> byLowerCase) {
+    LDAPAttribute uid = entry.getAttribute(uidAttribute);
+    if (uid == null || uid.getStringValueArray() == null) {
+      return Collections.emptyList();
+    }
+    for (String value : uid.getStringValueArray()) {
+      List<String> userIds = byLowerCase.get(value.toLowerCase());
+      if (userIds != null) {
+        return userIds;
+      }
+    }
+    return Collections.emptyList();
+  }
+
+}
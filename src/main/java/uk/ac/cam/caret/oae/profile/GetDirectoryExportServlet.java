@@ -0,0 +1,218 @@
+package uk.ac.cam.caret.oae.profile;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.cam.caret.oae.ldap.LdapEntryHandler;
+import uk.ac.cam.caret.oae.ldap.LdapUtil;
+import uk.ac.cam.caret.oae.ldap.SimpleLdapConnectionManager;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Exports every entry under <code>search-base</code> matching <code>filter</code> as
+ * newline delimited JSON, one object per entry holding its <code>dn</code> and
+ * attributes. Only admin may export.
+ *
+ * The directory is searched a page at a time with the simple paged results control, so
+ * server size limits do not cut the export short. Entries are written as they arrive and
+ * the next page is only asked for once the client has taken the last, so memory use
+ * depends on the page size, not the size of the directory. The page size is
+ * <code>page.size</code>, or the <code>pageSize</code> parameter up to
+ * <code>max.page.size</code>; the attributes are <code>attributes</code>, or the
+ * <code>attributes</code> parameter (repeated or comma separated), never including
+ * <code>attributes.exclude</code>.
+ *
+ * If the directory fails part way, a last line holding only an <code>error</code> is
+ * written, as the status has already been sent.
+ */
+@SlingServlet(paths = { "/system/ucam/export" }, methods = "GET")
+public class GetDirectoryExportServlet extends SlingSafeMethodsServlet {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = -6703815572302745541L;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GetDirectoryExportServlet.class);
+
+  private static final String SEARCH_BASE_DEFAULT = "ou=people,o=University of Cambridge,dc=cam,dc=ac,dc=uk";
+
+  @Property(value = SEARCH_BASE_DEFAULT)
+  private static final String SEARCH_BASE = "search-base";
+
+  @Property(value = "(uid=*)")
+  private static final String FILTER = "filter";
+
+  @Property(intValue = 500)
+  private static final String PAGE_SIZE = "page.size";
+
+  @Property(intValue = 2000)
+  private static final String MAX_PAGE_SIZE = "max.page.size";
+
+  @Property(value = {}, cardinality = Integer.MAX_VALUE)
+  private static final String ATTRIBUTES = "attributes";
+
+  @Property(value = { "jpegPhoto" }, cardinality = Integer.MAX_VALUE)
+  private static final String ATTRIBUTES_EXCLUDE = "attributes.exclude";
+
+  @Reference
+  private SimpleLdapConnectionManager simpleLdapConnectionManager;
+
+  private String searchBase;
+
+  private String filter;
+
+  private int pageSize;
+
+  private int maxPageSize;
+
+  private AttributeProjection projection;
+
+  @Activate
+  public void activate(Map<String, Object> properties) {
+    modify(properties);
+  }
+
+  @Modified
+  public void modify(Map<String, Object> properties) {
+    searchBase = OsgiUtil.toString(properties.get(SEARCH_BASE), SEARCH_BASE_DEFAULT);
+    filter = OsgiUtil.toString(properties.get(FILTER), "(uid=*)");
+    pageSize = Math.max(1, OsgiUtil.toInteger(properties.get(PAGE_SIZE), 500));
+    maxPageSize = Math.max(1, OsgiUtil.toInteger(properties.get(MAX_PAGE_SIZE), 2000));
+    projection = new AttributeProjection(OsgiUtil.toStringArray(properties.get(ATTRIBUTES),
+        new String[0]), OsgiUtil.toStringArray(properties.get(ATTRIBUTES_EXCLUDE),
+        new String[] { "jpegPhoto" }));
+  }
+
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+
+    try {
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+          .adaptTo(javax.jcr.Session.class));
+      if (!User.ADMIN_USER.equals(session.getUserId())) {
+        response.setStatus(403);
+        return;
+      }
+
+      int currentPageSize = pageSize;
+      if (request.getParameter("pageSize") != null) {
+        try {
+          currentPageSize = Math.max(1, Math.min(maxPageSize,
+              Integer.parseInt(request.getParameter("pageSize"))));
+        } catch (NumberFormatException e) {
+          response.sendError(HttpServletResponse.SC_BAD_REQUEST, "pageSize must be a number");
+          return;
+        }
+      }
+      AttributeProjection currentProjection = projection;
+      String[] attributes = getAttributes(request);
+      if (attributes != null) {
+        currentProjection = currentProjection.withInclude(attributes);
+      }
+
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setContentType("application/x-ndjson");
+      response.setCharacterEncoding("UTF-8");
+      // not the response writer, which would hide the client going away.
+      Writer writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(),
+          "UTF-8"));
+      try {
+        export(writer, currentProjection, currentPageSize);
+      } catch (LDAPException e) {
+        LOGGER.warn("Directory export failed: {}", e.getMessage());
+        Map<String, Object> error = new LinkedHashMap<String, Object>();
+        error.put("error", e.getMessage());
+        writeLine(writer, error);
+      }
+      writer.flush();
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+  private void export(final Writer writer, final AttributeProjection currentProjection,
+      final int currentPageSize) throws LDAPException, IOException {
+    long start = System.currentTimeMillis();
+    final int[] exported = new int[1];
+    simpleLdapConnectionManager.searchPaged(searchBase, LDAPConnection.SCOPE_SUB, filter,
+        currentProjection.getAttributes(), currentPageSize, new LdapEntryHandler() {
+          public void handle(LDAPEntry entry) throws IOException {
+            Map<String, Object> line = new LinkedHashMap<String, Object>();
+            line.put("dn", entry.getDN());
+            line.putAll(currentProjection.filter(LdapUtil.toRecord(entry)));
+            writeLine(writer, line);
+            if (++exported[0] % currentPageSize == 0) {
+              // blocks while the client is slow, holding back the next page.
+              writer.flush();
+            }
+          }
+        });
+    LOGGER.info("Exported {} directory entries in {} ms", exported[0],
+        System.currentTimeMillis() - start);
+  }
+
+  private void writeLine(Writer writer, Map<String, Object> line) throws IOException {
+    try {
+      ExtendedJSONWriter.writeValueMap(new JSONWriter(writer), line);
+    } catch (JSONException e) {
+      // IOException has no constructor taking a cause before Java 6.
+      IOException failure = new IOException(e.getMessage());
+      failure.initCause(e);
+      throw failure;
+    }
+    writer.write('\n');
+  }
+
+  /**
+   * @return the attributes asked for by the request, or null if none are.
+   */
+  private String[] getAttributes(SlingHttpServletRequest request) {
+    String[] values = request.getParameterValues("attributes");
+    if (values == null) {
+      return null;
+    }
+    List<String> attributes = new ArrayList<String>();
+    for (String value : values) {
+      for (String attribute : value.split(",")) {
+        if (attribute.trim().length() > 0) {
+          attributes.add(attribute.trim());
+        }
+      }
+    }
+    return attributes.isEmpty() ? null : attributes.toArray(new String[attributes.size()]);
+  }
+
+}
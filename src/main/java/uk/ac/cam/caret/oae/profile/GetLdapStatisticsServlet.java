@@ -0,0 +1,98 @@
+package uk.ac.cam.caret.oae.profile;
+
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.cam.caret.oae.ldap.LdapRecordCache;
+import uk.ac.cam.caret.oae.ldap.LdapReplica;
+import uk.ac.cam.caret.oae.ldap.SimpleLdapConnectionManager;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reports the health of the LDAP connections as JSON: the connection pool gauges
+ * (active, idle, waiting and how long borrowers wait), the state of each replica and of
+ * the circuit breaker, the count, errors and latency percentiles of connect, TLS, bind,
+ * read and search operations, the hits, misses and size of the record cache, and how
+ * current the directory replica is. Only admin may see it. The connection figures are also
+ * published over JMX.
+ */
+@SlingServlet(paths = { "/system/ucam/ldapstats" }, methods = "GET")
+public class GetLdapStatisticsServlet extends SlingSafeMethodsServlet {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = 2911704526135290374L;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GetLdapStatisticsServlet.class);
+
+  @Reference
+  private SimpleLdapConnectionManager simpleLdapConnectionManager;
+
+  @Reference
+  private LdapRecordCache ldapRecordCache;
+
+  @Reference
+  private LdapReplica ldapReplica;
+
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+
+    try {
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+          .adaptTo(javax.jcr.Session.class));
+      if (!User.ADMIN_USER.equals(session.getUserId())) {
+        response.setStatus(403);
+        return;
+      }
+
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      JSONWriter jsonWriter = new JSONWriter(response.getWriter());
+      Map<String, Object> statistics = new LinkedHashMap<String, Object>(
+          simpleLdapConnectionManager.getStatistics());
+      statistics.put("cache", ldapRecordCache.getStatistics());
+      statistics.put("replica", ldapReplica.getStatistics());
+      writeMap(jsonWriter, statistics);
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void writeMap(JSONWriter jsonWriter, Map<String, Object> map) throws JSONException {
+    jsonWriter.object();
+    for (Map.Entry<String, Object> e : map.entrySet()) {
+      jsonWriter.key(e.getKey());
+      Object value = e.getValue();
+      if (value instanceof Map) {
+        writeMap(jsonWriter, (Map<String, Object>) value);
+      } else if (value instanceof Number || value instanceof Boolean) {
+        jsonWriter.value(value);
+      } else {
+        jsonWriter.value(String.valueOf(value));
+      }
+    }
+    jsonWriter.endObject();
+  }
+
+}
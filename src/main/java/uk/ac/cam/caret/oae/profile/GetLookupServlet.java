@@ -2,27 +2,21 @@ package uk.ac.cam.caret.oae.profile;
 
 import com.google.common.collect.Maps;
 
-import com.novell.ldap.LDAPAttribute;
-import com.novell.ldap.LDAPAttributeSet;
-import com.novell.ldap.LDAPConnection;
-import com.novell.ldap.LDAPEntry;
 import com.novell.ldap.LDAPException;
 
 import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
-import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
-import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.commons.osgi.OsgiUtil;
 import org.sakaiproject.nakamura.api.lite.Session;
-import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
@@ -30,12 +24,28 @@ import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import uk.ac.cam.caret.oae.ldap.SimpleLdapConnectionManager;
+import uk.ac.cam.caret.oae.ldap.LdapCircuitOpenException;
+import uk.ac.cam.caret.oae.ldap.LdapDeadline;
+import uk.ac.cam.caret.oae.ldap.LdapRecordCache;
+import uk.ac.cam.caret.oae.ldap.LdapReplica;
+import uk.ac.cam.caret.oae.ldap.LdapUtil;
 
 import java.io.IOException;
-import java.text.MessageFormat;
-import java.util.Iterator;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -46,10 +56,30 @@ import javax.servlet.http.HttpServletResponse;
  * otherwise the userId as logged into Nakamura will be used or if admin, the user Id supplied.
  * 
  * The response contains the local record and the remote ldap record. If they dont exist they wont be present.
+ *
+ * Only the attributes listed in <code>attributes</code> are read from the directory (all user
+ * attributes if none are listed), and those listed in <code>attributes.exclude</code> are never
+ * returned. Each path may have a profile of its own in <code>attributes.profiles</code>, as
+ * <code>path=attr,attr</code>, replacing <code>attributes</code> for that path. Listing attributes
+ * is what saves directory bandwidth: an excluded attribute is otherwise still read, then dropped.
+ *
+ * Records are answered from the {@link LdapReplica} when it is enabled and holds the user,
+ * otherwise read through the {@link LdapRecordCache}. A POST by admin drops the cached record
+ * of the user given by <code>uid</code>, or every cached record if no user is given.
+ *
+ * The directory is read on one of <code>lookup.threads</code> threads while the local record is
+ * read on the request thread. If the directory has not answered within <code>lookup.timeout</code>
+ * milliseconds of the request starting, or every thread is busy, the response has
+ * <code>"remote": false</code>; a late answer still fills the cache for next time.
+ *
+ * Complete responses carry a weak <code>ETag</code> made from the <code>entryCSN</code> (or
+ * <code>modifyTimestamp</code>) of the directory entry and the <code>lastModified</code> of the
+ * local record, and a <code>Last-Modified</code> when both times are known. A client presenting
+ * the current tag in <code>If-None-Match</code> gets a 304 without a body.
  */
 @SlingServlet(paths = { "/system/ucam/lookup", "/system/ucam/c/r/l",
-    "/system/ucam/c/f/l" }, methods = "GET")
-public class GetLookupServlet extends SlingSafeMethodsServlet {
+    "/system/ucam/c/f/l" }, methods = { "GET", "POST" })
+public class GetLookupServlet extends SlingAllMethodsServlet {
 
   /**
    * 
@@ -58,18 +88,54 @@ public class GetLookupServlet extends SlingSafeMethodsServlet {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(GetLookupServlet.class);
 
+  /** read with every record, to validate cached responses */
+  private static final String[] VALIDATOR_ATTRIBUTES = { LdapUtil.MODIFY_TIMESTAMP,
+      LdapUtil.ENTRY_CSN };
+
   private static final String USER_DN_TEMPLATE_DEFAULT = "uid={0},ou=people,o=University of Cambridge,dc=cam,dc=ac,dc=uk";
 
   @Property(value = USER_DN_TEMPLATE_DEFAULT)
   private static final String USER_DN_TEMPLATE = "userdn-template";
 
+  @Property(value = {}, cardinality = Integer.MAX_VALUE)
+  private static final String ATTRIBUTES = "attributes";
+
+  @Property(value = { "jpegPhoto" }, cardinality = Integer.MAX_VALUE)
+  private static final String ATTRIBUTES_EXCLUDE = "attributes.exclude";
+
+  @Property(value = {}, cardinality = Integer.MAX_VALUE)
+  private static final String ATTRIBUTES_PROFILES = "attributes.profiles";
+
+  @Property(longValue = 5000)
+  private static final String LOOKUP_TIMEOUT = "lookup.timeout";
+
+  @Property(intValue = 8)
+  private static final String LOOKUP_THREADS = "lookup.threads";
+
+  @Property(intValue = 100)
+  private static final String LOOKUP_QUEUE = "lookup.queue";
+
   @Reference
-  private SimpleLdapConnectionManager simpleLdapConnectionManager;
+  private LdapRecordCache ldapRecordCache;
+
+  @Reference
+  private LdapReplica ldapReplica;
 
   @Reference
   private TrustedProxy trustedProxy;
 
-  private String userDNTemplate;
+  private LdapUtil.Template userDNTemplate;
+
+  /** the attributes returned for paths without a profile */
+  private AttributeProjection defaultProjection;
+
+  /** the attributes returned by path */
+  private Map<String, AttributeProjection> profileProjections;
+
+  private long lookupTimeout;
+
+  /** reads the directory while the request thread reads the local record */
+  private ThreadPoolExecutor lookupExecutor;
 
   @Activate
   public void activate(Map<String, Object> properties) {
@@ -78,14 +144,67 @@ public class GetLookupServlet extends SlingSafeMethodsServlet {
 
   @Modified
   public void modify(Map<String, Object> properties) {
-    userDNTemplate = OsgiUtil.toString(properties.get(USER_DN_TEMPLATE),
-        USER_DN_TEMPLATE_DEFAULT);
+    userDNTemplate = LdapUtil.compileDN(OsgiUtil.toString(properties.get(USER_DN_TEMPLATE),
+        USER_DN_TEMPLATE_DEFAULT));
+    AttributeProjection projection = new AttributeProjection(OsgiUtil.toStringArray(
+        properties.get(ATTRIBUTES), new String[0]), OsgiUtil.toStringArray(
+        properties.get(ATTRIBUTES_EXCLUDE), new String[] { "jpegPhoto" }));
+    Map<String, AttributeProjection> profiles = Maps.newHashMap();
+    for (String profile : OsgiUtil.toStringArray(properties.get(ATTRIBUTES_PROFILES),
+        new String[0])) {
+      int eq = profile.indexOf('=');
+      if (eq <= 0) {
+        LOGGER.warn("Ignoring attribute profile {}, expected path=attr,attr", profile);
+        continue;
+      }
+      profiles.put(profile.substring(0, eq).trim(),
+          projection.withInclude(profile.substring(eq + 1).split(",")));
+    }
+    defaultProjection = projection;
+    profileProjections = profiles;
+    lookupTimeout = OsgiUtil.toLong(properties.get(LOOKUP_TIMEOUT), 5000);
+    startLookups(OsgiUtil.toInteger(properties.get(LOOKUP_THREADS), 8),
+        OsgiUtil.toInteger(properties.get(LOOKUP_QUEUE), 100));
+  }
+
+  @Deactivate
+  public void deactivate(Map<String, Object> properties) {
+    stopLookups();
+  }
+
+  private synchronized void startLookups(int threads, int queueSize) {
+    stopLookups();
+    lookupExecutor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "LDAP lookup");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  private synchronized void stopLookups() {
+    if (lookupExecutor != null) {
+      lookupExecutor.shutdown();
+      lookupExecutor = null;
+    }
+  }
+
+  /**
+   * @return the attributes returned for the path requested.
+   */
+  private AttributeProjection getProjection(SlingHttpServletRequest request) {
+    AttributeProjection projection = profileProjections.get(request.getResource().getPath());
+    return projection != null ? projection : defaultProjection;
   }
 
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
 
+    long deadline = System.currentTimeMillis() + lookupTimeout;
     try {
       Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
           .adaptTo(javax.jcr.Session.class));
@@ -103,15 +222,47 @@ public class GetLookupServlet extends SlingSafeMethodsServlet {
         return;
       }
 
+      AttributeProjection projection = getProjection(request);
+      Map<String, Object> lookupRecord = getReplicatedRecord(userId, projection);
+      boolean remoteRead = lookupRecord != null;
+      // the sparse session stays on this thread, only the directory read is handed off.
+      Future<Map<String, Object>> remote = remoteRead ? null : startLookupRecord(userId,
+          projection, LdapDeadline.at(deadline));
       Authorizable user = authorizableManager.findAuthorizable(userId);
+      if (remote != null) {
+        try {
+          lookupRecord = remote.get(Math.max(0, deadline - System.currentTimeMillis()),
+              TimeUnit.MILLISECONDS);
+          remoteRead = true;
+        } catch (TimeoutException e) {
+          // the read gives up at the same deadline, freeing its thread.
+          LOGGER.warn("Directory lookup of {} took longer than {} ms", userId, lookupTimeout);
+        } catch (ExecutionException e) {
+          logLookupFailure(e.getCause());
+        }
+      }
 
-      Map<String, Object> lookupRecord = getLookupRecord(session, userId);
+      // a response without the directory record is never validated, so that it does not
+      // replace a complete copy held by the client.
+      if (remoteRead) {
+        String etag = getETag(request, userId, lookupRecord, user);
+        long lastModified = getLastModified(lookupRecord, user);
+        response.setHeader("Cache-Control", "private, no-cache");
+        response.setHeader("ETag", etag);
+        if (lastModified > 0) {
+          response.setDateHeader("Last-Modified", lastModified);
+        }
+        if (isNotModified(request, etag, lastModified)) {
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          return;
+        }
+      }
       Map<String, Object> out = Maps.newHashMap();
       if (lookupRecord == null) {
         out.put("remote", false);
       } else {
-        lookupRecord.remove("jpegPhoto");
-        out.put("remote", lookupRecord);
+        // the validators were only read for the headers, unless the profile lists them.
+        out.put("remote", projection.withoutOperational(lookupRecord, VALIDATOR_ATTRIBUTES));
       }
       if ( user != null ) {
         out.put("local", user.getSafeProperties());
@@ -130,38 +281,200 @@ public class GetLookupServlet extends SlingSafeMethodsServlet {
 
   }
 
-  private Map<String, Object> getLookupRecord(Session session, String userId)
-      throws LDAPException, JSONException, StorageClientException, AccessDeniedException {
-    LDAPConnection ldapConnection = null;
+  @Override
+  protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+
     try {
-      ldapConnection = simpleLdapConnectionManager.getConnection();
-      String userDN = MessageFormat.format(userDNTemplate, userId);
-      LDAPEntry ldapEntry = ldapConnection.read(userDN);
-      LDAPAttributeSet ldapAttributes = ldapEntry.getAttributeSet();
-      Map<String, Object> attributes = Maps.newHashMap();
-      for (@SuppressWarnings("unchecked")
-      Iterator<LDAPAttribute> i = ldapAttributes.iterator(); i.hasNext();) {
-        LDAPAttribute la = i.next();
-        String[] values = la.getStringValueArray();
-        if (values != null) {
-          if (values.length > 1) {
-            attributes.put(la.getName(), values);
-          } else if (values.length == 1) {
-            attributes.put(la.getName(), values[0]);
-          }
-        }
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+          .adaptTo(javax.jcr.Session.class));
+      if (!User.ADMIN_USER.equals(session.getUserId())) {
+        response.setStatus(403);
+        return;
       }
-      return attributes;
+      String userId = request.getParameter("uid");
+      if (userId == null) {
+        ldapRecordCache.invalidateAll();
+      } else {
+        ldapRecordCache.invalidate(userDNTemplate.format(userId));
+      }
+      response.setStatus(HttpServletResponse.SC_NO_CONTENT);
     } catch (Exception e) {
-      LOGGER.warn(e.getMessage());
-      LOGGER.debug(e.getMessage(), e);
+      LOGGER.error(e.getMessage(), e);
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @return the directory record of the user as it will be, or null if there is no thread
+   *         free to read it.
+   */
+  private Future<Map<String, Object>> startLookupRecord(final String userId,
+      final AttributeProjection projection, final LdapDeadline deadline) {
+    ThreadPoolExecutor executor = lookupExecutor;
+    if (executor == null) {
       return null;
-    } finally {
-      if (ldapConnection != null) {
-        simpleLdapConnectionManager.returnConnection(ldapConnection);
+    }
+    try {
+      return executor.submit(new Callable<Map<String, Object>>() {
+        public Map<String, Object> call() throws LDAPException {
+          return getLookupRecord(userId, projection, deadline);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOGGER.warn("Too many lookups in progress, not reading {} from the directory", userId);
+      return null;
+    }
+  }
+
+  /**
+   * @return the record of the user from the replica, or null if the replica cannot answer.
+   */
+  private Map<String, Object> getReplicatedRecord(String userId, AttributeProjection projection) {
+    String userDN = userDNTemplate.format(userId);
+    Map<String, Object> record = ldapReplica.getRecord(userDN,
+        projection.getAttributesWithOperational(VALIDATOR_ATTRIBUTES), projection.getExcluded());
+    if (record == null) {
+      return null;
+    }
+    return projection.select(record, VALIDATOR_ATTRIBUTES);
+  }
+
+  /**
+   * @return the directory record of the user, or null if the entry does not exist.
+   */
+  private Map<String, Object> getLookupRecord(String userId, AttributeProjection projection,
+      LdapDeadline deadline) throws LDAPException {
+    String userDN = userDNTemplate.format(userId);
+    Map<String, Object> record = ldapRecordCache.getRecord(userDN,
+        projection.getAttributesWithOperational(VALIDATOR_ATTRIBUTES), deadline);
+    if (record == null) {
+      return null;
+    }
+    return projection.filter(record);
+  }
+
+  private void logLookupFailure(Throwable t) {
+    if (t instanceof LdapCircuitOpenException) {
+      // the directory is known to be unhealthy, don't fill the logs while it recovers.
+      LOGGER.debug(t.getMessage());
+    } else {
+      LOGGER.warn(t.getMessage());
+      LOGGER.debug(t.getMessage(), t);
+    }
+  }
+
+  /**
+   * Computes a weak entity tag for a lookup from the change stamp of the directory entry
+   * and the last modification of the local record, falling back to their content when
+   * either has no stamp. The path is included as different paths return different
+   * attributes.
+   */
+  private String getETag(SlingHttpServletRequest request, String userId,
+      Map<String, Object> lookupRecord, Authorizable user) {
+    StringBuilder validator = new StringBuilder();
+    validator.append(request.getResource().getPath()).append('\n');
+    validator.append(userId).append('\n');
+    if (lookupRecord == null) {
+      validator.append("-");
+    } else if (lookupRecord.get(LdapUtil.ENTRY_CSN) instanceof String) {
+      validator.append(lookupRecord.get(LdapUtil.ENTRY_CSN));
+    } else if (lookupRecord.get(LdapUtil.MODIFY_TIMESTAMP) instanceof String) {
+      validator.append(lookupRecord.get(LdapUtil.MODIFY_TIMESTAMP));
+    } else {
+      appendContent(validator, lookupRecord);
+    }
+    validator.append('\n');
+    if (user == null) {
+      validator.append("-");
+    } else if (user.hasProperty(Authorizable.LASTMODIFIED_FIELD)) {
+      validator.append(user.getProperty(Authorizable.LASTMODIFIED_FIELD));
+    } else {
+      appendContent(validator, user.getSafeProperties());
+    }
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      byte[] digest = md.digest(validator.toString().getBytes("UTF8"));
+      StringBuilder etag = new StringBuilder("W/\"");
+      for (byte b : digest) {
+        etag.append(Character.forDigit((b >> 4) & 0xf, 16));
+        etag.append(Character.forDigit(b & 0xf, 16));
+      }
+      return etag.append('"').toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not available", e);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Failed to encode validator", e);
+    }
+  }
+
+  private void appendContent(StringBuilder validator, Map<String, Object> properties) {
+    for (Map.Entry<String, Object> e : new TreeMap<String, Object>(properties).entrySet()) {
+      validator.append(e.getKey()).append('=');
+      if (e.getValue() instanceof Object[]) {
+        validator.append(Arrays.toString((Object[]) e.getValue()));
+      } else {
+        validator.append(e.getValue());
+      }
+      validator.append(';');
+    }
+  }
+
+  /**
+   * @return the later of when the directory entry and the local record were modified, or
+   *         -1 if either is not known.
+   */
+  private long getLastModified(Map<String, Object> lookupRecord, Authorizable user) {
+    long lastModified = 0;
+    if (lookupRecord != null) {
+      Object modifyTimestamp = lookupRecord.get(LdapUtil.MODIFY_TIMESTAMP);
+      long remoteModified = modifyTimestamp instanceof String ? LdapUtil
+          .parseGeneralizedTime((String) modifyTimestamp) : -1;
+      if (remoteModified < 0) {
+        return -1;
+      }
+      lastModified = Math.max(lastModified, remoteModified);
+    }
+    if (user != null) {
+      Object localModified = user.getProperty(Authorizable.LASTMODIFIED_FIELD);
+      if (!(localModified instanceof Number)) {
+        return -1;
       }
+      lastModified = Math.max(lastModified, ((Number) localModified).longValue());
     }
+    return lastModified > 0 ? lastModified : -1;
+  }
 
+  /**
+   * @return <code>true</code> if the client holds the current response, judged by
+   *         If-None-Match or, when that is absent, If-Modified-Since.
+   */
+  private boolean isNotModified(SlingHttpServletRequest request, String etag,
+      long lastModified) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      String opaqueTag = etag.substring(2);
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if ("*".equals(tag) || opaqueTag.equals(tag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (lastModified > 0) {
+      try {
+        long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        // HTTP dates have a resolution of one second.
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+      } catch (IllegalArgumentException e) {
+        return false;
+      }
+    }
+    return false;
   }
 
 }
@@ -0,0 +1,162 @@
+package uk.ac.cam.caret.oae.profile;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.cam.caret.oae.ldap.LdapReplica;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Finds people by the start of their names or CRSid, for type-ahead. Answers from an
+ * in-memory index of the uid, cn, sn and displayName of the entries in the
+ * {@link LdapReplica}, never from the directory, so the replica must be enabled and
+ * replicate those attributes; until it is loaded the servlet answers 503.
+ *
+ * <code>q</code> is the text typed so far, of at least <code>min.query.length</code>
+ * characters, and <code>limit</code> the most people to return, at most
+ * <code>max.results</code>. The response lists the uid and display name of each person
+ * found, best match first, and whether the search was cut short.
+ */
+@SlingServlet(paths = { "/system/ucam/search" }, methods = "GET")
+public class GetPeopleSearchServlet extends SlingSafeMethodsServlet {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = -2208451372651950117L;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GetPeopleSearchServlet.class);
+
+  @Property(intValue = 2)
+  private static final String MIN_QUERY_LENGTH = "min.query.length";
+
+  @Property(intValue = 10)
+  private static final String DEFAULT_RESULTS = "default.results";
+
+  @Property(intValue = 50)
+  private static final String MAX_RESULTS = "max.results";
+
+  @Property(intValue = 200000)
+  private static final String MAX_PEOPLE = "max.people";
+
+  @Property(intValue = 5000)
+  private static final String MAX_SCAN = "max.scan";
+
+  @Reference
+  private LdapReplica ldapReplica;
+
+  private int minQueryLength;
+
+  private int defaultResults;
+
+  private int maxResults;
+
+  private PeopleIndex peopleIndex;
+
+  @Activate
+  public void activate(Map<String, Object> properties) {
+    modify(properties);
+  }
+
+  @Modified
+  public synchronized void modify(Map<String, Object> properties) {
+    minQueryLength = OsgiUtil.toInteger(properties.get(MIN_QUERY_LENGTH), 2);
+    defaultResults = OsgiUtil.toInteger(properties.get(DEFAULT_RESULTS), 10);
+    maxResults = OsgiUtil.toInteger(properties.get(MAX_RESULTS), 50);
+    if (peopleIndex != null) {
+      ldapReplica.removeListener(peopleIndex);
+    }
+    PeopleIndex index = new PeopleIndex(OsgiUtil.toInteger(properties.get(MAX_PEOPLE),
+        200000), OsgiUtil.toInteger(properties.get(MAX_SCAN), 5000));
+    ldapReplica.addListener(index);
+    peopleIndex = index;
+  }
+
+  @Deactivate
+  public synchronized void deactivate(Map<String, Object> properties) {
+    if (peopleIndex != null) {
+      ldapReplica.removeListener(peopleIndex);
+      peopleIndex = null;
+    }
+  }
+
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+
+    try {
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+          .adaptTo(javax.jcr.Session.class));
+      if (session.getUserId() == null || User.ANON_USER.equals(session.getUserId())) {
+        response.setStatus(403);
+        return;
+      }
+
+      String query = request.getParameter("q");
+      if (query == null || query.trim().length() < minQueryLength) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "q must have at least "
+            + minQueryLength + " characters");
+        return;
+      }
+      int limit = defaultResults;
+      if (request.getParameter("limit") != null) {
+        try {
+          limit = Math.min(maxResults, Integer.parseInt(request.getParameter("limit")));
+        } catch (NumberFormatException e) {
+          response.sendError(HttpServletResponse.SC_BAD_REQUEST, "limit must be a number");
+          return;
+        }
+      }
+
+      PeopleIndex index = peopleIndex;
+      if (index == null || !index.isLoaded()) {
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        return;
+      }
+      PeopleIndex.Result result = index.search(query, limit);
+
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      JSONWriter jsonWriter = new JSONWriter(response.getWriter());
+      jsonWriter.object();
+      jsonWriter.key("results");
+      jsonWriter.array();
+      for (PeopleIndex.Person person : result.getPeople()) {
+        jsonWriter.object();
+        jsonWriter.key("uid");
+        jsonWriter.value(person.getUid());
+        jsonWriter.key("displayName");
+        jsonWriter.value(person.getDisplayName());
+        jsonWriter.endObject();
+      }
+      jsonWriter.endArray();
+      jsonWriter.key("truncated");
+      jsonWriter.value(result.isTruncated());
+      jsonWriter.endObject();
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+}
@@ -0,0 +1,350 @@
+package uk.ac.cam.caret.oae.profile;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.framework.BundleContext;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.cam.caret.oae.ldap.LdapCircuitOpenException;
+import uk.ac.cam.caret.oae.ldap.LdapDeadline;
+import uk.ac.cam.caret.oae.ldap.LdapUtil;
+import uk.ac.cam.caret.oae.ldap.SimpleLdapConnectionManager;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the <code>jpegPhoto</code> of a user, reading only that attribute from the
+ * directory. The user is chosen as for the lookup: whoever the proxy or session says, or
+ * the <code>uid</code> given by admin. A <code>size</code> parameter, one of
+ * <code>thumbnail.sizes</code>, asks for the photo scaled to fit a square of that many
+ * pixels.
+ *
+ * Originals and thumbnails are kept in a cache on disk, in the bundle data area, of at
+ * most <code>cache.max.bytes</code> bytes, for <code>cache.ttl</code> milliseconds. Users
+ * without a photo are cached too, so a repeat view never touches the directory. A POST by
+ * admin drops the cached photos of <code>uid</code>.
+ *
+ * The directory is given <code>lookup.timeout</code> milliseconds from the start of the
+ * request to answer, after which the servlet answers 503.
+ */
+@SlingServlet(paths = { "/system/ucam/photo" }, methods = { "GET", "POST" })
+public class GetPhotoServlet extends SlingAllMethodsServlet {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = 6392158830462071753L;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GetPhotoServlet.class);
+
+  private static final String USER_DN_TEMPLATE_DEFAULT = "uid={0},ou=people,o=University of Cambridge,dc=cam,dc=ac,dc=uk";
+
+  /** the size of the original photo in cache names */
+  private static final int ORIGINAL = 0;
+
+  @Property(value = USER_DN_TEMPLATE_DEFAULT)
+  private static final String USER_DN_TEMPLATE = "userdn-template";
+
+  @Property(value = "jpegPhoto")
+  private static final String PHOTO_ATTRIBUTE = "photo-attribute";
+
+  @Property(value = { "32", "64", "128" }, cardinality = Integer.MAX_VALUE)
+  private static final String THUMBNAIL_SIZES = "thumbnail.sizes";
+
+  @Property(longValue = 52428800)
+  private static final String CACHE_MAX_BYTES = "cache.max.bytes";
+
+  @Property(longValue = 86400000)
+  private static final String CACHE_TTL = "cache.ttl";
+
+  @Property(longValue = 5000)
+  private static final String LOOKUP_TIMEOUT = "lookup.timeout";
+
+  @Reference
+  private SimpleLdapConnectionManager simpleLdapConnectionManager;
+
+  @Reference
+  private TrustedProxy trustedProxy;
+
+  private BundleContext bundleContext;
+
+  private LdapUtil.Template userDNTemplate;
+
+  private String photoAttribute;
+
+  private Set<Integer> thumbnailSizes;
+
+  private long cacheTtl;
+
+  private long lookupTimeout;
+
+  private PhotoCache photoCache;
+
+  @Activate
+  public void activate(BundleContext bundleContext, Map<String, Object> properties) {
+    this.bundleContext = bundleContext;
+    modify(properties);
+  }
+
+  @Modified
+  public void modify(Map<String, Object> properties) {
+    userDNTemplate = LdapUtil.compileDN(OsgiUtil.toString(properties.get(USER_DN_TEMPLATE),
+        USER_DN_TEMPLATE_DEFAULT));
+    photoAttribute = OsgiUtil.toString(properties.get(PHOTO_ATTRIBUTE), "jpegPhoto");
+    Set<Integer> sizes = new HashSet<Integer>();
+    for (String size : OsgiUtil.toStringArray(properties.get(THUMBNAIL_SIZES), new String[] {
+        "32", "64", "128" })) {
+      try {
+        sizes.add(Integer.parseInt(size.trim()));
+      } catch (NumberFormatException e) {
+        LOGGER.warn("Ignoring thumbnail size {}", size);
+      }
+    }
+    sizes.remove(ORIGINAL);
+    thumbnailSizes = sizes;
+    cacheTtl = OsgiUtil.toLong(properties.get(CACHE_TTL), 86400000);
+    lookupTimeout = OsgiUtil.toLong(properties.get(LOOKUP_TIMEOUT), 5000);
+    photoCache = new PhotoCache(bundleContext.getDataFile("photos"), OsgiUtil.toLong(
+        properties.get(CACHE_MAX_BYTES), 52428800), cacheTtl);
+  }
+
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+
+    LdapDeadline deadline = LdapDeadline.after(lookupTimeout);
+    try {
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+          .adaptTo(javax.jcr.Session.class));
+      String userId = trustedProxy.getUserIdFromProxy(request);
+
+      if ( userId == null ) {
+        userId = session.getUserId();
+        if (User.ADMIN_USER.equals(userId)) {
+          userId = request.getParameter("uid");
+        }
+      }
+      if ( userId == null || User.ANON_USER.equals(userId)) {
+        response.setStatus(403);
+        return;
+      }
+
+      int size = ORIGINAL;
+      if (request.getParameter("size") != null) {
+        try {
+          size = Integer.parseInt(request.getParameter("size"));
+        } catch (NumberFormatException e) {
+          size = -1;
+        }
+        if (!thumbnailSizes.contains(size)) {
+          response.sendError(HttpServletResponse.SC_BAD_REQUEST, "size must be one of "
+              + thumbnailSizes);
+          return;
+        }
+      }
+
+      byte[] photo;
+      try {
+        photo = getPhoto(userId, size, deadline);
+      } catch (LdapCircuitOpenException e) {
+        LOGGER.debug(e.getMessage());
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        return;
+      } catch (LDAPException e) {
+        LOGGER.warn(e.getMessage());
+        LOGGER.debug(e.getMessage(), e);
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        return;
+      }
+      if (photo.length == 0) {
+        response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setContentType("image/jpeg");
+      response.setContentLength(photo.length);
+      response.setHeader("Cache-Control", "private, max-age=" + (cacheTtl / 1000));
+      OutputStream out = response.getOutputStream();
+      out.write(photo);
+      out.flush();
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+  @Override
+  protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+
+    try {
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+          .adaptTo(javax.jcr.Session.class));
+      if (!User.ADMIN_USER.equals(session.getUserId())) {
+        response.setStatus(403);
+        return;
+      }
+      String userId = request.getParameter("uid");
+      if (userId == null) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "uid is required");
+        return;
+      }
+      photoCache.removeAll(cachePrefix(userId));
+      response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @return the photo of the user at a size, or an empty array if the user has none.
+   */
+  private byte[] getPhoto(String userId, int size, LdapDeadline deadline)
+      throws LDAPException, IOException {
+    PhotoCache cache = photoCache;
+    String name = cacheName(userId, size);
+    byte[] photo = cache.get(name);
+    if (photo != null) {
+      return photo;
+    }
+    String originalName = cacheName(userId, ORIGINAL);
+    byte[] original = size == ORIGINAL ? null : cache.get(originalName);
+    if (original == null) {
+      original = readPhoto(userId, deadline);
+      cache.put(originalName, original);
+    }
+    if (size == ORIGINAL || original.length == 0) {
+      return original;
+    }
+    photo = scale(original, size);
+    cache.put(name, photo);
+    return photo;
+  }
+
+  /**
+   * @return the photo of the user from the directory, or an empty array if the user or the
+   *         photo does not exist.
+   */
+  private byte[] readPhoto(String userId, LdapDeadline deadline) throws LDAPException {
+    String userDN = userDNTemplate.format(userId);
+    LDAPEntry entry;
+    try {
+      entry = simpleLdapConnectionManager.read(userDN, new String[] { photoAttribute },
+          deadline);
+    } catch (LDAPException e) {
+      if (e.getResultCode() == LDAPException.NO_SUCH_OBJECT) {
+        return new byte[0];
+      }
+      throw e;
+    }
+    LDAPAttribute attribute = entry == null ? null : entry.getAttribute(photoAttribute);
+    byte[] photo = attribute == null ? null : attribute.getByteValue();
+    return photo == null ? new byte[0] : photo;
+  }
+
+  /**
+   * Scales a photo down to fit a square, halving it in steps first so that large photos
+   * still scale smoothly.
+   *
+   * @return the scaled photo as JPEG, or the photo itself if it already fits or cannot be
+   *         decoded.
+   */
+  private byte[] scale(byte[] photo, int size) throws IOException {
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(photo));
+    if (image == null) {
+      LOGGER.debug("Unable to decode photo, not scaling it");
+      return photo;
+    }
+    int width = image.getWidth();
+    int height = image.getHeight();
+    if (width <= size && height <= size) {
+      return photo;
+    }
+    double ratio = Math.min((double) size / width, (double) size / height);
+    int targetWidth = Math.max(1, (int) Math.round(width * ratio));
+    int targetHeight = Math.max(1, (int) Math.round(height * ratio));
+    BufferedImage scaled = image;
+    do {
+      width = Math.max(targetWidth, width / 2);
+      height = Math.max(targetHeight, height / 2);
+      BufferedImage step = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      Graphics2D g = step.createGraphics();
+      try {
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(scaled, 0, 0, width, height, null);
+      } finally {
+        g.dispose();
+      }
+      scaled = step;
+    } while (width > targetWidth || height > targetHeight);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    if (!ImageIO.write(scaled, "jpeg", out)) {
+      return photo;
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * @return the name under which the photo of a user at a size is cached.
+   */
+  private String cacheName(String userId, int size) {
+    return cachePrefix(userId) + size + ".jpg";
+  }
+
+  /**
+   * @return the start of every name under which a user's photos are cached. The uid is
+   *         hashed so that it is safe as a file name.
+   */
+  private String cachePrefix(String userId) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      byte[] digest = md.digest(userId.getBytes("UTF8"));
+      StringBuilder prefix = new StringBuilder();
+      for (byte b : digest) {
+        prefix.append(Character.forDigit((b >> 4) & 0xf, 16));
+        prefix.append(Character.forDigit(b & 0xf, 16));
+      }
+      return prefix.append('-').toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not available", e);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Failed to encode uid", e);
+    }
+  }
+
+}
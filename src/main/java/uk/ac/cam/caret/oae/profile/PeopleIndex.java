@@ -0,0 +1,328 @@
+package uk.ac.cam.caret.oae.profile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.cam.caret.oae.ldap.LdapReplicaListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An index of people by the words of their uid, cn, sn and displayName, for finding
+ * them by the start of those words as a name is typed. Built from the directory replica
+ * and kept up to date as its records change.
+ * <p>
+ * Each word is a key in a sorted map, so the people whose words start with a prefix are a
+ * range of the map. A query is matched by its longest word, and each person found must
+ * then have a word starting with every other word of the query. At most
+ * <code>maxScan</code> keys are looked at per query and at most <code>maxPeople</code>
+ * people are indexed, so that neither the time of a query nor the memory of the index
+ * grows without bound.
+ */
+class PeopleIndex implements LdapReplicaListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PeopleIndex.class);
+
+  private static final String[] NAME_ATTRIBUTES = { "cn", "sn", "displayName" };
+
+  /** separates the word from the DN in index keys */
+  private static final char SEPARATOR = '\u0000';
+
+  /**
+   * A person found by a search.
+   */
+  static class Person {
+    private final String uid;
+    private final String displayName;
+    /** the lower case words the person is indexed by */
+    private final String[] words;
+
+    Person(String uid, String displayName, String[] words) {
+      this.uid = uid;
+      this.displayName = displayName;
+      this.words = words;
+    }
+
+    String getUid() {
+      return uid;
+    }
+
+    String getDisplayName() {
+      return displayName;
+    }
+  }
+
+  /**
+   * The result of a search.
+   */
+  static class Result {
+    private final List<Person> people;
+    private final boolean truncated;
+
+    Result(List<Person> people, boolean truncated) {
+      this.people = people;
+      this.truncated = truncated;
+    }
+
+    List<Person> getPeople() {
+      return people;
+    }
+
+    /**
+     * @return <code>true</code> if the search stopped looking before it had seen every
+     *         match, so a longer query may find people this one did not.
+     */
+    boolean isTruncated() {
+      return truncated;
+    }
+  }
+
+  /**
+   * One generation of the index, replaced whole when the replica is reloaded.
+   */
+  private static class Index {
+    /** word, separator and DN to person, guarded by <code>lock</code> */
+    private final SortedMap<String, Person> words = new TreeMap<String, Person>();
+    /** searches share the words, changes from the replica take them alone */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /** DN to person */
+    private final ConcurrentMap<String, Person> people =
+        new ConcurrentHashMap<String, Person>();
+  }
+
+  private final int maxPeople;
+
+  private final int maxScan;
+
+  /** null until the replica is loaded */
+  private volatile Index index;
+
+  /**
+   * @param maxPeople
+   *          the most people to index.
+   * @param maxScan
+   *          the most index keys to look at per search.
+   */
+  PeopleIndex(int maxPeople, int maxScan) {
+    this.maxPeople = maxPeople;
+    this.maxScan = maxScan;
+  }
+
+  /**
+   * @return <code>true</code> once the index has been built.
+   */
+  boolean isLoaded() {
+    return index != null;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void replicaLoaded(Map<String, Map<String, Object>> records) {
+    Index loaded = new Index();
+    for (Map.Entry<String, Map<String, Object>> e : records.entrySet()) {
+      if (loaded.people.size() >= maxPeople) {
+        LOGGER.warn("Only indexed {} of {} people, raise max.people to index them all",
+            maxPeople, records.size());
+        break;
+      }
+      add(loaded, e.getKey(), e.getValue());
+    }
+    index = loaded;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public synchronized void recordChanged(String dn, Map<String, Object> record) {
+    Index current = index;
+    if (current == null) {
+      return;
+    }
+    remove(current, dn);
+    if (current.people.size() < maxPeople) {
+      add(current, dn, record);
+    }
+  }
+
+  /**
+   * @param query
+   *          the start of one or more words of a person's names or uid.
+   * @param limit
+   *          the most people to return.
+   * @return the people found, best match first: the person whose uid is the query, then
+   *         those whose uid starts with it, then those with a word equal to each word of
+   *         the query, then the rest, each in order of display name.
+   */
+  Result search(String query, int limit) {
+    Index current = index;
+    List<String> terms = words(query);
+    if (current == null || terms.isEmpty() || limit <= 0) {
+      return new Result(Collections.<Person> emptyList(), false);
+    }
+    String longest = terms.get(0);
+    for (String term : terms) {
+      if (term.length() > longest.length()) {
+        longest = term;
+      }
+    }
+
+    // several keys may lead to the same person.
+    Map<Person, Boolean> found = new IdentityHashMap<Person, Boolean>();
+    int scanned = 0;
+    boolean truncated = false;
+    current.lock.readLock().lock();
+    try {
+      for (Person person : current.words.subMap(longest, longest + Character.MAX_VALUE)
+          .values()) {
+        if (++scanned > maxScan) {
+          truncated = true;
+          break;
+        }
+        if (!found.containsKey(person) && matchesAll(person, terms)) {
+          found.put(person, Boolean.TRUE);
+        }
+      }
+    } finally {
+      current.lock.readLock().unlock();
+    }
+
+    final String first = terms.get(0);
+    final boolean single = terms.size() == 1;
+    final List<String> queryTerms = terms;
+    List<Person> people = new ArrayList<Person>(found.keySet());
+    Collections.sort(people, new Comparator<Person>() {
+      public int compare(Person a, Person b) {
+        int diff = rank(a) - rank(b);
+        return diff != 0 ? diff : a.displayName.compareToIgnoreCase(b.displayName);
+      }
+
+      private int rank(Person person) {
+        String uid = person.uid.toLowerCase();
+        if (single && uid.equals(first)) {
+          return 0;
+        }
+        if (uid.startsWith(first)) {
+          return 1;
+        }
+        return matchesAllExactly(person, queryTerms) ? 2 : 3;
+      }
+    });
+    if (people.size() > limit) {
+      people = people.subList(0, limit);
+    }
+    return new Result(people, truncated);
+  }
+
+  private static boolean matchesAll(Person person, List<String> terms) {
+    for (String term : terms) {
+      boolean matched = false;
+      for (String word : person.words) {
+        if (word.startsWith(term)) {
+          matched = true;
+          break;
+        }
+      }
+      if (!matched) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean matchesAllExactly(Person person, List<String> terms) {
+    for (String term : terms) {
+      boolean matched = false;
+      for (String word : person.words) {
+        if (word.equals(term)) {
+          matched = true;
+          break;
+        }
+      }
+      if (!matched) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void add(Index target, String dn, Map<String, Object> record) {
+    Object uid = record.get("uid");
+    if (!(uid instanceof String)) {
+      // multi valued or missing, can't say who this is.
+      return;
+    }
+    Set<String> words = new LinkedHashSet<String>();
+    words.add(((String) uid).toLowerCase());
+    String displayName = null;
+    for (String attribute : NAME_ATTRIBUTES) {
+      Object value = record.get(attribute);
+      if (value instanceof String) {
+        words.addAll(words((String) value));
+        if (displayName == null || "displayName".equals(attribute)) {
+          displayName = (String) value;
+        }
+      } else if (value instanceof String[]) {
+        for (String v : (String[]) value) {
+          words.addAll(words(v));
+        }
+      }
+    }
+    Person person = new Person((String) uid, displayName == null ? (String) uid
+        : displayName, words.toArray(new String[words.size()]));
+    target.people.put(dn, person);
+    target.lock.writeLock().lock();
+    try {
+      for (String word : person.words) {
+        target.words.put(word + SEPARATOR + dn, person);
+      }
+    } finally {
+      target.lock.writeLock().unlock();
+    }
+  }
+
+  private static void remove(Index target, String dn) {
+    Person person = target.people.remove(dn);
+    if (person != null) {
+      target.lock.writeLock().lock();
+      try {
+        for (String word : person.words) {
+          target.words.remove(word + SEPARATOR + dn);
+        }
+      } finally {
+        target.lock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * @return the lower case words of a name, split at anything but letters and digits.
+   */
+  private static List<String> words(String text) {
+    List<String> words = new ArrayList<String>();
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (letter && start < 0) {
+        start = i;
+      } else if (!letter && start >= 0) {
+        words.add(text.substring(start, i).toLowerCase());
+        start = -1;
+      }
+    }
+    return words;
+  }
+}
@@ -0,0 +1,209 @@
+package uk.ac.cam.caret.oae.profile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A directory of cached photos, bounded in total size. Each photo is a file, written
+ * under a temporary name and renamed into place so that readers never see half a photo.
+ * The least recently used files are deleted once the total exceeds the limit, and files
+ * older than the time to live are ignored and deleted. The files found at start up are
+ * kept, oldest first in line for eviction.
+ */
+class PhotoCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PhotoCache.class);
+
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final File directory;
+
+  private final long maxBytes;
+
+  private final long ttl;
+
+  /** file name to length, in access order, guarded by itself */
+  private final LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>(16,
+      0.75f, true);
+
+  private long bytes;
+
+  /**
+   * @param directory
+   *          where to keep the photos, created if need be.
+   * @param maxBytes
+   *          the most bytes to keep.
+   * @param ttl
+   *          how long a photo is kept, in milliseconds.
+   */
+  PhotoCache(File directory, long maxBytes, long ttl) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.ttl = ttl;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      LOGGER.warn("Unable to create photo cache directory {}", directory);
+    }
+    File[] existing = directory.listFiles();
+    if (existing == null) {
+      return;
+    }
+    Arrays.sort(existing, new Comparator<File>() {
+      public int compare(File a, File b) {
+        long diff = a.lastModified() - b.lastModified();
+        return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+      }
+    });
+    synchronized (files) {
+      for (File file : existing) {
+        if (file.getName().endsWith(TEMP_SUFFIX)) {
+          // left over from a write that never finished.
+          file.delete();
+        } else if (file.isFile()) {
+          files.put(file.getName(), file.length());
+          bytes += file.length();
+        }
+      }
+      evict();
+    }
+  }
+
+  /**
+   * @param name
+   *          the file name of the photo.
+   * @return the cached photo, or null if it is not cached.
+   */
+  byte[] get(String name) {
+    File file = new File(directory, name);
+    synchronized (files) {
+      if (files.get(name) == null) {
+        return null;
+      }
+      if (file.lastModified() + ttl <= System.currentTimeMillis()) {
+        remove(name);
+        return null;
+      }
+    }
+    try {
+      return read(file);
+    } catch (FileNotFoundException e) {
+      // evicted since.
+      return null;
+    } catch (IOException e) {
+      LOGGER.warn("Unable to read cached photo {}: {}", file, e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Caches a photo, replacing any cached under the same name.
+   *
+   * @param name
+   *          the file name of the photo.
+   * @param photo
+   *          the photo, may be empty.
+   */
+  void put(String name, byte[] photo) {
+    if (photo.length > maxBytes) {
+      return;
+    }
+    File file = new File(directory, name);
+    File temp = null;
+    try {
+      temp = File.createTempFile(name, TEMP_SUFFIX, directory);
+      OutputStream out = new FileOutputStream(temp);
+      try {
+        out.write(photo);
+      } finally {
+        out.close();
+      }
+      synchronized (files) {
+        remove(name);
+        if (!temp.renameTo(file)) {
+          throw new IOException("Unable to rename " + temp + " to " + file);
+        }
+        temp = null;
+        files.put(name, (long) photo.length);
+        bytes += photo.length;
+        evict();
+      }
+    } catch (IOException e) {
+      LOGGER.warn("Unable to cache photo {}: {}", file, e.getMessage());
+    } finally {
+      if (temp != null) {
+        temp.delete();
+      }
+    }
+  }
+
+  /**
+   * Deletes every cached photo whose name starts with a prefix.
+   */
+  void removeAll(String prefix) {
+    synchronized (files) {
+      for (Iterator<Map.Entry<String, Long>> i = files.entrySet().iterator(); i.hasNext();) {
+        Map.Entry<String, Long> e = i.next();
+        if (e.getKey().startsWith(prefix)) {
+          // not files.get(), which would reorder the map under the iterator.
+          bytes -= e.getValue();
+          i.remove();
+          new File(directory, e.getKey()).delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * Must be called holding the lock.
+   */
+  private void remove(String name) {
+    Long length = files.remove(name);
+    if (length != null) {
+      bytes -= length;
+      new File(directory, name).delete();
+    }
+  }
+
+  /**
+   * Must be called holding the lock.
+   */
+  private void evict() {
+    for (Iterator<Map.Entry<String, Long>> i = files.entrySet().iterator(); bytes > maxBytes
+        && i.hasNext();) {
+      Map.Entry<String, Long> e = i.next();
+      bytes -= e.getValue();
+      i.remove();
+      new File(directory, e.getKey()).delete();
+    }
+  }
+
+  private static byte[] read(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] content = new byte[(int) file.length()];
+      int read = 0;
+      while (read < content.length) {
+        int n = in.read(content, read, content.length - read);
+        if (n < 0) {
+          throw new IOException("Truncated " + file);
+        }
+        read += n;
+      }
+      return content;
+    } finally {
+      in.close();
+    }
+  }
+}
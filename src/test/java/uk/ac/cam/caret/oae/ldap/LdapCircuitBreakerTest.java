@@ -0,0 +1,150 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.novell.ldap.LDAPException;
+
+import org.junit.Test;
+
+public class LdapCircuitBreakerTest {
+
+  private static final long FAST = 1000000L;
+
+  private static final long SLOW = 2000000000L;
+
+  /**
+   * @return a breaker over a window of four calls, opening at half of them failing or
+   *         all of them being slower than a second, and probing with two calls.
+   */
+  private static LdapCircuitBreaker breaker(long openDuration) {
+    LdapConnectionManagerConfig config = new LdapConnectionManagerConfig();
+    config.setBreakerWindowSize(4);
+    config.setBreakerMinimumCalls(4);
+    config.setBreakerFailureRateThreshold(50);
+    config.setBreakerSlowCallRateThreshold(100);
+    config.setBreakerSlowCallDuration(1000);
+    config.setBreakerOpenDuration(openDuration);
+    config.setBreakerHalfOpenCalls(2);
+    return new LdapCircuitBreaker(config);
+  }
+
+  private static void call(LdapCircuitBreaker breaker, long duration, boolean failure) {
+    assertTrue(breaker.acquirePermission());
+    breaker.record(duration, failure);
+  }
+
+  @Test
+  public void testStaysClosedBelowMinimumCalls() {
+    LdapCircuitBreaker breaker = breaker(60000);
+    for (int i = 0; i < 3; i++) {
+      call(breaker, FAST, true);
+    }
+    assertEquals(LdapCircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.acquirePermission());
+  }
+
+  @Test
+  public void testOpensOnFailureRate() {
+    LdapCircuitBreaker breaker = breaker(60000);
+    call(breaker, FAST, false);
+    call(breaker, FAST, true);
+    call(breaker, FAST, false);
+    assertEquals(LdapCircuitBreaker.State.CLOSED, breaker.getState());
+    call(breaker, FAST, true);
+    assertEquals(LdapCircuitBreaker.State.OPEN, breaker.getState());
+    assertTrue(breaker.isOpen());
+    assertFalse(breaker.acquirePermission());
+  }
+
+  @Test
+  public void testOldCallsLeaveTheWindow() {
+    LdapCircuitBreaker breaker = breaker(60000);
+    call(breaker, FAST, true);
+    for (int i = 0; i < 4; i++) {
+      call(breaker, FAST, false);
+    }
+    // the failure has been pushed out, so one more leaves a quarter failed.
+    call(breaker, FAST, true);
+    assertEquals(LdapCircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testOpensOnSlowCalls() {
+    LdapCircuitBreaker breaker = breaker(60000);
+    for (int i = 0; i < 3; i++) {
+      call(breaker, SLOW, false);
+    }
+    call(breaker, FAST, false);
+    assertEquals(LdapCircuitBreaker.State.CLOSED, breaker.getState());
+    for (int i = 0; i < 4; i++) {
+      call(breaker, SLOW, false);
+    }
+    assertEquals(LdapCircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testHalfOpenCloses() {
+    LdapCircuitBreaker breaker = breaker(0);
+    for (int i = 0; i < 4; i++) {
+      call(breaker, FAST, true);
+    }
+    assertEquals(LdapCircuitBreaker.State.OPEN, breaker.getState());
+    assertTrue(breaker.acquirePermission());
+    assertEquals(LdapCircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertTrue(breaker.acquirePermission());
+    // only two probes at a time.
+    assertFalse(breaker.acquirePermission());
+    breaker.record(FAST, false);
+    assertEquals(LdapCircuitBreaker.State.HALF_OPEN, breaker.getState());
+    breaker.record(FAST, false);
+    assertEquals(LdapCircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testHalfOpenReopensOnFailure() {
+    LdapCircuitBreaker breaker = breaker(0);
+    for (int i = 0; i < 4; i++) {
+      call(breaker, FAST, true);
+    }
+    call(breaker, FAST, true);
+    assertEquals(LdapCircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testHalfOpenReopensOnSlowCall() {
+    LdapCircuitBreaker breaker = breaker(0);
+    for (int i = 0; i < 4; i++) {
+      call(breaker, FAST, true);
+    }
+    call(breaker, SLOW, false);
+    assertEquals(LdapCircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testReleaseGivesBackAProbe() {
+    LdapCircuitBreaker breaker = breaker(0);
+    for (int i = 0; i < 4; i++) {
+      call(breaker, FAST, true);
+    }
+    assertTrue(breaker.acquirePermission());
+    assertTrue(breaker.acquirePermission());
+    assertFalse(breaker.acquirePermission());
+    breaker.release();
+    assertEquals(LdapCircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertTrue(breaker.acquirePermission());
+    // a released probe is not a success.
+    breaker.record(FAST, false);
+    assertEquals(LdapCircuitBreaker.State.HALF_OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testIsFailure() {
+    assertTrue(LdapCircuitBreaker.isFailure(new LDAPException("busy", LDAPException.BUSY,
+        null)));
+    assertFalse(LdapCircuitBreaker.isFailure(new LDAPException("missing",
+        LDAPException.NO_SUCH_OBJECT, null)));
+    assertFalse(LdapCircuitBreaker.isFailure(new LdapDeadlineExceededException("late")));
+  }
+}
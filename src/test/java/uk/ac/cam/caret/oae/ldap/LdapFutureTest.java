@@ -0,0 +1,145 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.novell.ldap.LDAPException;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class LdapFutureTest {
+
+  @Test
+  public void testFirstOutcomeWins() throws Exception {
+    LdapFuture<String> future = new LdapFuture<String>();
+    assertTrue(future.complete("a"));
+    assertFalse(future.complete("b"));
+    assertFalse(future.fail(new RuntimeException()));
+    assertFalse(future.cancel(false));
+    assertEquals("a", future.get());
+    assertFalse(future.isCancelled());
+  }
+
+  @Test
+  public void testListenersRunOnce() throws Exception {
+    LdapFuture<String> future = new LdapFuture<String>();
+    final AtomicInteger runs = new AtomicInteger();
+    Runnable listener = new Runnable() {
+      public void run() {
+        runs.incrementAndGet();
+      }
+    };
+    future.addListener(listener);
+    future.fail(new RuntimeException("failed"));
+    future.complete("late");
+    assertEquals(1, runs.get());
+    // added once the outcome is known, runs straight away.
+    future.addListener(listener);
+    assertEquals(2, runs.get());
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    LdapFuture<String> future = new LdapFuture<String>();
+    assertTrue(future.cancel(true));
+    assertTrue(future.isCancelled());
+    assertTrue(future.isDone());
+    try {
+      future.getResult(10);
+      fail();
+    } catch (LDAPException e) {
+      assertEquals(LDAPException.USER_CANCELLED, e.getResultCode());
+    }
+  }
+
+  @Test
+  public void testGetResultTimesOut() throws Exception {
+    LdapFuture<String> future = new LdapFuture<String>();
+    try {
+      future.getResult(10);
+      fail();
+    } catch (LDAPException e) {
+      assertEquals(LDAPException.LDAP_TIMEOUT, e.getResultCode());
+    }
+  }
+
+  @Test
+  public void testFailureIsRethrown() throws Exception {
+    LdapFuture<String> future = new LdapFuture<String>();
+    LDAPException failure = new LDAPException("busy", LDAPException.BUSY, null);
+    future.fail(failure);
+    try {
+      future.get();
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() == failure);
+    }
+  }
+
+  /**
+   * Completes and fails the same future from many threads at once: exactly one caller
+   * must win, its outcome must be the one reported, and listeners must run once.
+   */
+  @Test
+  public void testConcurrentCompletion() throws Exception {
+    for (int round = 0; round < 500; round++) {
+      final LdapFuture<Integer> future = new LdapFuture<Integer>();
+      final AtomicInteger runs = new AtomicInteger();
+      future.addListener(new Runnable() {
+        public void run() {
+          runs.incrementAndGet();
+        }
+      });
+      final int threads = 4;
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch finished = new CountDownLatch(threads);
+      final AtomicInteger winners = new AtomicInteger();
+      final AtomicReference<Object> winner = new AtomicReference<Object>();
+      final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+      for (int i = 0; i < threads; i++) {
+        final int n = i;
+        new Thread(new Runnable() {
+          public void run() {
+            try {
+              start.await();
+              if (n % 2 == 0) {
+                if (future.complete(n)) {
+                  winners.incrementAndGet();
+                  winner.set(n);
+                }
+              } else {
+                RuntimeException failure = new RuntimeException(String.valueOf(n));
+                if (future.fail(failure)) {
+                  winners.incrementAndGet();
+                  winner.set(failure);
+                }
+              }
+            } catch (Throwable t) {
+              error.set(t);
+            } finally {
+              finished.countDown();
+            }
+          }
+        }).start();
+      }
+      start.countDown();
+      finished.await();
+      assertNull(error.get());
+      assertEquals(1, winners.get());
+      assertEquals(1, runs.get());
+      try {
+        assertEquals(winner.get(), future.get());
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() == winner.get());
+      }
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class LdapHedgedReaderTest {
+
+  @Test
+  public void testPrimaryFirst() throws Exception {
+    LdapFuture<String> primary = new LdapFuture<String>();
+    LdapFuture<String> hedge = new LdapFuture<String>();
+    AtomicBoolean hedgeWon = new AtomicBoolean();
+    LdapFuture<String> first = LdapHedgedReader.firstOf(primary, hedge, hedgeWon);
+    primary.complete("primary");
+    hedge.complete("hedge");
+    assertEquals("primary", first.get());
+    assertFalse(hedgeWon.get());
+  }
+
+  @Test
+  public void testHedgeFirst() throws Exception {
+    LdapFuture<String> primary = new LdapFuture<String>();
+    LdapFuture<String> hedge = new LdapFuture<String>();
+    AtomicBoolean hedgeWon = new AtomicBoolean();
+    LdapFuture<String> first = LdapHedgedReader.firstOf(primary, hedge, hedgeWon);
+    hedge.complete("hedge");
+    primary.complete("primary");
+    assertEquals("hedge", first.get());
+    assertTrue(hedgeWon.get());
+  }
+
+  @Test
+  public void testOneFailure() throws Exception {
+    LdapFuture<String> primary = new LdapFuture<String>();
+    LdapFuture<String> hedge = new LdapFuture<String>();
+    AtomicBoolean hedgeWon = new AtomicBoolean();
+    LdapFuture<String> first = LdapHedgedReader.firstOf(primary, hedge, hedgeWon);
+    primary.fail(new RuntimeException("primary"));
+    assertFalse(first.isDone());
+    hedge.complete("hedge");
+    assertEquals("hedge", first.get());
+    assertTrue(hedgeWon.get());
+  }
+
+  @Test
+  public void testBothFail() throws Exception {
+    LdapFuture<String> primary = new LdapFuture<String>();
+    LdapFuture<String> hedge = new LdapFuture<String>();
+    AtomicBoolean hedgeWon = new AtomicBoolean();
+    LdapFuture<String> first = LdapHedgedReader.firstOf(primary, hedge, hedgeWon);
+    primary.fail(new RuntimeException("primary"));
+    RuntimeException failure = new RuntimeException("hedge");
+    hedge.fail(failure);
+    try {
+      first.get();
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() == failure);
+    }
+    assertFalse(hedgeWon.get());
+  }
+
+  /**
+   * Answers both reads at once: the answer taken must be the one credited with the win,
+   * and neither listener may fail.
+   */
+  @Test
+  public void testConcurrentAnswers() throws Exception {
+    for (int round = 0; round < 500; round++) {
+      final LdapFuture<String> primary = new LdapFuture<String>();
+      final LdapFuture<String> hedge = new LdapFuture<String>();
+      AtomicBoolean hedgeWon = new AtomicBoolean();
+      LdapFuture<String> first = LdapHedgedReader.firstOf(primary, hedge, hedgeWon);
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch finished = new CountDownLatch(2);
+      final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+      Thread[] threads = new Thread[] { answer(primary, "primary", start, finished, error),
+          answer(hedge, "hedge", start, finished, error) };
+      for (Thread thread : threads) {
+        thread.start();
+      }
+      start.countDown();
+      finished.await();
+      assertNull(error.get());
+      assertEquals(hedgeWon.get() ? "hedge" : "primary", first.get());
+    }
+  }
+
+  private static Thread answer(final LdapFuture<String> read, final String value,
+      final CountDownLatch start, final CountDownLatch finished,
+      final AtomicReference<Throwable> error) {
+    return new Thread(new Runnable() {
+      public void run() {
+        try {
+          start.await();
+          read.complete(value);
+        } catch (Throwable t) {
+          error.set(t);
+        } finally {
+          finished.countDown();
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,91 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPAttributeSet;
+import com.novell.ldap.LDAPEntry;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class LdapRecordTest {
+
+  private static LDAPEntry entry() {
+    LDAPAttributeSet attributes = new LDAPAttributeSet();
+    attributes.add(new LDAPAttribute("uid", "ab123"));
+    attributes.add(new LDAPAttribute("cn", "Zo\u00eb \u00c5ngstr\u00f6m"));
+    attributes.add(new LDAPAttribute("mail", new String[] { "ab123@example.com",
+        "zoe@example.com", "" }));
+    attributes.add(new LDAPAttribute("description", new String[0]));
+    attributes.add(new LDAPAttribute("displayName", "\u65e5\u672c\u8a9e\u306e\u540d\u524d"));
+    return new LDAPEntry("uid=ab123,ou=people,dc=example,dc=com", attributes);
+  }
+
+  @Test
+  public void testSameAsToRecord() {
+    LDAPEntry entry = entry();
+    Map<String, Object> expected = LdapUtil.toRecord(entry);
+    LdapRecord record = LdapRecord.fromEntry(entry);
+    assertEquals(expected.keySet(), record.keySet());
+    assertEquals(expected.size(), record.size());
+    for (Map.Entry<String, Object> e : expected.entrySet()) {
+      assertValue(e.getValue(), record.get(e.getKey()));
+    }
+    // and read through the entries.
+    Map<String, Object> copy = new HashMap<String, Object>();
+    for (Map.Entry<String, Object> e : record.entrySet()) {
+      copy.put(e.getKey(), e.getValue());
+    }
+    assertEquals(expected.keySet(), copy.keySet());
+    for (Map.Entry<String, Object> e : expected.entrySet()) {
+      assertValue(e.getValue(), copy.get(e.getKey()));
+    }
+  }
+
+  @Test
+  public void testValues() {
+    LdapRecord record = LdapRecord.fromEntry(entry());
+    assertEquals("Zo\u00eb \u00c5ngstr\u00f6m", record.get("cn"));
+    assertArrayEquals(new String[] { "ab123@example.com", "zoe@example.com", "" },
+        (String[]) record.get("mail"));
+    // without values, so left out.
+    assertFalse(record.containsKey("description"));
+    assertNull(record.get("description"));
+    assertNull(record.get("missing"));
+    assertNull(record.get(Integer.valueOf(1)));
+    assertTrue(record.getSize() > 0);
+  }
+
+  @Test
+  public void testExcluded() {
+    LdapRecord record = LdapRecord.fromEntry(entry(), Collections.singleton("displayname"));
+    assertFalse(record.containsKey("displayName"));
+    assertEquals("ab123", record.get("uid"));
+    assertEquals(3, record.size());
+  }
+
+  @Test
+  public void testEmptyEntry() {
+    LdapRecord record = LdapRecord.fromEntry(new LDAPEntry("o=empty",
+        new LDAPAttributeSet()));
+    assertTrue(record.isEmpty());
+    assertEquals(LdapUtil.toRecord(new LDAPEntry("o=empty", new LDAPAttributeSet())),
+        record);
+  }
+
+  private static void assertValue(Object expected, Object actual) {
+    if (expected instanceof String[]) {
+      assertArrayEquals((String[]) expected, (String[]) actual);
+    } else {
+      assertEquals(expected, actual);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.novell.ldap.LDAPConnection;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+public class LdapServerSetTest {
+
+  @Test
+  public void testParse() {
+    LdapServerSet set = new LdapServerSet(
+        "ldap1.example.com:636*2; ldap2.example.com,[::1]:1389 ::1", 389,
+        LdapServerSet.STRATEGY_ORDERED, 1000, 60000);
+    List<LdapServer> servers = set.getServers();
+    assertEquals(4, servers.size());
+    assertServer(servers.get(0), "ldap1.example.com", 636, 2);
+    assertServer(servers.get(1), "ldap2.example.com", 389, 1);
+    assertServer(servers.get(2), "::1", 1389, 1);
+    assertServer(servers.get(3), "::1", 389, 1);
+  }
+
+  @Test
+  public void testParseNothing() {
+    LdapServerSet set = new LdapServerSet(null, 389, LdapServerSet.STRATEGY_ORDERED, 1000,
+        60000);
+    assertEquals(0, set.getServers().size());
+    assertEquals(0, set.getCandidates().size());
+  }
+
+  @Test
+  public void testOrdered() {
+    LdapServerSet set = new LdapServerSet("a b c", 389, LdapServerSet.STRATEGY_ORDERED,
+        1000, 60000);
+    for (int i = 0; i < 3; i++) {
+      assertEquals("a", set.getCandidates().get(0).getHost());
+    }
+  }
+
+  @Test
+  public void testWeightedRoundRobin() {
+    LdapServerSet set = new LdapServerSet("a*3 b", 389, LdapServerSet.STRATEGY_ROUND_ROBIN,
+        1000, 60000);
+    StringBuilder order = new StringBuilder();
+    for (int i = 0; i < 8; i++) {
+      order.append(set.getCandidates().get(0).getHost());
+    }
+    // smooth: the heavier replica's turns are spread out, not taken all at once.
+    assertEquals("aabaaaba", order.toString());
+  }
+
+  @Test
+  public void testLeastOutstanding() {
+    LdapServerSet set = new LdapServerSet("a*2 b", 389,
+        LdapServerSet.STRATEGY_LEAST_OUTSTANDING, 1000, 60000);
+    LdapServer a = set.getServers().get(0);
+    LdapServer b = set.getServers().get(1);
+    LDAPConnection first = new LDAPConnection();
+    LDAPConnection second = new LDAPConnection();
+    set.connected(a, first);
+    assertSame(b, set.getCandidates().get(0));
+    set.connected(b, second);
+    // one connection per unit weight against two.
+    assertSame(a, set.getCandidates().get(0));
+    set.disconnected(first);
+    assertEquals(0, a.getOutstanding());
+    // counted down once only.
+    set.disconnected(first);
+    assertEquals(0, a.getOutstanding());
+    assertEquals(1, b.getOutstanding());
+  }
+
+  @Test
+  public void testDownReplicaLast() {
+    LdapServerSet set = new LdapServerSet("a b", 389, LdapServerSet.STRATEGY_ORDERED, 0,
+        0);
+    LdapServer a = set.getServers().get(0);
+    set.failed(a);
+    // even once it is due a probe.
+    List<LdapServer> candidates = set.getCandidates();
+    assertEquals("b", candidates.get(0).getHost());
+    assertSame(a, candidates.get(1));
+  }
+
+  @Test
+  public void testOneProbeAtATime() {
+    LdapServerSet set = new LdapServerSet("a b", 389, LdapServerSet.STRATEGY_ORDERED, 0,
+        0);
+    LdapServer a = set.getServers().get(0);
+    assertTrue(set.claimProbes().isEmpty());
+    set.failed(a);
+    assertEquals(Collections.singletonList(a), set.claimProbes());
+    assertTrue(set.claimProbes().isEmpty());
+    set.released(a);
+    assertEquals(Collections.singletonList(a), set.claimProbes());
+    set.connected(a, new LDAPConnection());
+    assertTrue(a.isUp());
+    assertTrue(set.claimProbes().isEmpty());
+  }
+
+  @Test
+  public void testNoProbeDuringBackOff() {
+    LdapServerSet set = new LdapServerSet("a b", 389, LdapServerSet.STRATEGY_ORDERED,
+        60000, 60000);
+    set.failed(set.getServers().get(0));
+    assertTrue(set.claimProbes().isEmpty());
+  }
+
+  private static void assertServer(LdapServer server, String host, int port, int weight) {
+    assertEquals(host, server.getHost());
+    assertEquals(port, server.getPort());
+    assertEquals(weight, server.getWeight());
+  }
+}
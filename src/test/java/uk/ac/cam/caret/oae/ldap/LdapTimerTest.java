@@ -0,0 +1,78 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LdapTimerTest {
+
+  private static final long MICROS = 1000L;
+
+  @Test
+  public void testEmpty() {
+    LdapTimer timer = new LdapTimer();
+    assertEquals(0, timer.getCount());
+    assertEquals(0, timer.getPercentile(50));
+    assertEquals(0, timer.getPercentile(100));
+  }
+
+  @Test
+  public void testSmallValuesAreExact() {
+    LdapTimer timer = new LdapTimer();
+    for (int i = 0; i < 8; i++) {
+      timer.record(i * MICROS, false);
+    }
+    assertEquals(3, timer.getPercentile(50));
+    assertEquals(7, timer.getPercentile(100));
+  }
+
+  @Test
+  public void testPercentiles() {
+    LdapTimer timer = new LdapTimer();
+    for (int i = 1; i <= 1000; i++) {
+      timer.record(i * MICROS, false);
+    }
+    assertEquals(1000, timer.getCount());
+    assertWithin(500, timer.getPercentile(50));
+    assertWithin(950, timer.getPercentile(95));
+    assertWithin(990, timer.getPercentile(99));
+    // never more than the largest value recorded.
+    assertEquals(1000, timer.getPercentile(100));
+  }
+
+  @Test
+  public void testLargeValues() {
+    LdapTimer timer = new LdapTimer();
+    timer.record(3600L * 1000000L * MICROS, false);
+    assertEquals(3600L * 1000000L, timer.getPercentile(50));
+  }
+
+  @Test
+  public void testStatistics() {
+    LdapTimer timer = new LdapTimer();
+    timer.record(2000 * MICROS, false);
+    timer.record(4000 * MICROS, true);
+    assertEquals(2L, timer.getStatistics().get("count"));
+    assertEquals(1L, timer.getStatistics().get("errors"));
+    assertEquals(3.0, (Double) timer.getStatistics().get("meanMs"), 0.001);
+    assertEquals(4.0, (Double) timer.getStatistics().get("maxMs"), 0.001);
+  }
+
+  @Test
+  public void testReset() {
+    LdapTimer timer = new LdapTimer();
+    timer.record(10 * MICROS, true);
+    timer.reset();
+    assertEquals(0, timer.getCount());
+    assertEquals(0, timer.getPercentile(99));
+  }
+
+  /**
+   * Percentiles are the top of a bucket an eighth of a power of two wide.
+   */
+  private static void assertWithin(long expected, long actual) {
+    assertTrue("expected about " + expected + " but was " + actual, actual >= expected
+        && actual <= expected + expected / 8);
+  }
+}
@@ -0,0 +1,72 @@
+package uk.ac.cam.caret.oae.ldap;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+public class LdapUtilTest {
+
+  @Test
+  public void testDnTemplate() {
+    LdapUtil.Template template = LdapUtil.compileDN("uid={0},ou=people,dc=example,dc=com");
+    assertEquals("uid=ab123,ou=people,dc=example,dc=com", template.format("ab123"));
+    assertEquals("uid=" + LdapUtil.escapeDN("a,b+c") + ",ou=people,dc=example,dc=com",
+        template.format("a,b+c"));
+  }
+
+  @Test
+  public void testFilterTemplate() {
+    LdapUtil.Template template = LdapUtil.compileFilter("(&(uid={0})(ou={1}))");
+    assertEquals("(&(uid=ab123)(ou=people))", template.format("ab123", "people"));
+    assertEquals("(&(uid=\\2a)(ou=\\28x\\29))", template.format("*", "(x)"));
+  }
+
+  @Test
+  public void testTemplatePlaceholders() {
+    assertEquals("b-a-b", LdapUtil.compileFilter("{1}-{0}-{1}").format("a", "b"));
+    assertEquals("no placeholders", LdapUtil.compileDN("no placeholders").format());
+    // quotes are not special, unlike MessageFormat.
+    assertEquals("o='x'", LdapUtil.compileDN("o='{0}'").format("x"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTemplateMissingValue() {
+    LdapUtil.compileDN("uid={0},o={1}").format("only one");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTemplateBadPlaceholder() {
+    LdapUtil.compileDN("uid={x}");
+  }
+
+  @Test
+  public void testParseGeneralizedTime() {
+    long expected = utc(2011, Calendar.MARCH, 1, 12, 34, 56);
+    assertEquals(expected, LdapUtil.parseGeneralizedTime("20110301123456Z"));
+    assertEquals(expected, LdapUtil.parseGeneralizedTime("20110301123456.5Z"));
+    assertEquals(expected, LdapUtil.parseGeneralizedTime("20110301123456,123Z"));
+    assertEquals(expected - 3600000L, LdapUtil.parseGeneralizedTime("20110301123456+0100"));
+    assertEquals(expected + 5400000L,
+        LdapUtil.parseGeneralizedTime("20110301123456.5-0130"));
+  }
+
+  @Test
+  public void testParseBadGeneralizedTime() {
+    assertEquals(-1, LdapUtil.parseGeneralizedTime(null));
+    assertEquals(-1, LdapUtil.parseGeneralizedTime("2011"));
+    assertEquals(-1, LdapUtil.parseGeneralizedTime("20110301123456"));
+    assertEquals(-1, LdapUtil.parseGeneralizedTime("20111301123456Z"));
+    assertEquals(-1, LdapUtil.parseGeneralizedTime("20110301123456+01"));
+    assertEquals(-1, LdapUtil.parseGeneralizedTime("2011030112345xZ"));
+  }
+
+  private static long utc(int year, int month, int day, int hour, int minute, int second) {
+    Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    calendar.clear();
+    calendar.set(year, month, day, hour, minute, second);
+    return calendar.getTimeInMillis();
+  }
+}
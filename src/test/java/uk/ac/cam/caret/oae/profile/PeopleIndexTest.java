@@ -0,0 +1,132 @@
+package uk.ac.cam.caret.oae.profile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class PeopleIndexTest {
+
+  private Map<String, Map<String, Object>> records;
+
+  @Before
+  public void setUp() {
+    records = new LinkedHashMap<String, Map<String, Object>>();
+    add("js1", "John Smith", "Smith");
+    add("smith", "Zed Smith", "Smith");
+    add("ab12", "Anna Smithson", "Smithson");
+    add("smithj", "Jane Smithers", "Smithers");
+    add("cd34", "Carol Jones", "Jones");
+  }
+
+  @Test
+  public void testNotLoaded() {
+    PeopleIndex index = new PeopleIndex(100, 100);
+    assertFalse(index.isLoaded());
+    assertEquals(0, index.search("smith", 10).getPeople().size());
+  }
+
+  @Test
+  public void testRank() {
+    PeopleIndex index = load(100, 100);
+    assertTrue(index.isLoaded());
+    PeopleIndex.Result result = index.search("Smith", 10);
+    // uid equal, uid prefix, a word equal, then the rest.
+    assertEquals(list("smith", "smithj", "js1", "ab12"), uids(result));
+    assertFalse(result.isTruncated());
+  }
+
+  @Test
+  public void testEveryWordMustMatch() {
+    PeopleIndex index = load(100, 100);
+    assertEquals(list("js1"), uids(index.search("jo smi", 10)));
+    assertEquals(list("js1"), uids(index.search("smi, jo", 10)));
+    assertEquals(list(), uids(index.search("jo brown", 10)));
+  }
+
+  @Test
+  public void testTieByDisplayName() {
+    PeopleIndex index = load(100, 100);
+    // within each rank, by display name.
+    assertEquals(list("smithj", "smith", "ab12", "js1"), uids(index.search("sm", 10)));
+  }
+
+  @Test
+  public void testLimit() {
+    PeopleIndex index = load(100, 100);
+    assertEquals(list("smith", "smithj"), uids(index.search("smith", 2)));
+    assertEquals(0, index.search("smith", 0).getPeople().size());
+    assertEquals(0, index.search("  ", 10).getPeople().size());
+  }
+
+  @Test
+  public void testScanLimit() {
+    PeopleIndex index = load(100, 2);
+    PeopleIndex.Result result = index.search("smith", 10);
+    assertTrue(result.isTruncated());
+    assertTrue(result.getPeople().size() <= 2);
+  }
+
+  @Test
+  public void testMaxPeople() {
+    PeopleIndex index = load(2, 100);
+    assertEquals(list("smith", "js1"), uids(index.search("smith", 10)));
+  }
+
+  @Test
+  public void testRecordChanged() {
+    PeopleIndex index = load(100, 100);
+    index.recordChanged(dn("ab12"), record("ab12", "Anna Brown", "Brown"));
+    assertEquals(list(), uids(index.search("smithson", 10)));
+    assertEquals(list("ab12"), uids(index.search("brown", 10)));
+    index.recordChanged(dn("new1"), record("new1", "Newt Smith", "Smith"));
+    assertEquals(list("smith", "smithj", "js1", "new1"), uids(index.search("smith", 10)));
+  }
+
+  private PeopleIndex load(int maxPeople, int maxScan) {
+    PeopleIndex index = new PeopleIndex(maxPeople, maxScan);
+    index.replicaLoaded(records);
+    return index;
+  }
+
+  private void add(String uid, String displayName, String sn) {
+    records.put(dn(uid), record(uid, displayName, sn));
+  }
+
+  private static String dn(String uid) {
+    return "uid=" + uid + ",ou=people,dc=example,dc=com";
+  }
+
+  private static Map<String, Object> record(String uid, String displayName, String sn) {
+    Map<String, Object> record = new HashMap<String, Object>();
+    record.put("uid", uid);
+    record.put("cn", displayName);
+    record.put("sn", sn);
+    record.put("displayName", displayName);
+    return record;
+  }
+
+  private static List<String> uids(PeopleIndex.Result result) {
+    List<String> uids = new ArrayList<String>();
+    for (PeopleIndex.Person person : result.getPeople()) {
+      uids.add(person.getUid());
+    }
+    return uids;
+  }
+
+  private static List<String> list(String... values) {
+    List<String> list = new ArrayList<String>();
+    for (String value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+}